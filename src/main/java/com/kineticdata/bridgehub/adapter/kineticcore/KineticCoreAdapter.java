@@ -4,27 +4,41 @@ import com.kineticdata.bridgehub.adapter.BridgeAdapter;
 import com.kineticdata.bridgehub.adapter.BridgeError;
 import com.kineticdata.bridgehub.adapter.BridgeRequest;
 import com.kineticdata.bridgehub.adapter.Count;
+import com.kineticdata.bridgehub.adapter.DisposableAdapter;
 import com.kineticdata.bridgehub.adapter.Record;
 import com.kineticdata.bridgehub.adapter.RecordList;
 import com.kineticdata.commons.v1.config.ConfigurableProperty;
 import com.kineticdata.commons.v1.config.ConfigurablePropertyMap;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
 import org.slf4j.LoggerFactory;
 
 /**
  *
  */
-public class KineticCoreAdapter implements BridgeAdapter {
+public class KineticCoreAdapter implements BridgeAdapter, DisposableAdapter {
     /*----------------------------------------------------------------------------------------------
      * PROPERTIES
      *--------------------------------------------------------------------------------------------*/
@@ -54,10 +68,47 @@ public class KineticCoreAdapter implements BridgeAdapter {
         public static final String USERNAME = "Username";
         public static final String PASSWORD = "Password";
         public static final String SPACE_URL = "Kinetic Core Space Url";
+        public static final String POOL_MAX_TOTAL = "Connection Pool Max Total";
+        public static final String POOL_MAX_PER_ROUTE = "Connection Pool Max Per Route";
+        public static final String POOL_IDLE_TIMEOUT = "Connection Idle Timeout (seconds)";
+        public static final String POOL_KEEP_ALIVE = "Connection Keep Alive (seconds)";
+        public static final String WORKER_THREADS = "Worker Threads";
+        public static final String SORT_MEMORY_BUDGET = "Sort Memory Budget (MB)";
+        public static final String LIST_CACHE_TTL = "List Cache TTL (seconds)";
+        public static final String LIST_CACHE_STRUCTURES = "List Cache Structures";
+        public static final String REPLICA_STRUCTURES = "Replicated Structures";
+        public static final String REPLICA_SYNC_INTERVAL = "Replica Sync Interval (seconds)";
+        public static final String REPLICA_RECONCILE_INTERVAL = "Replica Reconcile Interval (seconds)";
+        public static final String CONDITIONAL_CACHE_SIZE = "Conditional Request Cache Size (MB)";
+        public static final String FILTER_PLAN_CACHE_SIZE = "Filter Plan Cache Size";
+        public static final String PAGE_SNAPSHOT_TTL = "Page Snapshot TTL (seconds)";
+        public static final String PAGE_SNAPSHOT_SIZE = "Page Snapshot Size";
+        public static final String RETRIEVE_CACHE_TTL = "Retrieve Cache TTL (seconds)";
+        public static final String RETRIEVE_CACHE_NOT_FOUND_TTL = "Retrieve Cache Not Found TTL (seconds)";
+        public static final String RETRIEVE_CACHE_SIZE = "Retrieve Cache Size (MB)";
+        public static final String RETRIEVE_CACHE_REVALIDATE = "Retrieve Cache Revalidate";
+        public static final String RESULT_CACHE_TTLS = "Result Cache TTLs (seconds)";
+        public static final String RESULT_CACHE_STALE = "Result Cache Stale While Revalidate (seconds)";
+        public static final String RESULT_CACHE_SIZE = "Result Cache Size (MB)";
+        public static final String PAGE_TOKEN_TTL = "Page Token TTL (seconds)";
     }
     private String username;
     private String password;
     private String spaceUrl;
+    private PoolingHttpClientConnectionManager connectionManager;
+    private CloseableHttpClient client;
+    private ScheduledExecutorService executor;
+    private ExecutorService refreshExecutor;
+    private KineticCoreHttpFetcher fetcher;
+    private KineticCoreExternalSorter sorter;
+    private KineticCoreListCache listCache;
+    private KineticCoreFilterPlanCache filterPlans;
+    private KineticCoreResultSnapshots snapshots;
+    private KineticCoreRetrieveCache retrieveCache;
+    private KineticCoreResultCache resultCache;
+    private KineticCorePageTokens pageTokens;
+    private KineticCoreReplica userReplica;
+    private KineticCoreReplica teamReplica;
     private KineticCoreSubmissionHelper submissionHelper;
     private KineticCoreUserHelper userHelper;
     private KineticCoreTeamHelper teamHelper;
@@ -69,7 +120,53 @@ public class KineticCoreAdapter implements BridgeAdapter {
     private final ConfigurablePropertyMap properties = new ConfigurablePropertyMap(
             new ConfigurableProperty(Properties.USERNAME).setIsRequired(true),
             new ConfigurableProperty(Properties.PASSWORD).setIsRequired(true).setIsSensitive(true),
-            new ConfigurableProperty(Properties.SPACE_URL).setIsRequired(true)
+            new ConfigurableProperty(Properties.SPACE_URL).setIsRequired(true),
+            new ConfigurableProperty(Properties.POOL_MAX_TOTAL).setValue("100")
+                .setDescription("The maximum number of pooled connections to the Kinetic Core server."),
+            new ConfigurableProperty(Properties.POOL_MAX_PER_ROUTE).setValue("100")
+                .setDescription("The maximum number of pooled connections per host."),
+            new ConfigurableProperty(Properties.POOL_IDLE_TIMEOUT).setValue("30")
+                .setDescription("Pooled connections that have been idle longer than this are closed."),
+            new ConfigurableProperty(Properties.POOL_KEEP_ALIVE).setValue("60")
+                .setDescription("How long a connection is kept alive when the server doesn't specify a Keep-Alive timeout."),
+            new ConfigurableProperty(Properties.WORKER_THREADS).setValue("16")
+                .setDescription("The number of background threads used to retrieve pages from Kinetic Core in parallel."),
+            new ConfigurableProperty(Properties.SORT_MEMORY_BUDGET).setValue("64")
+                .setDescription("The amount of memory that search results can use while being sorted before they are spilled to temporary files (0 always sorts in memory)."),
+            new ConfigurableProperty(Properties.LIST_CACHE_TTL).setValue(String.valueOf(KineticCoreListCache.DEFAULT_TTL_SECONDS))
+                .setDescription("How long the kapp, form and datastore lists are cached before they are retrieved again."),
+            new ConfigurableProperty(Properties.LIST_CACHE_STRUCTURES).setValue("Kapps,Forms,Datastores")
+                .setDescription("A comma separated list of the structures (Kapps, Forms and/or Datastores) whose lists are cached."),
+            new ConfigurableProperty(Properties.REPLICA_STRUCTURES).setValue("")
+                .setDescription("A comma separated list of the structures (Users and/or Teams) that are searched from a local replica instead of being retrieved on every request. Updated users and teams can be out of date for up to the sync interval, and deleted users and teams and changed team memberships (which don't change the updatedAt) for up to the reconcile interval."),
+            new ConfigurableProperty(Properties.REPLICA_SYNC_INTERVAL).setValue(String.valueOf(KineticCoreReplica.DEFAULT_SYNC_INTERVAL))
+                .setDescription("How often the replicas retrieve the users and teams that have been updated since the last sync."),
+            new ConfigurableProperty(Properties.REPLICA_RECONCILE_INTERVAL).setValue(String.valueOf(KineticCoreReplica.DEFAULT_RECONCILE_INTERVAL))
+                .setDescription("How often the replicas are completely reloaded to pick up deleted users and teams and changed team memberships."),
+            new ConfigurableProperty(Properties.CONDITIONAL_CACHE_SIZE).setValue("32")
+                .setDescription("The amount of memory used to remember list responses so that they can be revalidated with conditional requests instead of being parsed again."),
+            new ConfigurableProperty(Properties.FILTER_PLAN_CACHE_SIZE).setValue(String.valueOf(KineticCoreFilterPlanCache.DEFAULT_MAXIMUM_SIZE))
+                .setDescription("The number of parsed user, team, kapp, form and datastore queries that are cached."),
+            new ConfigurableProperty(Properties.PAGE_SNAPSHOT_TTL).setValue(String.valueOf(KineticCoreResultSnapshots.DEFAULT_TTL_SECONDS))
+                .setDescription("How long the sorted user, team, kapp, form, datastore and partitioned submission results are kept after a page was last retrieved, so the next page is served from the same results."),
+            new ConfigurableProperty(Properties.PAGE_SNAPSHOT_SIZE).setValue(String.valueOf(KineticCoreResultSnapshots.DEFAULT_MAXIMUM_RECORDS))
+                .setDescription("The maximum number of records that are kept for paging through user, team, kapp, form, datastore and partitioned submission results."),
+            new ConfigurableProperty(Properties.RETRIEVE_CACHE_TTL).setValue(String.valueOf(KineticCoreRetrieveCache.DEFAULT_TTL_SECONDS))
+                .setDescription("How long a submission or record that was retrieved by its id is cached (0 doesn't cache them). A cached submission or record can be out of date for up to the TTL, even right after it was created or updated."),
+            new ConfigurableProperty(Properties.RETRIEVE_CACHE_NOT_FOUND_TTL).setValue(String.valueOf(KineticCoreRetrieveCache.DEFAULT_NOT_FOUND_TTL_SECONDS))
+                .setDescription("How long a submission or record id that wasn't found is remembered (0 doesn't remember them)."),
+            new ConfigurableProperty(Properties.RETRIEVE_CACHE_SIZE).setValue("16")
+                .setDescription("The amount of memory used to cache the submissions and records that were retrieved by their id."),
+            new ConfigurableProperty(Properties.RETRIEVE_CACHE_REVALIDATE).setValue("false")
+                .setDescription("Whether the updatedAt of a cached submission or record is checked (with a minimal request) before the cached submission or record is used. Without it a cached submission or record can be out of date for up to the Retrieve Cache TTL."),
+            new ConfigurableProperty(Properties.RESULT_CACHE_TTLS).setValue(KineticCoreResultCache.DEFAULT_TTLS)
+                .setDescription("A comma separated list of how long the count, retrieve and search results of each structure are cached (ie. Kapps=300), structures that aren't listed aren't cached. A cached kapp, form or datastore result can be out of date for up to its TTL plus the stale time plus the List Cache TTL, and a cached user or team result for up to its TTL plus the stale time plus the replica sync interval."),
+            new ConfigurableProperty(Properties.RESULT_CACHE_STALE).setValue(String.valueOf(KineticCoreResultCache.DEFAULT_STALE_SECONDS))
+                .setDescription("How long an expired result is still returned while it is retrieved again in the background."),
+            new ConfigurableProperty(Properties.RESULT_CACHE_SIZE).setValue("32")
+                .setDescription("The amount of memory used to cache count, retrieve and search results."),
+            new ConfigurableProperty(Properties.PAGE_TOKEN_TTL).setValue(String.valueOf(KineticCorePageTokens.DEFAULT_TTL_SECONDS))
+                .setDescription("How long the total and page tokens of a submission or record query that was counted or paged through are kept, so that a following count is answered from them and a search at an offset starts at the page.")
     );
 
     /**
@@ -107,31 +204,171 @@ public class KineticCoreAdapter implements BridgeAdapter {
         this.spaceUrl = properties.getValue(Properties.SPACE_URL);
         this.username = properties.getValue(Properties.USERNAME);
         this.password = properties.getValue(Properties.PASSWORD);
-        this.submissionHelper = new KineticCoreSubmissionHelper(this.username, this.password, this.spaceUrl);
-        this.userHelper = new KineticCoreUserHelper(this.username, this.password, this.spaceUrl);
-        this.teamHelper = new KineticCoreTeamHelper(this.username, this.password, this.spaceUrl);
-        this.kappHelper = new KineticCoreKappHelper(this.username, this.password, this.spaceUrl);
-        this.formHelper = new KineticCoreFormHelper(this.username, this.password, this.spaceUrl);
-        this.datastoreHelper = new KineticCoreDatastoreHelper(this.username, this.password, this.spaceUrl);
-        this.recordHelper = new KineticCoreRecordHelper(this.username, this.password, this.spaceUrl);
+
+        // Close down the client from a previous initialization before building a new one
+        destroy();
+        this.client = buildHttpClient();
+        this.executor = buildExecutor();
+        // The result cache refreshes on threads of its own, because its loaders wait on the workers
+        this.refreshExecutor = Executors.newFixedThreadPool(KineticCoreResultCache.REFRESH_THREADS, buildThreadFactory("refresh"));
+        this.fetcher = new KineticCoreHttpFetcher(this.client, this.username, this.password,
+            getLongProperty(Properties.CONDITIONAL_CACHE_SIZE, 32) * 1024 * 1024);
+        this.sorter = new KineticCoreExternalSorter(getLongProperty(Properties.SORT_MEMORY_BUDGET, 64) * 1024 * 1024, this.executor);
+        this.filterPlans = new KineticCoreFilterPlanCache(getLongProperty(Properties.FILTER_PLAN_CACHE_SIZE, KineticCoreFilterPlanCache.DEFAULT_MAXIMUM_SIZE));
+        this.snapshots = new KineticCoreResultSnapshots(this.sorter,
+            getLongProperty(Properties.PAGE_SNAPSHOT_TTL, KineticCoreResultSnapshots.DEFAULT_TTL_SECONDS),
+            getLongProperty(Properties.PAGE_SNAPSHOT_SIZE, KineticCoreResultSnapshots.DEFAULT_MAXIMUM_RECORDS));
+        this.retrieveCache = new KineticCoreRetrieveCache(this.fetcher,
+            getLongProperty(Properties.RETRIEVE_CACHE_TTL, KineticCoreRetrieveCache.DEFAULT_TTL_SECONDS),
+            getLongProperty(Properties.RETRIEVE_CACHE_NOT_FOUND_TTL, KineticCoreRetrieveCache.DEFAULT_NOT_FOUND_TTL_SECONDS),
+            getLongProperty(Properties.RETRIEVE_CACHE_SIZE, 16) * 1024 * 1024,
+            "true".equalsIgnoreCase(properties.getValue(Properties.RETRIEVE_CACHE_REVALIDATE)));
+        this.resultCache = new KineticCoreResultCache(KineticCoreResultCache.parseTtls(properties.getValue(Properties.RESULT_CACHE_TTLS)),
+            getLongProperty(Properties.RESULT_CACHE_STALE, KineticCoreResultCache.DEFAULT_STALE_SECONDS),
+            getLongProperty(Properties.RESULT_CACHE_SIZE, 32) * 1024 * 1024, this.refreshExecutor);
+        this.pageTokens = new KineticCorePageTokens(getLongProperty(Properties.PAGE_TOKEN_TTL, KineticCorePageTokens.DEFAULT_TTL_SECONDS),
+            KineticCorePageTokens.DEFAULT_MAXIMUM_SIZE);
+        this.listCache = new KineticCoreListCache(this.executor, getLongProperty(Properties.LIST_CACHE_TTL, KineticCoreListCache.DEFAULT_TTL_SECONDS));
+        List<String> cachedStructures = getListProperty(Properties.LIST_CACHE_STRUCTURES);
+        List<String> replicatedStructures = getListProperty(Properties.REPLICA_STRUCTURES);
+        long syncInterval = getLongProperty(Properties.REPLICA_SYNC_INTERVAL, KineticCoreReplica.DEFAULT_SYNC_INTERVAL);
+        long reconcileInterval = getLongProperty(Properties.REPLICA_RECONCILE_INTERVAL, KineticCoreReplica.DEFAULT_RECONCILE_INTERVAL);
+        // The replicas are loaded with every include that the user and team searches can use
+        if (replicatedStructures.contains("Users")) {
+            this.userReplica = new KineticCoreReplica("users", "username", this.spaceUrl+"/app/api/v1/users?include=attributes,profileAttributes,details",
+                this.fetcher, this.executor, syncInterval, reconcileInterval);
+        }
+        if (replicatedStructures.contains("Teams")) {
+            this.teamReplica = new KineticCoreReplica("teams", "slug", this.spaceUrl+"/app/api/v1/teams?include=attributes,memberships,details",
+                this.fetcher, this.executor, syncInterval, reconcileInterval);
+        }
+
+        this.submissionHelper = new KineticCoreSubmissionHelper(this.username, this.password, this.spaceUrl, this.client, this.fetcher, this.executor, this.sorter, this.retrieveCache, this.pageTokens, this.snapshots);
+        this.userHelper = new KineticCoreUserHelper(this.username, this.password, this.spaceUrl, this.client, this.fetcher, this.snapshots, this.userReplica, this.filterPlans);
+        this.teamHelper = new KineticCoreTeamHelper(this.username, this.password, this.spaceUrl, this.client, this.fetcher, this.snapshots, this.teamReplica, this.filterPlans);
+        this.kappHelper = new KineticCoreKappHelper(this.username, this.password, this.spaceUrl, this.client, this.fetcher, this.snapshots,
+            cachedStructures.contains("Kapps") ? this.listCache : null, this.filterPlans);
+        this.formHelper = new KineticCoreFormHelper(this.username, this.password, this.spaceUrl, this.client, this.fetcher, this.snapshots,
+            cachedStructures.contains("Forms") ? this.listCache : null, this.filterPlans);
+        this.datastoreHelper = new KineticCoreDatastoreHelper(this.username, this.password, this.spaceUrl, this.client, this.fetcher, this.snapshots,
+            cachedStructures.contains("Datastores") ? this.listCache : null, this.filterPlans);
+        this.recordHelper = new KineticCoreRecordHelper(this.username, this.password, this.spaceUrl, this.client, this.fetcher, this.executor, this.sorter, this.retrieveCache, this.pageTokens);
 
         // Testing the configuration values to make sure that they
         // correctly authenticate with Core
         testAuth();
     }
 
+    @Override
+    public void destroy() {
+        if (this.userReplica != null) {
+            this.userReplica.close();
+            this.userReplica = null;
+        }
+        if (this.teamReplica != null) {
+            this.teamReplica.close();
+            this.teamReplica = null;
+        }
+        if (this.refreshExecutor != null) {
+            this.refreshExecutor.shutdownNow();
+            this.refreshExecutor = null;
+        }
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+            this.executor = null;
+        }
+        if (this.client != null) {
+            try {
+                this.client.close();
+            } catch (IOException e) {
+                logger.warn("Unable to cleanly close the Kinetic Core http client.", e);
+            }
+            this.client = null;
+            this.connectionManager = null;
+            this.fetcher = null;
+        }
+        if (this.listCache != null) {
+            this.listCache.clear();
+            this.listCache = null;
+        }
+        this.filterPlans = null;
+        if (this.snapshots != null) {
+            this.snapshots.clear();
+            this.snapshots = null;
+        }
+        if (this.retrieveCache != null) {
+            this.retrieveCache.clear();
+            this.retrieveCache = null;
+        }
+        if (this.resultCache != null) {
+            this.resultCache.clear();
+            this.resultCache = null;
+        }
+        if (this.pageTokens != null) {
+            this.pageTokens.clear();
+            this.pageTokens = null;
+        }
+    }
+
+    /**
+     * Returns a snapshot of the connection pool that is shared by all of the helpers.
+     *
+     * @return
+     */
+    public Map<String,String> getConnectionPoolStats() {
+        Map<String,String> stats = new LinkedHashMap<String,String>();
+        if (this.connectionManager != null) {
+            PoolStats totalStats = this.connectionManager.getTotalStats();
+            stats.put("leased", String.valueOf(totalStats.getLeased()));
+            stats.put("available", String.valueOf(totalStats.getAvailable()));
+            stats.put("pending", String.valueOf(totalStats.getPending()));
+            stats.put("max", String.valueOf(totalStats.getMax()));
+        }
+        return stats;
+    }
+
+    /**
+     * Returns the number of requests that were sent to the Kinetic Core server, and the number of
+     * identical concurrent requests that shared one of them instead.
+     *
+     * @return
+     */
+    public Map<String,String> getRequestStats() {
+        return this.fetcher != null ? this.fetcher.getStats() : new LinkedHashMap<String,String>();
+    }
+
+    /**
+     * Returns the hit rate of the cache of parsed user, team, kapp, form and datastore queries.
+     *
+     * @return
+     */
+    public Map<String,String> getFilterPlanStats() {
+        return this.filterPlans != null ? this.filterPlans.getStats() : new LinkedHashMap<String,String>();
+    }
+
     /*---------------------------------------------------------------------------------------------
      * IMPLEMENTATION METHODS
      *-------------------------------------------------------------------------------------------*/
 
     @Override
-    public Count count(BridgeRequest request) throws BridgeError {
+    public Count count(final BridgeRequest request) throws BridgeError {
         request.setQuery(substituteQueryParameters(request));
 
         if (!VALID_STRUCTURES.contains(request.getStructure())) {
             throw new BridgeError("Invalid Structure: '" + request.getStructure() + "' is not a valid structure");
         }
 
+        // Results are cached for the structures that have a time to live
+        return this.resultCache.get("count", request, new KineticCoreResultCache.Loader<Count>() {
+            @Override
+            public Count load() throws BridgeError {
+                return countStructure(request);
+            }
+        });
+    }
+
+    // Calls the helper of the request's structure
+    private Count countStructure(BridgeRequest request) throws BridgeError {
         Count count;
         if (request.getStructure().equals("Submissions")) {
             count = this.submissionHelper.count(request);
@@ -155,7 +392,7 @@ public class KineticCoreAdapter implements BridgeAdapter {
     }
 
     @Override
-    public Record retrieve(BridgeRequest request) throws BridgeError {
+    public Record retrieve(final BridgeRequest request) throws BridgeError {
         request.setQuery(substituteQueryParameters(request));
 
         if (!VALID_STRUCTURES.contains(request.getStructure())) {
@@ -166,6 +403,17 @@ public class KineticCoreAdapter implements BridgeAdapter {
             throw new BridgeError("Invalid Request: No fields were included in the request.");
         }
 
+        // Results are cached for the structures that have a time to live
+        return this.resultCache.get("retrieve", request, new KineticCoreResultCache.Loader<Record>() {
+            @Override
+            public Record load() throws BridgeError {
+                return retrieveStructure(request);
+            }
+        });
+    }
+
+    // Calls the helper of the request's structure
+    private Record retrieveStructure(BridgeRequest request) throws BridgeError {
         Record record;
         if (request.getStructure().equals("Submissions")) {
             record = this.submissionHelper.retrieve(request);
@@ -189,7 +437,7 @@ public class KineticCoreAdapter implements BridgeAdapter {
     }
 
     @Override
-    public RecordList search(BridgeRequest request) throws BridgeError {
+    public RecordList search(final BridgeRequest request) throws BridgeError {
         request.setQuery(substituteQueryParameters(request));
 
         if (!VALID_STRUCTURES.contains(request.getStructure())) {
@@ -200,6 +448,17 @@ public class KineticCoreAdapter implements BridgeAdapter {
             throw new BridgeError("Invalid Request: No fields were included in the request.");
         }
 
+        // Results are cached for the structures that have a time to live
+        return this.resultCache.get("search", request, new KineticCoreResultCache.Loader<RecordList>() {
+            @Override
+            public RecordList load() throws BridgeError {
+                return searchStructure(request);
+            }
+        });
+    }
+
+    // Calls the helper of the request's structure
+    private RecordList searchStructure(BridgeRequest request) throws BridgeError {
         RecordList recordList;
         if (request.getStructure().equals("Submissions")) {
             recordList = this.submissionHelper.search(request);
@@ -236,10 +495,9 @@ public class KineticCoreAdapter implements BridgeAdapter {
         HttpGet get = new HttpGet(spaceUrl + "/app/api/v1/space");
         get = addAuthenticationHeader(get, this.username, this.password);
 
-        HttpClient client = HttpClients.createDefault();
         HttpResponse response;
         try {
-            response = client.execute(get);
+            response = this.client.execute(get);
             HttpEntity entity = response.getEntity();
             EntityUtils.consume(entity);
             if (response.getStatusLine().getStatusCode() == 401) {
@@ -254,6 +512,72 @@ public class KineticCoreAdapter implements BridgeAdapter {
         }
     }
 
+    private CloseableHttpClient buildHttpClient() throws BridgeError {
+        final long keepAlive = getLongProperty(Properties.POOL_KEEP_ALIVE, 60);
+        long idleTimeout = getLongProperty(Properties.POOL_IDLE_TIMEOUT, 30);
+
+        this.connectionManager = new PoolingHttpClientConnectionManager();
+        this.connectionManager.setMaxTotal((int)getLongProperty(Properties.POOL_MAX_TOTAL, 100));
+        this.connectionManager.setDefaultMaxPerRoute((int)getLongProperty(Properties.POOL_MAX_PER_ROUTE, 100));
+        // Check connections that have been sitting in the pool before reusing them
+        this.connectionManager.setValidateAfterInactivity(2000);
+
+        // Use the Keep-Alive header from Core when it is sent, otherwise fall back to the configured value
+        ConnectionKeepAliveStrategy keepAliveStrategy = new DefaultConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long duration = super.getKeepAliveDuration(response, context);
+                return duration > 0 ? duration : keepAlive * 1000;
+            }
+        };
+
+        return HttpClients.custom()
+            .setConnectionManager(this.connectionManager)
+            .setKeepAliveStrategy(keepAliveStrategy)
+            .evictExpiredConnections()
+            .evictIdleConnections(idleTimeout, TimeUnit.SECONDS)
+            .build();
+    }
+
+    private ScheduledExecutorService buildExecutor() throws BridgeError {
+        int threads = (int)getLongProperty(Properties.WORKER_THREADS, 16);
+        // A scheduled pool so that the replicas can be synced on the same worker threads
+        return Executors.newScheduledThreadPool(Math.max(1, threads), buildThreadFactory("worker"));
+    }
+
+    private ThreadFactory buildThreadFactory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger(1);
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "kinetic-core-bridge-" + name + "-" + threadNumber.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    private long getLongProperty(String name, long defaultValue) throws BridgeError {
+        String value = properties.getValue(name);
+        if (value == null || value.trim().isEmpty()) return defaultValue;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new BridgeError(String.format("Invalid Property: The value '%s' for '%s' is not a number.",value,name));
+        }
+    }
+
+    private List<String> getListProperty(String name) {
+        List<String> values = new ArrayList<String>();
+        String value = properties.getValue(name);
+        if (value != null) {
+            for (String item : value.split(",")) {
+                if (!item.trim().isEmpty()) values.add(item.trim());
+            }
+        }
+        return values;
+    }
+
     private HttpGet addAuthenticationHeader(HttpGet get, String username, String password) {
         String creds = username + ":" + password;
         byte[] basicAuthBytes = Base64.encodeBase64(creds.getBytes());
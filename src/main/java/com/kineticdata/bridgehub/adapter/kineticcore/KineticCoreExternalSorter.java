@@ -0,0 +1,479 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import com.kineticdata.bridgehub.adapter.Record;
+import static com.kineticdata.bridgehub.adapter.kineticcore.KineticCoreAdapter.logger;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import org.apache.http.Consts;
+import org.json.simple.JSONValue;
+
+/**
+ * Sorts records, spilling to temporary files when the records are larger than the memory budget.
+ * <p>
+ * Record lists that fit into the budget are sorted in memory. Larger lists are cut into runs that
+ * each fit into the budget, every run is sorted and written to a temporary file as length prefixed
+ * JSON, and the memory mapped runs are then merged into a memory mapped output file. The returned
+ * list decodes each record from the output file when it is read, so only the records that are
+ * being used are held on the heap.
+ * <p>
+ * The runs are unmapped and deleted as soon as they have been merged. The output file of a
+ * spilled list is unmapped and deleted when the list is released, otherwise it is only unmapped
+ * once the list has been garbage collected.
+ */
+public class KineticCoreExternalSorter {
+    /** The default amount of heap (in bytes) that records can take up before being spilled. */
+    public static final long DEFAULT_MEMORY_BUDGET = 64L * 1024 * 1024;
+    // A parsed record takes up several times the size of its JSON encoding on the heap
+    private static final int HEAP_OVERHEAD_FACTOR = 4;
+    // The number of records that are encoded to estimate the size of a record
+    private static final int SAMPLE_SIZE = 100;
+    // The maximum size of a single output file (memory mappings are limited to 2GB)
+    private static final long MAX_SEGMENT_SIZE = 1024L * 1024 * 1024;
+    // Selecting at most 1/TOP_HEAP_RATIO of the records uses a bounded heap instead of a full sort
+    private static final int TOP_HEAP_RATIO = 8;
+    // The number of records at which larger selections are sorted in chunks on the executor
+    private static final int PARALLEL_THRESHOLD = 10000;
+
+    private final long memoryBudget;
+    private final ExecutorService executor;
+
+    public KineticCoreExternalSorter() {
+        this(DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * @param memoryBudget the number of bytes the records can use before they are spilled to disk
+     *   (0 or less always sorts in memory)
+     */
+    public KineticCoreExternalSorter(long memoryBudget) {
+        this(memoryBudget, null);
+    }
+
+    /**
+     * @param memoryBudget the number of bytes the records can use before they are spilled to disk
+     *   (0 or less always sorts in memory)
+     * @param executor used to sort large selections in parallel chunks (null sorts them on the
+     *   calling thread)
+     */
+    public KineticCoreExternalSorter(long memoryBudget, ExecutorService executor) {
+        this.memoryBudget = memoryBudget;
+        this.executor = executor;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Sorts the records. The passed list is either sorted in place and returned, or (when it was
+     * spilled to disk) cleared and replaced by a file backed list.
+     *
+     * @param records
+     * @param comparator
+     * @return
+     * @throws BridgeError
+     */
+    public List<Record> sort(List<Record> records, Comparator<Record> comparator) throws BridgeError {
+        long recordSize = estimateRecordSize(records);
+        if (fitsInMemory(records, recordSize)) {
+            Collections.sort(records, comparator);
+            return records;
+        }
+        return spill(records, comparator, null, recordSize);
+    }
+
+    /**
+     * Sorts the records by their sort keys, which are extracted once per record when the records
+     * fit into the budget (otherwise the records are spilled and the keys are extracted on every
+     * comparison).
+     *
+     * @param records
+     * @param keys
+     * @return
+     * @throws BridgeError
+     */
+    public List<Record> sort(List<Record> records, KineticCoreSortKeys keys) throws BridgeError {
+        long recordSize = estimateRecordSize(records);
+        if (fitsInMemory(records, recordSize)) {
+            return keys.sort(records);
+        }
+        return spill(records, keys.comparator(), keys, recordSize);
+    }
+
+    /**
+     * Returns the first count records of the sorted records, in the same order as sorting all of
+     * the records would. Only the page that is returned has to be ordered: a small count is selected
+     * with a bounded heap, and a large count out of many records is selected by sorting chunks of
+     * the records in parallel and merging just the first count records of the chunks. The passed
+     * list may be sorted in place or cleared.
+     *
+     * @param records
+     * @param keys
+     * @param count
+     * @return
+     * @throws BridgeError
+     */
+    public List<Record> sort(List<Record> records, KineticCoreSortKeys keys, int count) throws BridgeError {
+        int size = records.size();
+        count = Math.max(0, Math.min(count, size));
+        if (count == size) return sort(records, keys);
+
+        // The selected records are held in memory, so fall back to a (spilling) full sort when they
+        // don't fit into the budget
+        long recordSize = estimateRecordSize(records);
+        if (!fitsInMemory(recordSize, count)) {
+            return first(sort(records, keys), count);
+        }
+        if (count <= size / TOP_HEAP_RATIO) {
+            return keys.top(records, count);
+        }
+        if (executor != null && size >= PARALLEL_THRESHOLD && fitsInMemory(recordSize, size)) {
+            return parallelTop(records, keys, count);
+        }
+        return first(sort(records, keys), count);
+    }
+
+    /**
+     * Releases the temporary files of records that were returned by sort, the records can't be
+     * read afterwards. Records that were sorted in memory are left alone.
+     *
+     * @param records
+     */
+    public static void release(List<Record> records) {
+        if (records instanceof SpilledRecordList) ((SpilledRecordList)records).close();
+    }
+
+    // The first count of the sorted records (a spilled list is kept releasable)
+    private static List<Record> first(List<Record> records, int count) {
+        if (records instanceof SpilledRecordList) return ((SpilledRecordList)records).truncate(count);
+        return records.subList(0, count);
+    }
+
+    // Sorts a chunk of the records per available processor on the executor and merges the first
+    // count records. The chunks are merged in list order, so records that compare as equal keep
+    // their order (like the stable full sort).
+    private List<Record> parallelTop(List<Record> records, final KineticCoreSortKeys keys, int count) throws BridgeError {
+        int chunks = Math.max(2, Runtime.getRuntime().availableProcessors());
+        int chunkSize = (records.size() + chunks - 1) / chunks;
+        List<Future<List<Record>>> futures = new ArrayList<Future<List<Record>>>();
+        try {
+            for (int i = 0; i < records.size(); i += chunkSize) {
+                final List<Record> chunk = new ArrayList<Record>(records.subList(i, Math.min(records.size(), i + chunkSize)));
+                futures.add(executor.submit(new Callable<List<Record>>() {
+                    @Override
+                    public List<Record> call() {
+                        return keys.sort(chunk);
+                    }
+                }));
+            }
+            List<List<Record>> sortedChunks = new ArrayList<List<Record>>();
+            for (Future<List<Record>> future : futures) {
+                sortedChunks.add(future.get());
+            }
+            return KineticCoreSortedMerge.merge(sortedChunks, keys.comparator(), 0, count);
+        } catch (RejectedExecutionException e) {
+            // The executor is shutting down, so sort on the calling thread
+            return first(sort(records, keys), count);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BridgeError("Interrupted while sorting the records.");
+        } catch (ExecutionException e) {
+            logger.error("Unable to sort the records", e.getCause());
+            throw new BridgeError("Unable to sort the records.");
+        } finally {
+            for (Future<List<Record>> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private boolean fitsInMemory(long recordSize, int count) {
+        return memoryBudget <= 0 || recordSize * count <= memoryBudget;
+    }
+
+    private boolean fitsInMemory(List<Record> records, long recordSize) {
+        return fitsInMemory(recordSize, records.size());
+    }
+
+    // Sorts the records in runs that are written to temporary files and merged (the runs are
+    // sorted by their keys when there are keys, because each run fits into the budget)
+    private List<Record> spill(List<Record> records, Comparator<Record> comparator, KineticCoreSortKeys keys,
+        long recordSize) throws BridgeError {
+        // Each run has to fit into the budget as well as into a single memory mapping
+        long runBudget = Math.min(memoryBudget, MAX_SEGMENT_SIZE * HEAP_OVERHEAD_FACTOR);
+        int runSize = (int)Math.max(1, Math.min(Integer.MAX_VALUE, runBudget / recordSize));
+        logger.debug(String.format("Sorting %d records (about %d bytes) in runs of %d records using temporary files",
+            records.size(), recordSize * records.size(), runSize));
+
+        List<File> runFiles = new ArrayList<File>();
+        List<MappedByteBuffer> runBuffers = new ArrayList<MappedByteBuffer>();
+        try {
+            for (int i = 0; i < records.size(); i += runSize) {
+                List<Record> run = new ArrayList<Record>(records.subList(i, Math.min(records.size(), i + runSize)));
+                if (keys != null) {
+                    keys.sort(run);
+                } else {
+                    Collections.sort(run, comparator);
+                }
+                runFiles.add(writeRun(run));
+            }
+            // Everything has been written to the runs, so the records can be released
+            records.clear();
+
+            List<RunIterator> runs = new ArrayList<RunIterator>();
+            for (File runFile : runFiles) {
+                MappedByteBuffer buffer = map(runFile);
+                runBuffers.add(buffer);
+                runs.add(new RunIterator(buffer));
+            }
+            return writeMerged(KineticCoreSortedMerge.iterator(runs, comparator));
+        } catch (IOException e) {
+            logger.error("Unable to sort the records using temporary files", e);
+            throw new BridgeError("Unable to sort the records using temporary files.");
+        } finally {
+            // The runs have been merged, so unmap them (a mapped file can't be deleted on Windows)
+            for (MappedByteBuffer buffer : runBuffers) {
+                unmap(buffer);
+            }
+            for (File runFile : runFiles) {
+                delete(runFile);
+            }
+        }
+    }
+
+    // Estimates the heap size of a record by encoding a sample of the records (0 when the records
+    // are always sorted in memory)
+    private long estimateRecordSize(List<Record> records) {
+        if (memoryBudget <= 0 || records.size() <= 1) return 0;
+        int samples = Math.min(SAMPLE_SIZE, records.size());
+        int step = records.size() / samples;
+        long bytes = 0;
+        for (int i = 0; i < samples; i++) {
+            bytes += encode(records.get(i * step)).length;
+        }
+        return Math.max(1, bytes / samples * HEAP_OVERHEAD_FACTOR);
+    }
+
+    private File writeRun(List<Record> run) throws IOException {
+        File file = File.createTempFile("kinetic-core-sort-", ".run");
+        boolean written = false;
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            try {
+                for (Record record : run) {
+                    byte[] bytes = encode(record);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+            } finally {
+                out.close();
+            }
+            written = true;
+            return file;
+        } finally {
+            // The caller only deletes the runs that were written
+            if (!written) delete(file);
+        }
+    }
+
+    // Writes the merged records into one or more output files and returns a list that reads the
+    // records out of the memory mapped files
+    private List<Record> writeMerged(Iterator<Record> merged) throws IOException {
+        List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+        // The output files that couldn't be deleted while they are mapped (on Windows)
+        List<File> files = new ArrayList<File>();
+        // The index of the first record in each of the segments
+        List<Integer> segmentStarts = new ArrayList<Integer>();
+        int[] positions = new int[1024];
+        int size = 0;
+
+        boolean written = false;
+        try {
+            while (merged.hasNext()) {
+                File file = File.createTempFile("kinetic-core-sort-", ".out");
+                files.add(file);
+                segmentStarts.add(size);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+                try {
+                    while (merged.hasNext() && out.size() < MAX_SEGMENT_SIZE) {
+                        byte[] bytes = encode(merged.next());
+                        if (size == positions.length) positions = Arrays.copyOf(positions, size * 2);
+                        positions[size++] = out.size();
+                        out.writeInt(bytes.length);
+                        out.write(bytes);
+                    }
+                } finally {
+                    out.close();
+                }
+                segments.add(map(file));
+                // The mapping keeps the data of a deleted file, except on Windows where the file
+                // is only deleted once it has been unmapped
+                if (file.delete()) files.remove(file);
+            }
+            written = true;
+        } finally {
+            // Unmaps and deletes the output files when the records couldn't be written
+            if (!written) new SpilledRecordList(segments, files, new int[0], new int[0]).close();
+        }
+
+        int[] starts = new int[segmentStarts.size()];
+        for (int i = 0; i < starts.length; i++) starts[i] = segmentStarts.get(i);
+        return new SpilledRecordList(segments, files, starts, Arrays.copyOf(positions, size));
+    }
+
+    private static MappedByteBuffer map(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            // The mapping stays valid after the channel has been closed
+            randomAccessFile.close();
+        }
+    }
+
+    private static void delete(File file) {
+        if (!file.delete()) logger.warn("Unable to delete the temporary file " + file);
+    }
+
+    // Unmaps the buffer right away instead of once it has been garbage collected, the buffer must
+    // not be read afterwards. Java 8 and earlier use the buffer's cleaner, later versions have to go
+    // through Unsafe.invokeCleaner. If neither is available the buffer is left to the garbage
+    // collector.
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) cleaner.getClass().getMethod("clean").invoke(cleaner);
+            return;
+        } catch (Exception e) {
+            // Not accessible on this version of Java, so try Unsafe
+        }
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(theUnsafe.get(null), buffer);
+        } catch (Exception e) {
+            logger.trace("Unable to unmap a temporary file, it is unmapped once it is garbage collected");
+        }
+    }
+
+    private static byte[] encode(Record record) {
+        return JSONValue.toJSONString(record.getRecord()).getBytes(Consts.UTF_8);
+    }
+
+    private static Record decode(MappedByteBuffer buffer, int position) {
+        int length = buffer.getInt(position);
+        byte[] bytes = new byte[length];
+        // Read through a duplicate so that the shared buffer's position is never changed
+        ByteBuffer view = buffer.duplicate();
+        view.position(position + 4);
+        view.get(bytes);
+        return new Record((Map)JSONValue.parse(new String(bytes, Consts.UTF_8)));
+    }
+
+    // Reads the records of a single sorted run in order
+    private static class RunIterator implements Iterator<Record> {
+        private final MappedByteBuffer buffer;
+        private int position = 0;
+
+        private RunIterator(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return position < buffer.limit();
+        }
+
+        @Override
+        public Record next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            Record record = decode(buffer, position);
+            position += 4 + buffer.getInt(position);
+            return record;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    // A read only list of the sorted records that decodes each record when it is retrieved. Reads
+    // and closing are synchronized, because reading an unmapped buffer crashes the JVM.
+    private static class SpilledRecordList extends AbstractList<Record> implements Closeable {
+        private final List<MappedByteBuffer> segments;
+        private final List<File> files;
+        private final int[] segmentStarts;
+        private final int[] positions;
+        private boolean closed;
+
+        private SpilledRecordList(List<MappedByteBuffer> segments, List<File> files, int[] segmentStarts, int[] positions) {
+            this.segments = segments;
+            this.files = files;
+            this.segmentStarts = segmentStarts;
+            this.positions = positions;
+        }
+
+        @Override
+        public synchronized Record get(int index) {
+            if (closed) throw new IllegalStateException("The sorted records have been released.");
+            if (index < 0 || index >= positions.length) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + positions.length);
+            }
+            int segment = Arrays.binarySearch(segmentStarts, index);
+            if (segment < 0) segment = -segment - 2;
+            return decode(segments.get(segment), positions[index]);
+        }
+
+        // Takes over the files with only the first count records (this list mustn't be used anymore)
+        private SpilledRecordList truncate(int count) {
+            return new SpilledRecordList(segments, files, segmentStarts, Arrays.copyOf(positions, count));
+        }
+
+        @Override
+        public synchronized void close() {
+            if (closed) return;
+            closed = true;
+            for (MappedByteBuffer segment : segments) {
+                unmap(segment);
+            }
+            for (File file : files) {
+                delete(file);
+            }
+        }
+
+        @Override
+        public int size() {
+            return positions.length;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Filters the users, teams, kapps, forms or datastores in memory using a filter plan.
+ * <p>
+ * Every item is checked against the conditions of the plan once, in order of the conditions'
+ * selectivity, and is rejected by the first condition that it doesn't match (the fields and
+ * values of a condition are tried until one of them matches). The matched items are returned in
+ * the order of the passed list.
+ */
+public class KineticCoreFilterEngine {
+
+    /** Returns the values of a field of an item (ie. the values of an attribute). */
+    public interface FieldResolver {
+        List getValues(JSONObject item, KineticCoreFilterPlan.Field field) throws BridgeError;
+    }
+
+    /**
+     * Returns the items that match all of the conditions of the plan.
+     *
+     * @param items
+     * @param plan
+     * @param resolver
+     * @return
+     * @throws BridgeError
+     */
+    public static JSONArray filter(List items, KineticCoreFilterPlan plan, FieldResolver resolver) throws BridgeError {
+        List<KineticCoreFilterPlan.Condition> conditions = plan.getConditions();
+        JSONArray matched = new JSONArray();
+        if (conditions.isEmpty()) {
+            matched.addAll(items);
+            return matched;
+        }
+        // An item that is in the list more than once is only returned once
+        Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<Object,Boolean>());
+        for (Object o : items) {
+            if (seen.add(o) && matches((JSONObject)o, conditions, resolver)) matched.add(o);
+        }
+        return matched;
+    }
+
+    private static boolean matches(JSONObject item, List<KineticCoreFilterPlan.Condition> conditions,
+        FieldResolver resolver) throws BridgeError {
+        for (KineticCoreFilterPlan.Condition condition : conditions) {
+            if (!matches(item, condition, resolver)) return false;
+        }
+        return true;
+    }
+
+    private static boolean matches(JSONObject item, KineticCoreFilterPlan.Condition condition,
+        FieldResolver resolver) throws BridgeError {
+        for (KineticCoreFilterPlan.Field field : condition.getFields()) {
+            List fieldValues = resolver.getValues(item, field);
+            // if field values is empty, check for an empty value
+            if (fieldValues.isEmpty()) {
+                if (condition.matchesEmpty()) return true;
+            } else {
+                for (Object fieldValue : fieldValues) {
+                    for (Object value : condition.getValues()) {
+                        if (matches(fieldValue, value)) return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean matches(Object fieldValue, Object value) {
+        return fieldValue == value || // Objects equal
+            fieldValue != null && value != null && (
+                value instanceof KineticCoreValueMatcher && ((KineticCoreValueMatcher)value).matches(fieldValue.toString()) || // fieldValue != null && value matches
+                value.equals(fieldValue) // fieldValue != null && values equal
+            );
+    }
+}
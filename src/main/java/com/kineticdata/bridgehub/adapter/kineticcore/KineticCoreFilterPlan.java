@@ -0,0 +1,209 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The parsed form of a query that is used to filter the users, teams, kapps, forms or datastores
+ * in memory, with the values already compiled into matchers.
+ * <p>
+ * Each field parameter of the query (and the pattern/fields pair) becomes a condition. An item
+ * has to match every condition, and matches a condition when one of the condition's fields has a
+ * value that matches one of the condition's values. The conditions are ordered by how selective
+ * they are estimated to be, so KineticCoreFilterEngine rejects most items with the first one.
+ * <p>
+ * Plans are shared between requests (see KineticCoreFilterPlanCache) and must not be modified.
+ */
+public class KineticCoreFilterPlan {
+    // Matches fields in the form of type[name] (ie. attributes[Manager])
+    private static final Pattern ATTRIBUTE_PATTERN = Pattern.compile("(.*?)\\[(.*?)\\]");
+
+    private final List<Condition> conditions;
+    private final Map<String,List<String>> operators;
+
+    private KineticCoreFilterPlan(Map<String[],Object[]> matchers, Map<String,List<String>> operators) {
+        List<Condition> conditions = new ArrayList<Condition>();
+        for (Map.Entry<String[],Object[]> matcher : matchers.entrySet()) {
+            conditions.add(new Condition(matcher.getKey(), matcher.getValue()));
+        }
+        // Stable, so conditions with the same estimate keep the order of the query
+        Collections.sort(conditions, new Comparator<Condition>() {
+            @Override
+            public int compare(Condition c1, Condition c2) {
+                return Double.compare(c1.selectivity, c2.selectivity);
+            }
+        });
+        this.conditions = Collections.unmodifiableList(conditions);
+        this.operators = operators;
+    }
+
+    /**
+     * Returns the conditions that an item has to match, the most selective condition first.
+     *
+     * @return
+     */
+    public List<Condition> getConditions() {
+        return conditions;
+    }
+
+    /**
+     * Returns the values of a query parameter that was parsed as an operator instead of a field.
+     *
+     * @param operator
+     * @return
+     */
+    public List<String> getOperatorValues(String operator) {
+        List<String> values = operators.get(operator);
+        return values == null ? Collections.<String>emptyList() : values;
+    }
+
+    /**
+     * Parses the query into a plan.
+     *
+     * @param query
+     * @param operatorNames the query parameters that aren't fields (ie. the team exclude parameter)
+     * @return
+     * @throws BridgeError if only one of the pattern and fields parameters was provided
+     */
+    public static KineticCoreFilterPlan parse(String query, Collection<String> operatorNames) throws BridgeError {
+        String[] queryParts = query.split("&");
+
+        Map<String[],Object[]> queryMatchers = new LinkedHashMap<String[],Object[]>();
+        Map<String,List<String>> operators = new LinkedHashMap<String,List<String>>();
+        // Variables used for OR query (pattern and fields)
+        String pattern = null;
+        String[] fields = null;
+        // Iterate through the query parts and create all the possible matchers to check against
+        // the results
+        for (String part : queryParts) {
+            String[] split = part.split("=");
+            String field = split[0].trim();
+            String value = split.length > 1 ? split[1].trim() : "";
+
+            Object[] matchers;
+            if (field.equals("pattern")) {
+                pattern = value;
+            } else if (field.equals("fields")) {
+                fields = value.split(",");
+            } else if (operatorNames.contains(field)) {
+                if (!operators.containsKey(field)) operators.put(field, new ArrayList<String>());
+                operators.get(field).add(value);
+            } else {
+                // If the field isn't 'pattern' or 'fields', add the field and appropriate values
+                // to the query matcher
+                if (value.equals("true") || value.equals("false")) {
+                    matchers = new Object[] { KineticCoreValueMatcher.compile(value), Boolean.valueOf(value) };
+                } else if (value.equals("null")) {
+                    matchers = new Object[] { null, KineticCoreValueMatcher.compile(value) };
+                } else if (value.isEmpty()) {
+                    matchers = new Object[] { "" };
+                } else {
+                    matchers = new Object[] { KineticCoreValueMatcher.compile(value) };
+                }
+                queryMatchers.put(new String[] { field }, matchers);
+            }
+        }
+
+        // If both query and pattern are not equal to null, add the list of fields and the
+        // pattern (as a contains matcher) to the queryMatchers map
+        if (pattern != null && fields != null) {
+            queryMatchers.put(fields,new Object[] { KineticCoreValueMatcher.contains(pattern) });
+        }
+        // If both pattern & fields are not equals to null AND both pattern & fields are not
+        // both null, that means that one is null and the other is not which is not an
+        // allowed query.
+        else if (pattern != null || fields != null) {
+            throw new BridgeError("The 'pattern' and 'fields' parameter must be provided together.  When the 'pattern' parameter "+
+                    "is provided the 'fields' parameter is required and when the 'fields' parameter is provided the 'pattern' parameter is required.");
+        }
+
+        return new KineticCoreFilterPlan(queryMatchers, operators);
+    }
+
+    /** A field that a condition is matched against. */
+    public static class Field {
+        private final String name;
+        private final String type;
+        private final String attribute;
+
+        private Field(String name) {
+            this.name = name;
+            // If the field is an attribute, save its type and name
+            Matcher m = ATTRIBUTE_PATTERN.matcher(name);
+            if (m.find()) {
+                this.type = m.group(1);
+                this.attribute = m.group(2);
+            } else {
+                this.type = null;
+                this.attribute = null;
+            }
+        }
+
+        public String getName() { return name; }
+        /** The type of attribute (ie. attributes, profileAttributes or memberships) or null. */
+        public String getType() { return type; }
+        /** The name of the attribute or null if the field isn't an attribute. */
+        public String getAttribute() { return attribute; }
+    }
+
+    /** A set of fields and the values that one of the fields has to match. */
+    public static class Condition {
+        private final Field[] fields;
+        // Value matchers, Booleans, null and "" (which matches a field without any values)
+        private final Object[] values;
+        private final boolean matchesEmpty;
+        // The estimated fraction of the items that match the condition
+        private final double selectivity;
+
+        private Condition(String[] fieldNames, Object[] values) {
+            this.fields = new Field[fieldNames.length];
+            for (int i = 0; i < fieldNames.length; i++) {
+                this.fields[i] = new Field(fieldNames[i]);
+            }
+            this.values = values;
+            this.matchesEmpty = Arrays.asList(values).contains("");
+            this.selectivity = estimateSelectivity(this.fields, values);
+        }
+
+        public Field[] getFields() { return fields; }
+        public Object[] getValues() { return values; }
+        public boolean matchesEmpty() { return matchesEmpty; }
+        public double getSelectivity() { return selectivity; }
+    }
+
+    // A rough guess of the fraction of the items that match the values: an exact value only
+    // matches a few items, a value with a leading wildcard is more likely to match than a prefix,
+    // and a condition over several fields matches when any of them does
+    private static double estimateSelectivity(Field[] fields, Object[] values) {
+        double valueSelectivity = 0;
+        for (Object value : values) {
+            if (value instanceof KineticCoreValueMatcher) {
+                KineticCoreValueMatcher.Kind kind = ((KineticCoreValueMatcher)value).getKind();
+                if (kind == KineticCoreValueMatcher.Kind.LITERAL) {
+                    valueSelectivity += 0.05;
+                } else if (kind == KineticCoreValueMatcher.Kind.PREFIX) {
+                    valueSelectivity += 0.2;
+                } else {
+                    valueSelectivity += 0.4;
+                }
+            } else {
+                valueSelectivity += 0.5;
+            }
+        }
+        double selectivity = Math.min(1, valueSelectivity * fields.length);
+        // Attribute values have to be looked up, so prefer plain fields when the guess is the same
+        for (Field field : fields) {
+            if (field.attribute != null) selectivity += 0.001;
+        }
+        return selectivity;
+    }
+}
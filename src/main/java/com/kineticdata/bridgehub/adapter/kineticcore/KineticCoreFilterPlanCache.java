@@ -0,0 +1,107 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Caches the filter plans of the most recently used queries, so a query that is repeated doesn't
+ * have to be parsed (and have its patterns compiled) again.
+ * <p>
+ * Queries are keyed by their parameters sorted by name, so the same parameters in a different
+ * order share a plan. The least recently used plans are evicted once the cache is full.
+ */
+public class KineticCoreFilterPlanCache {
+    /** The default maximum number of plans that are cached. */
+    public static final long DEFAULT_MAXIMUM_SIZE = 1000;
+
+    private final Cache<String,KineticCoreFilterPlan> plans;
+
+    public KineticCoreFilterPlanCache() {
+        this(DEFAULT_MAXIMUM_SIZE);
+    }
+
+    public KineticCoreFilterPlanCache(long maximumSize) {
+        this.plans = CacheBuilder.newBuilder()
+            .maximumSize(Math.max(0, maximumSize))
+            .recordStats()
+            .build();
+    }
+
+    /**
+     * Returns the plan of a query that doesn't have any operators.
+     *
+     * @param query
+     * @return
+     * @throws BridgeError
+     */
+    public KineticCoreFilterPlan get(String query) throws BridgeError {
+        return get(query, Collections.<String>emptyList());
+    }
+
+    /**
+     * Returns the plan of the query, parsing the query when it isn't cached.
+     *
+     * @param query
+     * @param operatorNames the query parameters that aren't fields
+     * @return
+     * @throws BridgeError
+     */
+    public KineticCoreFilterPlan get(String query, Collection<String> operatorNames) throws BridgeError {
+        // The same query is parsed differently when it is used with different operators
+        String key = operatorNames.isEmpty() ? normalize(query) : operatorNames + normalize(query);
+        KineticCoreFilterPlan plan = plans.getIfPresent(key);
+        if (plan == null) {
+            plan = KineticCoreFilterPlan.parse(query, operatorNames);
+            plans.put(key, plan);
+        }
+        return plan;
+    }
+
+    /**
+     * Returns the number of lookups that were (and weren't) served from the cache.
+     *
+     * @return
+     */
+    public Map<String,String> getStats() {
+        CacheStats stats = plans.stats();
+        Map<String,String> result = new LinkedHashMap<String,String>();
+        result.put("hits", String.valueOf(stats.hitCount()));
+        result.put("misses", String.valueOf(stats.missCount()));
+        result.put("hitRate", String.format("%.3f", stats.hitRate()));
+        result.put("evictions", String.valueOf(stats.evictionCount()));
+        result.put("size", String.valueOf(plans.size()));
+        return result;
+    }
+
+    // Trims the query parameters and sorts them by name. The sort is stable, so parameters with the
+    // same name (where the last pattern or fields parameter wins) keep their order.
+    static String normalize(String query) {
+        String[] parameters = query.split("&");
+        for (int i = 0; i < parameters.length; i++) {
+            parameters[i] = parameters[i].trim();
+        }
+        Arrays.sort(parameters, PARAMETER_NAME_ORDER);
+        return StringUtils.join(parameters, "&");
+    }
+
+    private static final Comparator<String> PARAMETER_NAME_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String p1, String p2) {
+            return name(p1).compareTo(name(p2));
+        }
+
+        private String name(String parameter) {
+            int index = parameter.indexOf('=');
+            return (index == -1 ? parameter : parameter.substring(0, index)).trim();
+        }
+    };
+}
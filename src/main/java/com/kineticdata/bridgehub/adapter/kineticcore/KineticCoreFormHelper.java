@@ -11,7 +11,6 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
@@ -22,7 +21,6 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang.StringUtils;
-import org.apache.commons.lang.builder.CompareToBuilder;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
@@ -40,18 +38,37 @@ public class KineticCoreFormHelper {
     private final String username;
     private final String password;
     private final String spaceUrl;
+    private final HttpClient client;
+    private final KineticCoreHttpFetcher fetcher;
+    private final KineticCoreResultSnapshots snapshots;
+    private final KineticCoreListCache listCache;
+    private final KineticCoreFilterPlanCache filterPlans;
     private final Pattern attributePattern;
 
     public KineticCoreFormHelper(String username, String password, String spaceUrl) {
+        this(username, password, spaceUrl, HttpClients.createDefault(), null, new KineticCoreResultSnapshots(), null, null);
+    }
+
+    public KineticCoreFormHelper(String username, String password, String spaceUrl, HttpClient client, KineticCoreHttpFetcher fetcher,
+        KineticCoreResultSnapshots snapshots, KineticCoreListCache listCache, KineticCoreFilterPlanCache filterPlans) {
         this.username = username;
         this.password = password;
         this.spaceUrl = spaceUrl;
+        this.client = client;
+        this.fetcher = fetcher != null ? fetcher : new KineticCoreHttpFetcher(client, username, password);
+        this.snapshots = snapshots;
+        this.listCache = listCache;
+        this.filterPlans = filterPlans != null ? filterPlans : new KineticCoreFilterPlanCache();
         this.attributePattern = Pattern.compile("(.*?)\\[(.*?)\\]");
     }
 
     public static final List<String> DETAIL_FIELDS = Arrays.asList(new String[] {
         "createdAt","createdBy","notes","submissionLabelExpression","updatedAt","updatedBy"
     });
+    // The properties that are only returned when they are included
+    private static final List<String> INCLUDE_FIELDS = Arrays.asList(new String[] {
+        "attributes"
+    });
 
     public Count count(BridgeRequest request) throws BridgeError {
         JSONArray forms = searchForms(request);
@@ -78,20 +95,23 @@ public class KineticCoreFormHelper {
         }
 
         JSONObject form;
-        String url = String.format("%s/app/api/v1/kapps/%s/forms/%s?include=details,attributes",this.spaceUrl,kappSlug,formSlug);
+        String url = String.format("%s/app/api/v1/kapps/%s/forms/%s",this.spaceUrl,kappSlug,formSlug);
+        // Only include the properties that the fields need
+        String include = KineticCoreIncludePlanner.toParameter(KineticCoreIncludePlanner.plan(request.getFields(), INCLUDE_FIELDS, DETAIL_FIELDS));
+        if (include != null) url += "?"+include;
 
-        HttpClient client = HttpClients.createDefault();
         HttpResponse response;
         HttpGet get = new HttpGet(url);
         get = addAuthenticationHeader(get, this.username, this.password);
 
         String output = "";
         try {
-            response = client.execute(get);
+            response = this.client.execute(get);
 
             logger.trace("Request response code: " + response.getStatusLine().getStatusCode());
             HttpEntity entity = response.getEntity();
             if (response.getStatusLine().getStatusCode() == 404) {
+                EntityUtils.consume(entity);
                 throw new BridgeError(String.format("Not Found: A form with the slug '%s' cannot be found in the kapp '%s'.",formSlug,kappSlug));
             }
             output = EntityUtils.toString(entity);
@@ -107,19 +127,30 @@ public class KineticCoreFormHelper {
         return createRecordFromForm(request.getFields(), form);
     }
 
-    public RecordList search(BridgeRequest request) throws BridgeError {
+    public RecordList search(final BridgeRequest request) throws BridgeError {
+        return this.snapshots.search(request, new KineticCoreResultSnapshots.Loader() {
+            @Override
+            public KineticCoreResultSnapshots.Result load() throws BridgeError {
+                return searchResult(request);
+            }
+        });
+    }
+
+    // Searches the forms and creates their (unsorted) records and the keys to sort them by
+    private KineticCoreResultSnapshots.Result searchResult(BridgeRequest request) throws BridgeError {
         JSONArray forms = searchForms(request);
 
         List<Record> records = createRecordsFromForms(request.getFields(), forms);
 
-        // Sort the records because they are always returned on one page
+        // The records are sorted when they are paged, because they are always returned on one page
+        KineticCoreSortKeys keys;
         if (request.getMetadata("order") == null) {
             // name,type,desc assumes name ASC,type ASC,desc ASC
             Map<String,String> defaultOrder = new LinkedHashMap<String,String>();
             for (String field : request.getFields()) {
                 defaultOrder.put(field, "ASC");
             }
-            records = sortRecords(defaultOrder, records);
+            keys = new KineticCoreSortKeys(defaultOrder, true);
         } else {
           // Creates a map out of order metadata
           Map<String,String> orderParse = BridgeUtils.parseOrder(request.getMetadata("order"));
@@ -134,27 +165,10 @@ public class KineticCoreFormHelper {
                   break;
               }
           }
-          records = sortRecords(orderParse, records);
+          keys = new KineticCoreSortKeys(orderParse, true);
         }
 
-        // Add pagination to the returned record list
-        int pageToken = request.getMetadata("pageToken") == null || request.getMetadata("pageToken").isEmpty() ?
-                0 : Integer.parseInt(new String(Base64.decodeBase64(request.getMetadata("pageToken"))));
-
-        int limit = request.getMetadata("limit") == null || request.getMetadata("limit").isEmpty() ?
-                records.size()-pageToken : Integer.parseInt(request.getMetadata("limit"));
-
-        String nextPageToken = null;
-        if (pageToken+limit < records.size()) nextPageToken = Base64.encodeBase64String(String.valueOf(pageToken+limit).getBytes());
-
-        records = records.subList(pageToken, pageToken+limit > records.size() ? records.size() : pageToken+limit);
-
-        Map<String,String> metadata = new LinkedHashMap<String,String>();
-        metadata.put("size",String.valueOf(limit));
-        metadata.put("pageToken",nextPageToken);
-
-        // Return the response
-        return new RecordList(request.getFields(), records, metadata);
+        return new KineticCoreResultSnapshots.Result(records, keys);
     }
 
     /*---------------------------------------------------------------------------------------------
@@ -220,10 +234,6 @@ public class KineticCoreFormHelper {
 
     // Filter forms was made protected for the purposes of testing
     private JSONArray searchForms(BridgeRequest request) throws BridgeError {
-        // Initializing the Http Objects
-        HttpClient client = HttpClients.createDefault();
-        HttpResponse response;
-
         // Based on the passed fields figure out if an ?include needs to be in the Url
         List<String> includes = new ArrayList<String>();
 
@@ -262,30 +272,20 @@ public class KineticCoreFormHelper {
 
         String url = this.spaceUrl+"/app/api/v1/kapps/"+kappSlug+"/forms";
         if (!includes.isEmpty()) url += "?include="+StringUtils.join(includes,",");
-        HttpGet get = new HttpGet(url);
-        get = addAuthenticationHeader(get, this.username, this.password);
 
-        String output = "";
-        try {
-            response = client.execute(get);
-
-            HttpEntity entity = response.getEntity();
-            output = EntityUtils.toString(entity);
-            logger.trace("Request response code: " + response.getStatusLine().getStatusCode());
-        }
-        catch (IOException e) {
-            logger.error(e.getMessage());
-            throw new BridgeError("Unable to make a connection to the Kinetic Core server.");
-        }
-
-        logger.trace("Starting to parse the JSON Response");
-        JSONObject json = (JSONObject)JSONValue.parse(output);
-
-        if (response.getStatusLine().getStatusCode() != 200) {
-            throw new BridgeError("Bridge Error: " + json.toJSONString());
+        // The list rarely changes, so use the cached list when caching is enabled for forms
+        JSONArray forms;
+        if (this.listCache == null) {
+            forms = fetchForms(url);
+        } else {
+            final String listUrl = url;
+            forms = this.listCache.get(url, new KineticCoreListCache.Loader() {
+                @Override
+                public JSONArray load() throws BridgeError {
+                    return fetchForms(listUrl);
+                }
+            });
         }
-
-        JSONArray forms = (JSONArray)json.get("forms");
         String query = request.getQuery();
         if (!query.isEmpty()) {
             forms = filterForms(forms, request.getQuery());
@@ -294,15 +294,12 @@ public class KineticCoreFormHelper {
         return forms;
     }
 
-    private Pattern getPatternFromValue(String value) {
-        // Escape regex characters from value
-        String[] parts = value.split("(?<!\\\\)%");
-        for (int i = 0; i<parts.length; i++) {
-            if (!parts[i].isEmpty()) parts[i] = Pattern.quote(parts[i].replaceAll("\\\\%","%"));
-        }
-        String regex = StringUtils.join(parts,".*?");
-        if (!value.isEmpty() && value.substring(value.length() - 1).equals("%")) regex += ".*?";
-        return Pattern.compile("^"+regex+"$",Pattern.CASE_INSENSITIVE);
+    // Retrieves the forms list from the passed url
+    private JSONArray fetchForms(String url) throws BridgeError {
+        JSONObject json = this.fetcher.getJson(url);
+
+        JSONArray forms = (JSONArray)json.get("forms");
+        return forms;
     }
 
     private List getAttributeValues(String type, String name, JSONObject form) throws BridgeError {
@@ -317,134 +314,17 @@ public class KineticCoreFormHelper {
         return new ArrayList(); // Return an empty list if no values were found
     }
 
-    protected final JSONArray filterForms(JSONArray forms, String query) throws BridgeError {
-        String[] queryParts = query.split("&");
-
-        Map<String[],Object[]> queryMatchers = new HashMap<String[],Object[]>();
-        // Variables used for OR query (pattern and fields)
-        String pattern = null;
-        String[] fields = null;
-        // Iterate through the query parts and create all the possible matchers to check against
-        // the user results
-        for (String part : queryParts) {
-            String[] split = part.split("=");
-            String field = split[0].trim();
-            String value = split.length > 1 ? split[1].trim() : "";
-
-            Object[] matchers;
-            if (field.equals("pattern")) {
-                pattern = value;
-            } else if (field.equals("fields")) {
-                fields = value.split(",");
-            } else {
-                // If the field isn't 'pattern' or 'fields', add the field and appropriate values
-                // to the query matcher
-                if (value.equals("true") || value.equals("false")) {
-                    matchers = new Object[] { getPatternFromValue(value), Boolean.valueOf(value) };
-                } else if (value.equals("null")) {
-                    matchers = new Object[] { null, getPatternFromValue(value) };
-                } else if (value.isEmpty()) {
-                    matchers = new Object[] { "" };
-                } else {
-                    matchers = new Object[] { getPatternFromValue(value) };
-                }
-                queryMatchers.put(new String[] { field }, matchers);
-            }
-        }
-
-        // If both query and pattern are not equal to null, add the list of fields and the
-        // pattern (compiled into a regex Pattern object) to the queryMatchers map
-        if (pattern != null && fields != null) {
-            queryMatchers.put(fields,new Object[] { Pattern.compile(".*"+Pattern.quote(pattern)+".*",Pattern.CASE_INSENSITIVE) });
-        }
-        // If both pattern & fields are not equals to null AND both pattern & fields are not
-        // both null, that means that one is null and the other is not which is not an
-        // allowed query.
-        else if (pattern != null || fields != null) {
-            throw new BridgeError("The 'pattern' and 'fields' parameter must be provided together.  When the 'pattern' parameter "+
-                    "is provided the 'fields' parameter is required and when the 'fields' parameter is provided the 'pattern' parameter is required.");
-        }
-
-        // Start with a full list of users and then delete from the list when they don't match
-        // a qualification. Will be left with a list of values that match all qualifications.
-        JSONArray matchedForms = forms;
-        for (Map.Entry<String[],Object[]> entry : queryMatchers.entrySet()) {
-            JSONArray matchedFormsEntry = new JSONArray();
-            for (String field : entry.getKey()) {
-                // If passed in field is an attribute, save its attributeName
-                String attributeType = null;
-                String attributeName = null;
-                Matcher m = this.attributePattern.matcher(field);
-                if (m.find()) {
-                    attributeType = m.group(1);
-                    attributeName = m.group(2);
-                }
-
-                for (Object o : matchedForms) {
-                    JSONObject form = (JSONObject)o;
-                    // Check if the object matches the field qualification if it hasn't already been
-                    // successfully matched
-                    if (!matchedFormsEntry.contains(o)) {
-                        // Get the value for the field
-                        List fieldValues = attributeName != null ? getAttributeValues(attributeType,attributeName,form) : Arrays.asList(new Object[] { form.get(field) });
-
-                        // if field values is empty, check for an empty value
-                        if (fieldValues.isEmpty()) {
-                            for (Object value : entry.getValue()) {
-                                if (value.equals("")) matchedFormsEntry.add(o);
-                            }
-                        } else {
-                            for (Object fieldValue : fieldValues) {
-                                for (Object value : entry.getValue()) {
-                                    if (fieldValue == value || // Objects equal
-                                       fieldValue != null && value != null && (
-                                           value.getClass() == Pattern.class && ((Pattern)value).matcher(fieldValue.toString()).matches() || // fieldValue != null && Pattern matches
-                                           value.equals(fieldValue) // fieldValue != null && values equal
-                                       )
-                                    ) {
-                                        matchedFormsEntry.add(o);
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
-            }
-            matchedForms = (JSONArray)matchedFormsEntry;
+    // Resolves the (attribute) values of the fields that the forms are filtered by
+    private final KineticCoreFilterEngine.FieldResolver fieldResolver = new KineticCoreFilterEngine.FieldResolver() {
+        @Override
+        public List getValues(JSONObject item, KineticCoreFilterPlan.Field field) throws BridgeError {
+            return field.getAttribute() != null ? getAttributeValues(field.getType(), field.getAttribute(), item)
+                : Arrays.asList(new Object[] { item.get(field.getName()) });
         }
+    };
 
-        return matchedForms;
-    }
-
-    protected List<Record> sortRecords(final Map<String,String> fieldParser, List<Record> records) throws BridgeError {
-        Collections.sort(records, new Comparator<Record>() {
-            @Override
-            public int compare(Record r1, Record r2){
-                CompareToBuilder comparator = new CompareToBuilder();
-
-                for (Map.Entry<String,String> entry : fieldParser.entrySet()) {
-                    String field = entry.getKey();
-                    String order = entry.getValue();
-
-                    Object o1 = r1.getValue(field);
-                    Object o2 = r2.getValue(field);
-                    // If the object is a type that cannot be sorted, continue to the next field
-                    if (o1 instanceof List) { continue; }
-                    if (o2 instanceof List) { continue; }
-                    // If the object is a string, lowercase the string so that capitalization doesn't factor into the comparison
-                    if (o1 != null && o1.getClass() == String.class) {o1 = o1.toString().toLowerCase();}
-                    if (o2 != null && o2.getClass() == String.class) {o2 = o2.toString().toLowerCase();}
-
-                    if (order.equals("DESC")) {
-                        comparator.append(o2,o1);
-                    } else {
-                        comparator.append(o1,o2);
-                    }
-                }
-
-                return comparator.toComparison();
-            }
-        });
-        return records;
+    protected final JSONArray filterForms(JSONArray forms, String query) throws BridgeError {
+        // The parsed query (with the compiled patterns) is cached
+        return KineticCoreFilterEngine.filter(forms, this.filterPlans.get(query), this.fieldResolver);
     }
 }
@@ -0,0 +1,286 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.hash.Hashing;
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import static com.kineticdata.bridgehub.adapter.kineticcore.KineticCoreAdapter.logger;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.http.Consts;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+/**
+ * Retrieves JSON from the Kinetic Core api, coalescing identical concurrent requests and using
+ * conditional requests.
+ * <p>
+ * Concurrent requests for the same url share a single in flight request to the server and its
+ * parsed response (single flight).
+ * <p>
+ * The validators (ETag and Last-Modified) of every successful response are remembered along with
+ * the parsed response, and sent back as If-None-Match / If-Modified-Since the next time the same
+ * url is requested. A 304 response returns the previously parsed response. When Core doesn't send
+ * any validators the response body is hashed instead, so an unchanged body returns the previously
+ * parsed response without being parsed again.
+ * <p>
+ * Because the parsed responses are shared between requests they must not be modified. The
+ * remembered responses are bounded by their approximate size in memory (the body and its parsed
+ * JSON), the least recently used responses are evicted first.
+ */
+public class KineticCoreHttpFetcher {
+    /** The default maximum size (in bytes) of the responses that are remembered. */
+    public static final long DEFAULT_CACHE_SIZE = 32L * 1024 * 1024;
+    // The approximate size (in bytes) of a remembered response besides its body and parsed JSON
+    private static final int ENTRY_OVERHEAD = 256;
+
+    private final HttpClient client;
+    private final String username;
+    private final String password;
+    private final Cache<String,CachedResponse> responses;
+    private final ConcurrentMap<String,FutureTask<Response>> inFlightRequests = new ConcurrentHashMap<String,FutureTask<Response>>();
+    private final AtomicLong issuedRequests = new AtomicLong();
+    private final AtomicLong coalescedRequests = new AtomicLong();
+
+    public KineticCoreHttpFetcher(HttpClient client, String username, String password) {
+        this(client, username, password, DEFAULT_CACHE_SIZE);
+    }
+
+    public KineticCoreHttpFetcher(HttpClient client, String username, String password, long cacheSize) {
+        this.client = client;
+        this.username = username;
+        this.password = password;
+        // A single segment, otherwise the maximum is split between the segments and a response
+        // larger than a segment's share would never be remembered
+        this.responses = CacheBuilder.newBuilder()
+            .concurrencyLevel(1)
+            .maximumWeight(Math.max(0, cacheSize))
+            .weigher(new Weigher<String,CachedResponse>() {
+                @Override
+                public int weigh(String url, CachedResponse response) {
+                    return response.size;
+                }
+            })
+            .build();
+    }
+
+    /**
+     * Retrieves the url and returns the parsed JSON response, revalidating the previous response
+     * for the url if there is one.
+     *
+     * @param url
+     * @return
+     * @throws BridgeError if the response isn't a 200
+     */
+    public JSONObject getJson(String url) throws BridgeError {
+        Response response = fetch(url, true);
+        if (response.getStatusCode() != HttpStatus.SC_OK) {
+            throw new BridgeError("Bridge Error: " + (response.getJson() == null ? response.getBody() : response.getJson().toJSONString()));
+        }
+        return response.getJson();
+    }
+
+    /**
+     * Retrieves the url. Concurrent calls for the same url share a single request to the server
+     * (and the parsed response). When revalidate is true the response is remembered so that the
+     * next request for the url can be a conditional request.
+     *
+     * @param url
+     * @param revalidate
+     * @return
+     * @throws BridgeError
+     */
+    public Response fetch(final String url, final boolean revalidate) throws BridgeError {
+        FutureTask<Response> task = new FutureTask<Response>(new Callable<Response>() {
+            @Override
+            public Response call() throws Exception {
+                return execute(url, revalidate);
+            }
+        });
+        FutureTask<Response> inFlight = this.inFlightRequests.putIfAbsent(url, task);
+        if (inFlight == null) {
+            this.issuedRequests.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                this.inFlightRequests.remove(url, task);
+            }
+            inFlight = task;
+        } else {
+            this.coalescedRequests.incrementAndGet();
+            logger.trace("Joining the request that is already in flight for " + url);
+        }
+
+        try {
+            return inFlight.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BridgeError("Interrupted while waiting for a response from the Kinetic Core server.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof BridgeError) throw (BridgeError)e.getCause();
+            logger.error("Unexpected error while retrieving " + url, e.getCause());
+            throw new BridgeError("Unexpected error while retrieving data from the Kinetic Core server.");
+        }
+    }
+
+    /**
+     * Returns the number of requests that were sent to the server and the number of requests that
+     * joined a request that was already in flight.
+     *
+     * @return
+     */
+    public Map<String,String> getStats() {
+        Map<String,String> stats = new LinkedHashMap<String,String>();
+        stats.put("issued", String.valueOf(this.issuedRequests.get()));
+        stats.put("coalesced", String.valueOf(this.coalescedRequests.get()));
+        stats.put("inFlight", String.valueOf(this.inFlightRequests.size()));
+        return stats;
+    }
+
+    private Response execute(String url, boolean revalidate) throws BridgeError {
+        HttpGet get = new HttpGet(url);
+        String creds = this.username + ":" + this.password;
+        get.setHeader("Authorization", "Basic " + new String(Base64.encodeBase64(creds.getBytes())));
+
+        CachedResponse cached = revalidate ? this.responses.getIfPresent(url) : null;
+        if (cached != null) {
+            if (cached.etag != null) get.setHeader("If-None-Match", cached.etag);
+            if (cached.lastModified != null) get.setHeader("If-Modified-Since", cached.lastModified);
+        }
+
+        HttpResponse response;
+        byte[] body;
+        Charset charset;
+        try {
+            response = this.client.execute(get);
+            HttpEntity entity = response.getEntity();
+            logger.trace("Request response code: " + response.getStatusLine().getStatusCode());
+
+            if (response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED && cached != null) {
+                EntityUtils.consume(entity);
+                logger.trace("Not modified, using the previous response for " + url);
+                return cached.response;
+            }
+            body = entity == null ? new byte[0] : EntityUtils.toByteArray(entity);
+            charset = entity == null ? null : ContentType.getOrDefault(entity).getCharset();
+        }
+        catch (IOException e) {
+            logger.error(e.getMessage());
+            throw new BridgeError("Unable to make a connection to the Kinetic Core server.");
+        }
+
+        int statusCode = response.getStatusLine().getStatusCode();
+        String etag = getHeader(response, "ETag");
+        String lastModified = getHeader(response, "Last-Modified");
+        String hash = revalidate ? Hashing.md5().hashBytes(body).toString() : null;
+
+        // The body is the same as last time, so skip parsing it again
+        if (statusCode == HttpStatus.SC_OK && cached != null && hash.equals(cached.hash)) {
+            logger.trace("Unchanged response body, using the previous response for " + url);
+            if (!equals(etag, cached.etag) || !equals(lastModified, cached.lastModified)) {
+                this.responses.put(url, new CachedResponse(cached.response, etag, lastModified, hash, cached.size));
+            }
+            return cached.response;
+        }
+
+        String output = new String(body, charset == null ? Consts.UTF_8 : charset);
+        Response result = new Response(statusCode, output);
+
+        if (revalidate && statusCode == HttpStatus.SC_OK) {
+            this.responses.put(url, new CachedResponse(result, etag, lastModified, hash, weigh(result)));
+        }
+        return result;
+    }
+
+    // The approximate amount of memory (in bytes) that a remembered response holds on to. Responses
+    // are only remembered for getJson, which parses them right away, so the parsed JSON is included.
+    private static int weigh(Response response) {
+        long size = ENTRY_OVERHEAD + KineticCoreResultCache.estimateSize(response.getBody())
+            + KineticCoreResultCache.estimateSize(response.getJson());
+        return (int)Math.min(Integer.MAX_VALUE, size);
+    }
+
+    private static String getHeader(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header == null ? null : header.getValue();
+    }
+
+    private static boolean equals(String s1, String s2) {
+        return s1 == null ? s2 == null : s1.equals(s2);
+    }
+
+    /**
+     * The status code and the body of a response. The body is parsed the first time that its JSON
+     * is needed, and the parsed JSON is shared (so it must not be modified).
+     */
+    public static class Response {
+        private final int statusCode;
+        private final String body;
+        private JSONObject json;
+        private boolean parsed;
+
+        private Response(int statusCode, String body) {
+            this.statusCode = statusCode;
+            this.body = body;
+        }
+
+        public int getStatusCode() { return statusCode; }
+        public String getBody() { return body; }
+
+        /** Returns the parsed body, or null if the body isn't a JSON object. */
+        public synchronized JSONObject getJson() {
+            if (!parsed) {
+                logger.trace("Starting to parse the JSON Response");
+                Object value = JSONValue.parse(body);
+                json = value instanceof JSONObject ? (JSONObject)value : null;
+                parsed = true;
+            }
+            return json;
+        }
+
+        /**
+         * Returns the body parsed with the projection (which isn't shared), or the parsed body
+         * when the request wasn't successful or there isn't a projection.
+         *
+         * @param projection
+         * @return
+         */
+        public JSONObject getJson(KineticCoreProjection projection) {
+            return projection == null || statusCode != HttpStatus.SC_OK ? getJson() : projection.parse(body);
+        }
+    }
+
+    private static class CachedResponse {
+        private final Response response;
+        private final String etag;
+        private final String lastModified;
+        private final String hash;
+        private final int size;
+
+        private CachedResponse(Response response, String etag, String lastModified, String hash, int size) {
+            this.response = response;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.hash = hash;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import com.kineticdata.bridgehub.adapter.BridgeRequest;
+import com.kineticdata.bridgehub.adapter.BridgeUtils;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Works out which includes a request needs, so that Kinetic Core only serializes the properties
+ * that the bridge uses.
+ * <p>
+ * The id, handle, label and coreState of a submission are always returned. The detail fields
+ * (ie. createdAt) need the details include, values and values[Field] need the values include,
+ * and other nested fields (ie. form[name]) need the include of the property (ie. form). Includes
+ * that are passed in the query itself are kept as well. Users, teams, kapps, forms and datastores
+ * are planned from the properties that they can include (ie. attributes and memberships).
+ */
+public class KineticCoreIncludePlanner {
+    public static final List<String> DETAIL_FIELDS = Arrays.asList(new String[] {
+        "closedAt","closedBy","createdAt","createdBy","currentPage","origin","parent","sessionToken",
+        "submittedAt","submittedBy","type","updatedAt","updatedBy"
+    });
+    // The properties that are returned as an object when they are included
+    private static final List<String> OBJECT_FIELDS = Arrays.asList(new String[] {
+        "values","form"
+    });
+    // Matches fields in the form of field[jsonKey] (ie. values[Group])
+    private static final Pattern FIELD_PATTERN = Pattern.compile("(\\S+)\\[(.*?)\\]");
+
+    /**
+     * Returns the includes that are needed for the fields of the request, the fields that it is
+     * ordered by and the includes of the query.
+     *
+     * @param request
+     * @param queryIncludes the include parameters of the query (may be empty)
+     * @return
+     * @throws BridgeError
+     */
+    public static List<String> plan(BridgeRequest request, Collection<String> queryIncludes) throws BridgeError {
+        Set<String> fields = new LinkedHashSet<String>(request.getFields());
+        if (request.getMetadata("order") != null) {
+            fields.addAll(BridgeUtils.parseOrder(request.getMetadata("order")).keySet());
+        }
+        List<String> includes = plan(fields);
+        for (String queryInclude : queryIncludes) {
+            for (String include : queryInclude.split(",")) {
+                if (!include.trim().isEmpty() && !includes.contains(include.trim())) includes.add(include.trim());
+            }
+        }
+        return includes;
+    }
+
+    /**
+     * Returns the includes that are needed for the fields.
+     *
+     * @param fields
+     * @return
+     */
+    public static List<String> plan(Collection<String> fields) {
+        Set<String> includes = new LinkedHashSet<String>();
+        for (String field : fields) {
+            Matcher matcher = FIELD_PATTERN.matcher(field);
+            if (matcher.find()) {
+                includes.add(matcher.group(1));
+            } else if (OBJECT_FIELDS.contains(field)) {
+                includes.add(field);
+            } else if (DETAIL_FIELDS.contains(field)) {
+                includes.add("details");
+            }
+        }
+        return new ArrayList<String>(includes);
+    }
+
+    /**
+     * Returns the includes that are needed for the fields of a user, team, kapp, form or
+     * datastore: a field that is one of the include fields (ie. attributes or attributes[Name])
+     * needs that include, and a detail field needs the details include.
+     *
+     * @param fields
+     * @param includeFields the properties that are only returned when they are included
+     * @param detailFields the properties that are returned by the details include
+     * @return
+     */
+    public static List<String> plan(Collection<String> fields, Collection<String> includeFields, Collection<String> detailFields) {
+        Set<String> includes = new LinkedHashSet<String>();
+        for (String field : fields) {
+            Matcher matcher = FIELD_PATTERN.matcher(field);
+            String name = matcher.find() ? matcher.group(1) : field;
+            if (includeFields.contains(name)) {
+                includes.add(name);
+            } else if (detailFields.contains(field)) {
+                includes.add("details");
+            }
+        }
+        return new ArrayList<String>(includes);
+    }
+
+    /**
+     * Returns the include query parameter of the includes, or null if there aren't any.
+     *
+     * @param includes
+     * @return
+     */
+    public static String toParameter(List<String> includes) {
+        return includes.isEmpty() ? null : "include="+StringUtils.join(includes,",");
+    }
+}
@@ -0,0 +1,134 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import static com.kineticdata.bridgehub.adapter.kineticcore.KineticCoreAdapter.logger;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.commons.lang.StringUtils;
+import org.json.simple.JSONArray;
+
+/**
+ * Caches the lists that are returned by the Kinetic Core list endpoints (kapps, forms and
+ * datastores), keyed by the endpoint and the set of included properties.
+ * <p>
+ * A cached list is served until its time to live has passed. Shortly before that happens the
+ * next request for the list triggers a refresh on the executor, so requests keep being served from
+ * the cache while the list is reloaded. The point at which a list is refreshed is jittered so the
+ * lists that were loaded at the same time aren't all reloaded at once.
+ * <p>
+ * The cached arrays are shared between requests and must not be modified.
+ */
+public class KineticCoreListCache {
+    /** The default time to live of a cached list (in seconds). */
+    public static final long DEFAULT_TTL_SECONDS = 300;
+    // Lists are refreshed in the background once this fraction of their time to live has passed
+    private static final double REFRESH_AHEAD_RATIO = 0.8;
+    // The largest fraction of the time to live that the refresh point is moved forward by
+    private static final double REFRESH_JITTER_RATIO = 0.1;
+
+    /** Retrieves the list from the Kinetic Core server. */
+    public interface Loader {
+        JSONArray load() throws BridgeError;
+    }
+
+    private final ConcurrentMap<String,Entry> entries = new ConcurrentHashMap<String,Entry>();
+    private final ExecutorService executor;
+    private final long ttlMillis;
+    private final Random random = new Random();
+
+    public KineticCoreListCache(ExecutorService executor, long ttlSeconds) {
+        this.executor = executor;
+        this.ttlMillis = ttlSeconds * 1000;
+    }
+
+    /**
+     * Returns the cached list for the url, loading the list when it isn't cached or has expired.
+     *
+     * @param url
+     * @param loader
+     * @return
+     * @throws BridgeError
+     */
+    public JSONArray get(String url, final Loader loader) throws BridgeError {
+        final String key = normalize(url);
+        long now = System.currentTimeMillis();
+        final Entry entry = entries.get(key);
+
+        if (entry != null && now < entry.expiresAt) {
+            if (now >= entry.refreshAt && executor != null && entry.refreshing.compareAndSet(false, true)) {
+                try {
+                    executor.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                entries.put(key, newEntry(loader.load()));
+                                logger.trace("Refreshed the cached list for " + key);
+                            } catch (Exception e) {
+                                // Keep serving the cached list, the next request will try again
+                                logger.warn("Unable to refresh the cached list for " + key, e);
+                                entry.refreshing.set(false);
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    entry.refreshing.set(false);
+                }
+            }
+            return entry.value;
+        }
+
+        JSONArray value = loader.load();
+        entries.put(key, newEntry(value));
+        return value;
+    }
+
+    /** Removes all of the cached lists. */
+    public void clear() {
+        entries.clear();
+    }
+
+    private Entry newEntry(JSONArray value) {
+        long now = System.currentTimeMillis();
+        long jitter;
+        synchronized (random) {
+            jitter = (long)(random.nextDouble() * REFRESH_JITTER_RATIO * ttlMillis);
+        }
+        return new Entry(value, now + (long)(ttlMillis * REFRESH_AHEAD_RATIO) - jitter, now + ttlMillis);
+    }
+
+    // Sorts the values of the include parameter so that the same include set always has the same key
+    static String normalize(String url) {
+        int queryStart = url.indexOf('?');
+        if (queryStart == -1) return url;
+
+        String[] parameters = url.substring(queryStart + 1).split("&");
+        for (int i = 0; i < parameters.length; i++) {
+            if (parameters[i].startsWith("include=")) {
+                TreeSet<String> includes = new TreeSet<String>(Arrays.asList(parameters[i].substring(8).split(",")));
+                includes.remove("");
+                parameters[i] = "include=" + StringUtils.join(includes, ",");
+            }
+        }
+        Arrays.sort(parameters);
+        return url.substring(0, queryStart + 1) + StringUtils.join(parameters, "&");
+    }
+
+    private static class Entry {
+        private final JSONArray value;
+        private final long refreshAt;
+        private final long expiresAt;
+        private final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+        private Entry(JSONArray value, long refreshAt, long expiresAt) {
+            this.value = value;
+            this.refreshAt = refreshAt;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
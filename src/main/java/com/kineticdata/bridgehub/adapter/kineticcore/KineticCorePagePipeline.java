@@ -0,0 +1,181 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import static com.kineticdata.bridgehub.adapter.kineticcore.KineticCoreAdapter.logger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Walks the pages of a token paginated Kinetic Core api call.
+ * <p>
+ * As soon as a page reports its nextPageToken (which can happen before the rest of the page has
+ * been read) the request for the following page is handed to the executor, so the download of
+ * page N+1 overlaps with the parsing of page N. The calling thread coordinates the pages through a
+ * queue of page events and never has more than the configured number of pages in flight.
+ */
+public class KineticCorePagePipeline {
+    /** The default number of pages that can be requested at the same time. */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 3;
+
+    /** Notified with the nextPageToken of a page as soon as it has been read. */
+    public interface TokenListener {
+        void nextPageToken(String token);
+    }
+
+    /** Retrieves a single page, calling the listener when the next page token has been read. */
+    public interface PageFetcher<T> {
+        T fetch(String pageToken, TokenListener listener) throws BridgeError;
+    }
+
+    private final ExecutorService executor;
+    private final int maxInFlight;
+
+    public KineticCorePagePipeline(ExecutorService executor) {
+        this(executor, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    public KineticCorePagePipeline(ExecutorService executor, int maxInFlight) {
+        this.executor = executor;
+        this.maxInFlight = Math.max(1, maxInFlight);
+    }
+
+    /**
+     * Fetches every page starting at the passed token (null for the first page) and returns the
+     * fetched pages in page order.
+     *
+     * @param fetcher
+     * @param firstToken
+     * @return
+     * @throws BridgeError
+     */
+    public <T> List<T> fetchAll(PageFetcher<T> fetcher, String firstToken) throws BridgeError {
+        // Without an executor the pages are just walked one after another on the calling thread
+        if (executor == null) return fetchSerially(fetcher, firstToken);
+
+        BlockingQueue<PageEvent<T>> events = new LinkedBlockingQueue<PageEvent<T>>();
+        List<T> pages = new ArrayList<T>();
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+
+        int submitted = 0;
+        int outstanding = 0;
+        // Token for the next page that hasn't been requested yet because too many are in flight
+        String deferredToken = null;
+        boolean lastPageFound = false;
+        try {
+            futures.add(executor.submit(new PageTask<T>(fetcher, firstToken, submitted++, events)));
+            outstanding++;
+
+            while (outstanding > 0) {
+                PageEvent<T> event = events.take();
+                if (event.error != null) {
+                    throw event.error;
+                } else if (event.isToken) {
+                    if (event.token == null || event.token.isEmpty()) {
+                        lastPageFound = true;
+                    } else {
+                        deferredToken = event.token;
+                    }
+                } else {
+                    while (pages.size() <= event.index) pages.add(null);
+                    pages.set(event.index, event.page);
+                    outstanding--;
+                }
+
+                if (deferredToken != null && outstanding < maxInFlight) {
+                    futures.add(executor.submit(new PageTask<T>(fetcher, deferredToken, submitted++, events)));
+                    outstanding++;
+                    deferredToken = null;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BridgeError("Interrupted while retrieving pages from the Kinetic Core server.");
+        } finally {
+            if (outstanding > 0) {
+                for (Future<?> future : futures) future.cancel(true);
+            }
+        }
+
+        if (!lastPageFound) logger.debug("The last page retrieved didn't include a nextPageToken.");
+        return pages;
+    }
+
+    private <T> List<T> fetchSerially(PageFetcher<T> fetcher, String firstToken) throws BridgeError {
+        List<T> pages = new ArrayList<T>();
+        final String[] nextToken = new String[] { firstToken };
+        do {
+            final String pageToken = nextToken[0];
+            nextToken[0] = null;
+            pages.add(fetcher.fetch(pageToken, new TokenListener() {
+                @Override
+                public void nextPageToken(String token) {
+                    nextToken[0] = token;
+                }
+            }));
+        } while (nextToken[0] != null && !nextToken[0].isEmpty());
+        return pages;
+    }
+
+    private static class PageEvent<T> {
+        private final int index;
+        private final boolean isToken;
+        private final String token;
+        private final T page;
+        private final BridgeError error;
+
+        private PageEvent(int index, boolean isToken, String token, T page, BridgeError error) {
+            this.index = index;
+            this.isToken = isToken;
+            this.token = token;
+            this.page = page;
+            this.error = error;
+        }
+    }
+
+    private static class PageTask<T> implements Runnable {
+        private final PageFetcher<T> fetcher;
+        private final String pageToken;
+        private final int index;
+        private final BlockingQueue<PageEvent<T>> events;
+        private boolean tokenReported = false;
+
+        private PageTask(PageFetcher<T> fetcher, String pageToken, int index, BlockingQueue<PageEvent<T>> events) {
+            this.fetcher = fetcher;
+            this.pageToken = pageToken;
+            this.index = index;
+            this.events = events;
+        }
+
+        @Override
+        public void run() {
+            try {
+                T page = fetcher.fetch(pageToken, new TokenListener() {
+                    @Override
+                    public void nextPageToken(String token) {
+                        reportToken(token);
+                    }
+                });
+                // A page without a nextPageToken entry is the last page
+                reportToken(null);
+                events.add(new PageEvent<T>(index, false, null, page, null));
+            } catch (BridgeError e) {
+                events.add(new PageEvent<T>(index, false, null, null, e));
+            } catch (RuntimeException e) {
+                logger.error("Unexpected error while retrieving a page", e);
+                events.add(new PageEvent<T>(index, false, null, null,
+                    new BridgeError("Unexpected error while retrieving a page from the Kinetic Core server.")));
+            }
+        }
+
+        private void reportToken(String token) {
+            if (!tokenReported) {
+                tokenReported = true;
+                events.add(new PageEvent<T>(index, true, token, null, null));
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import java.io.IOException;
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Event based handler that is used to scan a page of results returned by the Kinetic Core api
+ * without building the JSON objects for each of the results.
+ * <p>
+ * Only the number of elements in the top level results array (ie. 'submissions' or 'records')
+ * and the top level 'nextPageToken' value are retained. The token listener (if one was passed) is
+ * notified as soon as the 'nextPageToken' has been read so that the next page can be requested
+ * while the rest of this page is still being scanned.
+ */
+public class KineticCorePageScanner implements ContentHandler {
+    private final String arrayKey;
+    private final KineticCorePagePipeline.TokenListener listener;
+    private int depth = 0;
+    // The key of the top level entry that is currently being parsed
+    private String topLevelKey = null;
+    // Depth of the results array once it has been entered (-1 when not inside of it)
+    private int arrayDepth = -1;
+    private int count = 0;
+    private String nextPageToken = null;
+
+    public KineticCorePageScanner(String arrayKey) {
+        this(arrayKey, null);
+    }
+
+    public KineticCorePageScanner(String arrayKey, KineticCorePagePipeline.TokenListener listener) {
+        this.arrayKey = arrayKey;
+        this.listener = listener;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public String getNextPageToken() {
+        return nextPageToken;
+    }
+
+    @Override
+    public void startJSON() throws ParseException, IOException {
+        depth = 0;
+        topLevelKey = null;
+        arrayDepth = -1;
+        count = 0;
+        nextPageToken = null;
+    }
+
+    @Override
+    public void endJSON() throws ParseException, IOException {}
+
+    @Override
+    public boolean startObject() throws ParseException, IOException {
+        countElement();
+        depth++;
+        return true;
+    }
+
+    @Override
+    public boolean endObject() throws ParseException, IOException {
+        depth--;
+        return true;
+    }
+
+    @Override
+    public boolean startObjectEntry(String key) throws ParseException, IOException {
+        if (depth == 1) topLevelKey = key;
+        return true;
+    }
+
+    @Override
+    public boolean endObjectEntry() throws ParseException, IOException {
+        if (depth == 1) topLevelKey = null;
+        return true;
+    }
+
+    @Override
+    public boolean startArray() throws ParseException, IOException {
+        countElement();
+        depth++;
+        if (depth == 2 && arrayKey.equals(topLevelKey)) arrayDepth = depth;
+        return true;
+    }
+
+    @Override
+    public boolean endArray() throws ParseException, IOException {
+        if (depth == arrayDepth) arrayDepth = -1;
+        depth--;
+        return true;
+    }
+
+    @Override
+    public boolean primitive(Object value) throws ParseException, IOException {
+        countElement();
+        if (depth == 1 && "nextPageToken".equals(topLevelKey)) {
+            nextPageToken = value == null ? null : value.toString();
+            if (listener != null) listener.nextPageToken(nextPageToken);
+        }
+        return true;
+    }
+
+    // Counts the value that is being started if it is a direct child of the results array
+    private void countElement() {
+        if (arrayDepth != -1 && depth == arrayDepth) count++;
+    }
+}
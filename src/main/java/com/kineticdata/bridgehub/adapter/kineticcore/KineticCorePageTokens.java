@@ -0,0 +1,217 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import com.kineticdata.bridgehub.adapter.BridgeRequest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Remembers the page tokens and the total of the submission and record queries that were walked,
+ * so that pages of the same query don't have to be walked again for a while.
+ * <p>
+ * The tokens are kept for each query (its parameters sorted, without the limit, include and
+ * pageToken parameters) and page size, because the page tokens depend on the page size. Counting
+ * walks every page of the query, so it records the token of every page (at the page size it
+ * counts with) and the total. A following count of the same query returns the total, and a search
+ * at an offset (the offset and pageSize metadata of offset pagination) starts at the token of the
+ * page at the offset instead of walking the pages before it. A search for a page that isn't known
+ * yet only scans (and records) the pages between the last known page and the page, and a search
+ * past the total doesn't scan at all.
+ */
+public class KineticCorePageTokens {
+    /** The default time (in seconds) that the tokens of a query are kept after it was recorded. */
+    public static final long DEFAULT_TTL_SECONDS = 60;
+    /** The default maximum number of queries that are kept. */
+    public static final long DEFAULT_MAXIMUM_SIZE = 1000;
+
+    private final Cache<String,Query> queries;
+
+    public KineticCorePageTokens() {
+        this(DEFAULT_TTL_SECONDS, DEFAULT_MAXIMUM_SIZE);
+    }
+
+    public KineticCorePageTokens(long ttlSeconds, long maximumSize) {
+        this.queries = CacheBuilder.newBuilder()
+            .expireAfterWrite(Math.max(0, ttlSeconds), TimeUnit.SECONDS)
+            .maximumSize(Math.max(0, maximumSize))
+            .build();
+    }
+
+    /**
+     * Returns the key of a query.
+     *
+     * @param path the submissions or records path (ie. kapps/services/forms/ipad-request)
+     * @param queryParts the encoded query parameters without the limit, include and pageToken
+     * @return
+     */
+    public static String key(String path, Collection<String> queryParts) {
+        return path+"?"+StringUtils.join(new TreeSet<String>(queryParts), "&");
+    }
+
+    /**
+     * Returns the number of the page (1 is the first page) that starts at the offset metadata of
+     * the request, or 0 if there isn't an offset or it isn't the start of a page (a search without
+     * a page number isn't started at the offset, like before offsets were supported).
+     *
+     * @param request
+     * @param pageSize
+     * @return
+     */
+    public static int getPageNumber(BridgeRequest request, int pageSize) {
+        String offset = request.getMetadata("offset");
+        if (offset == null || offset.trim().isEmpty() || pageSize <= 0) return 0;
+        int value;
+        try {
+            value = Integer.parseInt(offset.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+        if (value < 0 || value % pageSize != 0) return 0;
+        return value / pageSize + 1;
+    }
+
+    /**
+     * Returns the number of results of a query whose pages were all walked, or null if they weren't.
+     *
+     * @param key
+     * @return
+     */
+    public Integer getTotal(String key) {
+        Query query = this.queries.getIfPresent(key);
+        if (query == null) return null;
+        synchronized (query) {
+            return query.total;
+        }
+    }
+
+    /**
+     * Records every page of a query at the page size: the next page token of each of the pages
+     * (null for the last page) and the number of results.
+     *
+     * @param key
+     * @param pageSize
+     * @param nextPageTokens
+     * @param total
+     */
+    public void recordAll(String key, int pageSize, List<String> nextPageTokens, int total) {
+        Query query = getQuery(key);
+        synchronized (query) {
+            Chain chain = new Chain();
+            for (String token : nextPageTokens) {
+                if (token == null) break;
+                chain.tokens.add(token);
+            }
+            chain.complete = true;
+            query.chains.put(pageSize, chain);
+            query.total = total;
+        }
+    }
+
+    /**
+     * Records the next page token of a page (null if the page is the last one).
+     *
+     * @param key
+     * @param pageSize
+     * @param pageNumber
+     * @param nextPageToken
+     */
+    public void recordPage(String key, int pageSize, int pageNumber, String nextPageToken) {
+        Query query = getQuery(key);
+        synchronized (query) {
+            Chain chain = query.getChain(pageSize);
+            // Only pages that follow the known pages can be added to the chain
+            if (chain.complete || chain.tokens.size() != pageNumber) return;
+            if (nextPageToken == null) {
+                chain.complete = true;
+            } else {
+                chain.tokens.add(nextPageToken);
+            }
+        }
+    }
+
+    /**
+     * Returns the page token of the page (the empty string for the first page), walking the pages
+     * after the last known page when it isn't known yet. Returns null if the query doesn't have
+     * that many pages. The pages are walked without holding on to the query, so concurrent
+     * searches of the same query aren't blocked (but may walk the same page).
+     *
+     * @param key
+     * @param pageSize
+     * @param pageNumber
+     * @param walker scans a page and returns its next page token
+     * @return
+     * @throws BridgeError
+     */
+    public String getPageToken(String key, int pageSize, int pageNumber, PageWalker walker) throws BridgeError {
+        Query query = getQuery(key);
+        while (true) {
+            int lastPage;
+            String lastToken;
+            synchronized (query) {
+                Chain chain = query.getChain(pageSize);
+                if (chain.tokens.size() >= pageNumber) return chain.tokens.get(pageNumber - 1);
+                // All of the pages are known, so the page is past the last page
+                if (chain.complete) return null;
+                if (query.total != null && (long)(pageNumber - 1) * pageSize >= query.total) return null;
+                lastPage = chain.tokens.size();
+                lastToken = chain.tokens.get(lastPage - 1);
+            }
+            String nextPageToken = walker.nextPageToken(lastToken);
+            recordPage(key, pageSize, lastPage, nextPageToken);
+            if (nextPageToken == null) return null;
+        }
+    }
+
+    public void clear() {
+        this.queries.invalidateAll();
+    }
+
+    private Query getQuery(String key) {
+        synchronized (this.queries) {
+            Query query = this.queries.getIfPresent(key);
+            if (query == null) {
+                query = new Query();
+                this.queries.put(key, query);
+            }
+            return query;
+        }
+    }
+
+    /** Retrieves the page of a page token and returns its next page token. */
+    public interface PageWalker {
+        String nextPageToken(String pageToken) throws BridgeError;
+    }
+
+    // The chain of each page size of a query and its total once it is known
+    private static class Query {
+        private final Map<Integer,Chain> chains = new HashMap<Integer,Chain>();
+        private Integer total;
+
+        private Chain getChain(int pageSize) {
+            Chain chain = chains.get(pageSize);
+            if (chain == null) {
+                chain = new Chain();
+                chains.put(pageSize, chain);
+            }
+            return chain;
+        }
+    }
+
+    // The token of each page (the first page doesn't have a token) and whether every page is known
+    private static class Chain {
+        private final List<String> tokens = new ArrayList<String>();
+        private boolean complete;
+
+        private Chain() {
+            tokens.add("");
+        }
+    }
+}
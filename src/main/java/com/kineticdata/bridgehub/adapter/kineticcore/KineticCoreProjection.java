@@ -0,0 +1,222 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import com.kineticdata.bridgehub.adapter.BridgeRequest;
+import com.kineticdata.bridgehub.adapter.BridgeUtils;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Parses a Kinetic Core response while only keeping the fields of the results that were
+ * requested.
+ * <p>
+ * The results (ie. the 'submissions' array or the 'record' object) are projected onto the
+ * fields: a field (ie. handle) keeps the whole value of the property and a nested field (ie.
+ * values[Group]) keeps only that entry of the property. Every other property of a result is
+ * dropped while it is being parsed, so it is never built into JSON objects. The rest of the
+ * response (ie. nextPageToken and messages) is kept as it is.
+ */
+public class KineticCoreProjection {
+    // Matches fields in the form of field[jsonKey] (ie. values[Group])
+    private static final Pattern FIELD_PATTERN = Pattern.compile("(\\S+)\\[(.*?)\\]");
+    // Keeps the whole value
+    private static final Node ALL = new Node(true);
+
+    private final String resultsKey;
+    private final Node fields;
+
+    /**
+     * @param resultsKey the top level property that holds the results
+     * @param fields the fields that are kept for every result
+     */
+    public KineticCoreProjection(String resultsKey, Collection<String> fields) {
+        this.resultsKey = resultsKey;
+        this.fields = new Node(false);
+        for (String field : fields) {
+            Matcher matcher = FIELD_PATTERN.matcher(field);
+            if (matcher.find()) {
+                this.fields.child(matcher.group(1)).child(matcher.group(2)).all = true;
+            } else {
+                this.fields.child(field).all = true;
+            }
+        }
+    }
+
+    /**
+     * Returns a projection onto the fields of the request and the fields that it is ordered by.
+     *
+     * @param resultsKey
+     * @param request
+     * @return
+     * @throws BridgeError
+     */
+    public static KineticCoreProjection forRequest(String resultsKey, BridgeRequest request) throws BridgeError {
+        Set<String> fields = new LinkedHashSet<String>(request.getFields());
+        if (request.getMetadata("order") != null) {
+            fields.addAll(BridgeUtils.parseOrder(request.getMetadata("order")).keySet());
+        }
+        return new KineticCoreProjection(resultsKey, fields);
+    }
+
+    /**
+     * Parses the response, returning null if it isn't a JSON object.
+     *
+     * @param json
+     * @return
+     */
+    public JSONObject parse(String json) {
+        Handler handler = new Handler();
+        try {
+            new JSONParser().parse(json, handler);
+        } catch (ParseException e) {
+            return null;
+        }
+        return handler.result instanceof JSONObject ? (JSONObject)handler.result : null;
+    }
+
+    // The properties that are kept from an object (or from each of the objects in an array)
+    private static class Node {
+        // Every property of the value is kept
+        private boolean all;
+        private final Map<String,Node> children = new HashMap<String,Node>();
+
+        private Node(boolean all) {
+            this.all = all;
+        }
+
+        private Node child(String name) {
+            Node child = children.get(name);
+            if (child == null) {
+                child = new Node(false);
+                children.put(name, child);
+            }
+            return child;
+        }
+    }
+
+    // Builds the JSON of the values that are kept, ignoring the events of the values that aren't
+    private class Handler implements ContentHandler {
+        // The containers that are being built and the projection of each of them
+        private final List<Object> containers = new ArrayList<Object>();
+        private final List<Node> nodes = new ArrayList<Node>();
+        private String key;
+        // The depth within a value that is being dropped (0 when values are being kept)
+        private int skipping;
+        private Object result;
+
+        @Override
+        public void startJSON() {}
+
+        @Override
+        public void endJSON() {}
+
+        @Override
+        public boolean startObject() {
+            return startContainer(new JSONObject());
+        }
+
+        @Override
+        public boolean endObject() {
+            return endContainer();
+        }
+
+        @Override
+        public boolean startArray() {
+            return startContainer(new JSONArray());
+        }
+
+        @Override
+        public boolean endArray() {
+            return endContainer();
+        }
+
+        @Override
+        public boolean startObjectEntry(String key) {
+            if (skipping == 0) this.key = key;
+            return true;
+        }
+
+        @Override
+        public boolean endObjectEntry() {
+            return true;
+        }
+
+        @Override
+        public boolean primitive(Object value) throws ParseException, IOException {
+            if (containers.isEmpty()) {
+                result = value;
+            } else if (skipping == 0 && node() != null) {
+                add(value);
+            }
+            return true;
+        }
+
+        private boolean startContainer(Object container) {
+            if (skipping > 0) {
+                skipping++;
+                return true;
+            }
+            if (containers.isEmpty()) {
+                // The top level container doesn't have a projection of its own
+                result = container;
+                containers.add(container);
+                nodes.add(null);
+                return true;
+            }
+            Node node = node();
+            if (node == null) {
+                skipping = 1;
+                return true;
+            }
+            add(container);
+            containers.add(container);
+            nodes.add(node);
+            return true;
+        }
+
+        private boolean endContainer() {
+            if (skipping > 0) {
+                skipping--;
+            } else {
+                containers.remove(containers.size() - 1);
+                nodes.remove(nodes.size() - 1);
+            }
+            return true;
+        }
+
+        // The projection of the value that is being started (null if it is dropped)
+        private Node node() {
+            Node parent = nodes.get(nodes.size() - 1);
+            if (parent == null) {
+                // The top level of the response, where only the results are projected
+                return resultsKey.equals(key) ? fields : ALL;
+            }
+            if (parent.all) return ALL;
+            // The values of an array are projected the same as the array itself
+            if (containers.get(containers.size() - 1) instanceof JSONArray) return parent;
+            return parent.children.get(key);
+        }
+
+        private void add(Object value) {
+            Object parent = containers.get(containers.size() - 1);
+            if (parent instanceof JSONArray) {
+                ((JSONArray)parent).add(value);
+            } else {
+                ((JSONObject)parent).put(key, value);
+            }
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package com.kineticdata.bridgehub.adapter.kineticcore;
 
 import com.kineticdata.bridgehub.adapter.QualificationParser;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  *
@@ -9,4 +12,49 @@ public class KineticCoreQualificationParser extends QualificationParser {
     public String encodeParameter(String name, String value) {
         return value;
     }
+
+    /**
+     * Returns the id of a query that retrieves a single submission or record by its id (an id
+     * parameter anywhere in the query, ie. kappSlug=services&id=...), or null if it doesn't.
+     *
+     * @param query
+     * @return
+     */
+    public static String getId(String query) {
+        for (String[] parameter : getParameters(query)) {
+            if (parameter[0].equalsIgnoreCase("id") && !parameter[1].isEmpty()) return parameter[1];
+        }
+        return null;
+    }
+
+    /**
+     * Splits a submission or record query into its parameters (the trimmed name and value of
+     * each). An & only separates two parameters when it is followed by a name and =, and only the
+     * first = separates the name from the value, so values like q=values[Status]="A&B" are kept
+     * whole.
+     *
+     * @param query
+     * @return
+     */
+    public static List<String[]> getParameters(String query) {
+        List<String[]> parameters = new ArrayList<String[]>();
+        for (String part : query.split("&(?=[^&]*?=)")) {
+            int index = part.indexOf('=');
+            String name = index == -1 ? part : part.substring(0, index);
+            String value = index == -1 ? "" : part.substring(index + 1);
+            parameters.add(new String[] {name.trim(), value.trim()});
+        }
+        return parameters;
+    }
+
+    /**
+     * Returns the url encoded name=value of a parameter that is passed on to Kinetic Core.
+     *
+     * @param name
+     * @param value
+     * @return
+     */
+    public static String toQueryPart(String name, String value) {
+        return URLEncoder.encode(name) + "=" + URLEncoder.encode(value);
+    }
 }
\ No newline at end of file
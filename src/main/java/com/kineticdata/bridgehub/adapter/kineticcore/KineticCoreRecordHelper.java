@@ -8,28 +8,32 @@ import com.kineticdata.bridgehub.adapter.Record;
 import com.kineticdata.bridgehub.adapter.RecordList;
 import static com.kineticdata.bridgehub.adapter.kineticcore.KineticCoreAdapter.logger;
 import java.io.IOException;
-import java.net.URLEncoder;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang.StringUtils;
-import org.apache.commons.lang.builder.CompareToBuilder;
+import org.apache.http.Consts;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.util.EntityUtils;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
 
 /**
  *
@@ -38,13 +42,29 @@ public class KineticCoreRecordHelper {
     private final String username;
     private final String password;
     private final String spaceUrl;
-    private final Pattern fieldPattern;
+    private final HttpClient client;
+    private final KineticCoreHttpFetcher fetcher;
+    private final KineticCoreExternalSorter sorter;
+    private final KineticCoreRetrieveCache retrieveCache;
+    private final KineticCorePageTokens pageTokens;
+    private final KineticCorePagePipeline pagePipeline;
 
     public KineticCoreRecordHelper(String username, String password, String spaceUrl) {
+        this(username, password, spaceUrl, HttpClients.createDefault(), null, null, new KineticCoreExternalSorter(), null, null);
+    }
+
+    public KineticCoreRecordHelper(String username, String password, String spaceUrl, HttpClient client,
+        KineticCoreHttpFetcher fetcher, ExecutorService executor, KineticCoreExternalSorter sorter, KineticCoreRetrieveCache retrieveCache,
+        KineticCorePageTokens pageTokens) {
         this.username = username;
         this.password = password;
         this.spaceUrl = spaceUrl;
-        this.fieldPattern = Pattern.compile("(\\S+)\\[(.*?)\\]");
+        this.client = client;
+        this.fetcher = fetcher != null ? fetcher : new KineticCoreHttpFetcher(client, username, password);
+        this.sorter = sorter;
+        this.retrieveCache = retrieveCache != null ? retrieveCache : new KineticCoreRetrieveCache(this.fetcher);
+        this.pageTokens = pageTokens != null ? pageTokens : new KineticCorePageTokens();
+        this.pagePipeline = new KineticCorePagePipeline(executor);
     }
 
     public Count count(BridgeRequest request) throws BridgeError {
@@ -54,18 +74,15 @@ public class KineticCoreRecordHelper {
     }
 
     public Record retrieve(BridgeRequest request) throws BridgeError {
-        String recordId = null;
-        if (request.getQuery().matches("(?i)id=.*?(?:$|&)")) {
-            Pattern p = Pattern.compile("id=(.*?)(?:$|&)",Pattern.CASE_INSENSITIVE);
-            Matcher m = p.matcher(request.getQuery());
-
-            if (m.find()) recordId = m.group(1);
-        }
+        // An id anywhere in the query is retrieved directly
+        String recordId = KineticCoreQualificationParser.getId(request.getQuery());
 
         String url;
         JSONObject record;
         if (recordId == null) {
-            JSONObject response = searchDatastoreRecords(request);
+            // Two results are enough to know that the query doesn't have a single match (a
+            // smaller pageSize or query limit would hide the second match)
+            JSONObject response = searchDatastoreRecords(request, "2");
             JSONArray records = (JSONArray)response.get("records");
 
             if (records.size() > 1) {
@@ -76,31 +93,16 @@ public class KineticCoreRecordHelper {
                 record = (JSONObject)records.get(0);
             }
         } else {
-            url = String.format("%s/app/api/v1/records/%s?include=values,details",this.spaceUrl,recordId);
-
-            HttpClient client = HttpClients.createDefault();
-            HttpResponse response;
-            HttpGet get = new HttpGet(url);
-            get = addAuthenticationHeader(get, this.username, this.password);
-
-            String output = "";
-            try {
-                response = client.execute(get);
-
-                logger.trace("Request response code: " + response.getStatusLine().getStatusCode());
-                HttpEntity entity = response.getEntity();
-                if (response.getStatusLine().getStatusCode() == 404) {
-                    throw new BridgeError(String.format("Not Found: The record with the id '%s' cannot be found.",recordId));
-                }
-                output = EntityUtils.toString(entity);
-            }
-            catch (IOException e) {
-                logger.error(e.getMessage());
-                throw new BridgeError("Unable to make a connection to the Kinetic Core server.");
+            // Only include the properties that the fields need
+            List<String> includes = KineticCoreIncludePlanner.plan(request, Collections.<String>emptyList());
+            url = String.format("%s/app/api/v1/records/%s",this.spaceUrl,recordId);
+
+            // The same records are retrieved repeatedly, so their responses are cached
+            KineticCoreHttpFetcher.Response response = this.retrieveCache.get(url, "record", includes);
+            if (response.getStatusCode() == 404) {
+                throw new BridgeError(String.format("Not Found: The record with the id '%s' cannot be found.",recordId));
             }
-
-            JSONObject json = (JSONObject)JSONValue.parse(output);
-            record = (JSONObject)json.get("record");
+            record = (JSONObject)response.getJson(new KineticCoreProjection("record", request.getFields())).get("record");
         }
 
         return createRecordFromDatastoreRecord(request.getFields(), record);
@@ -109,7 +111,7 @@ public class KineticCoreRecordHelper {
     public RecordList search(BridgeRequest request) throws BridgeError {
         // Initialize the metadata variable that will be returned
         Map<String,String> metadata = new LinkedHashMap<String,String>();
-        JSONObject response = searchDatastoreRecords(request);
+        JSONObject response = searchDatastoreRecords(request, null);
         JSONArray datastoreRecords = (JSONArray)response.get("records");
 
         List<Record> records = createRecordsFromDatastoreRecords(request.getFields(), datastoreRecords);
@@ -165,25 +167,11 @@ public class KineticCoreRecordHelper {
     }
 
     private List<Record> createRecordsFromDatastoreRecords(List<String> fields, JSONArray datastoreRecords) throws BridgeError {
-        // Create 'searchable' field list. If there needs to be a multi-level
-        // search (aka, values[Group]) the field's type will be List<String>
-        // instead of just String
-        List searchableFields = new ArrayList();
-        for (String field : fields) {
-            Matcher matcher = fieldPattern.matcher(field);
-            if (matcher.find()) {
-                List<String> multiLevelField = new ArrayList<String>();
-                multiLevelField.add(matcher.group(1));
-                multiLevelField.add(matcher.group(2));
-                searchableFields.add(multiLevelField);
-            } else {
-                searchableFields.add(field);
-            }
-        }
-
         // Go through the records in the JSONArray to create a list of records
         List<Record> records = new ArrayList<Record>();
         for (Object o : datastoreRecords) {
+            // The results were parsed with the projection of this request (so they aren't shared
+            // with other requests) and only hold the fields that are needed
             records.add(new Record((Map)o));
         }
 
@@ -195,123 +183,160 @@ public class KineticCoreRecordHelper {
 
     private Integer countDatastoreRecords(BridgeRequest request, String pageToken) throws BridgeError {
         Integer count = 0;
-        String[] indvQueryParts = request.getQuery().split("&");
-
         // Retrieving the datastore slug that was passed in the query
         String datastoreSlug = null;
         List<String> queryPartsList = new ArrayList<String>();
-        for (String indvQueryPart : indvQueryParts) {
-            String[] str_array = indvQueryPart.split("=");
-            String field = str_array[0].trim();
-            String value = "";
-            if (str_array.length > 1) value = str_array[1].trim();
+        for (String[] parameter : KineticCoreQualificationParser.getParameters(request.getQuery())) {
+            String field = parameter[0];
+            String value = parameter[1];
             if (field.equals("datastoreSlug")) { datastoreSlug = value; }
+            else if (field.equals("include")) { continue; } // the included properties aren't needed to count
             else if (!field.equals("limit")) { // ignore the limit, because count always uses the default limit
-                queryPartsList.add(URLEncoder.encode(field) + "=" + URLEncoder.encode(value));
+                queryPartsList.add(KineticCoreQualificationParser.toQueryPart(field, value));
             }
         }
+        List<String> baseQueryParts = new ArrayList<String>(queryPartsList);
         queryPartsList.add("limit=1000");
-        String query = StringUtils.join(queryPartsList,"&");
+        final String query = StringUtils.join(queryPartsList,"&");
 
         if (datastoreSlug == null) {
             throw new BridgeError("Invalid Request: The bridge query needs to include a datastoreSlug.");
         }
 
 
-        // Make sure that the pageToken isn't null for the first pass.
-        String nextToken = pageToken != null ? pageToken : "";
-        while (nextToken != null) {
-            // the token query is used to reset the query each time so that multiple pageTokens
-            // aren't added to the query after multiple passes
-            String tokenQuery = query;
-            // if nextToken is empty, don't add to query (only relevant on first pass)
-            if (!nextToken.isEmpty()) {
-                tokenQuery = tokenQuery+"&pageToken="+nextToken;
+        // A count of a query whose pages were just walked is answered from the recorded pages
+        String chainKey = getChainKey(datastoreSlug, baseQueryParts);
+        if (pageToken == null) {
+            Integer total = this.pageTokens.getTotal(chainKey);
+            if (total != null) return total;
+        }
+
+        // Walk the pages through the pipeline so that the next page is already being retrieved
+        // while the current page is still being scanned
+        final String datastore = datastoreSlug;
+        List<KineticCorePageScanner> pages = this.pagePipeline.fetchAll(new KineticCorePagePipeline.PageFetcher<KineticCorePageScanner>() {
+            @Override
+            public KineticCorePageScanner fetch(String nextToken, KineticCorePagePipeline.TokenListener listener) throws BridgeError {
+                // if nextToken is empty, don't add to query (only relevant on first pass)
+                String tokenQuery = nextToken == null || nextToken.isEmpty() ? query : query+"&pageToken="+nextToken;
+                return scanDatastoreRecords(datastore, tokenQuery, listener);
             }
-            JSONObject json = searchDatastoreRecords(datastoreSlug, tokenQuery);
-            nextToken = (String)json.get("nextPageToken");
-            JSONArray records = (JSONArray)json.get("records");
-            count += records.size();
+        }, pageToken);
+        List<String> nextPageTokens = new ArrayList<String>();
+        for (KineticCorePageScanner page : pages) {
+            count += page.getCount();
+            nextPageTokens.add(page.getNextPageToken());
         }
+        // Record the pages so that searches at an offset can start at the token of its page
+        if (pageToken == null) this.pageTokens.recordAll(chainKey, 1000, nextPageTokens, count);
 
         return count;
     }
 
-    private JSONObject searchDatastoreRecords(BridgeRequest request) throws BridgeError {
-        String[] indvQueryParts = request.getQuery().split("&(?=[^&]*?=)");
+    // Returns the key of the page tokens of the records query
+    private static String getChainKey(String datastore, List<String> queryParts) {
+        return KineticCorePageTokens.key("datastores/"+datastore, queryParts);
+    }
 
+    // A forced limit (the probe of a retrieve) is always used, otherwise the limit is the pageSize
+    // metadata, the limit of the query or 1000
+    private JSONObject searchDatastoreRecords(BridgeRequest request, String forcedLimit) throws BridgeError {
         // Retrieving the datastore slug that was passed in the query
         String datastoreSlug = null;
         String limit = null;
         List<String> queryPartsList = new ArrayList<String>();
-        for (String indvQueryPart : indvQueryParts) {
-            String[] str_array = indvQueryPart.split("=");
-            String field = str_array[0].trim();
-            String value = "";
-            if (str_array.length > 1) value = StringUtils.join(Arrays.copyOfRange(str_array, 1, str_array.length),"=");
+        List<String> queryIncludes = new ArrayList<String>();
+        for (String[] parameter : KineticCoreQualificationParser.getParameters(request.getQuery())) {
+            String field = parameter[0];
+            String value = parameter[1];
             if (field.equals("datastoreSlug")) { datastoreSlug = value; }
             else if (field.equals("limit")) { limit = value; }
+            else if (field.equals("include")) { queryIncludes.add(value); }
             else {
-                queryPartsList.add(URLEncoder.encode(field) + "=" + URLEncoder.encode(value.trim()));
+                queryPartsList.add(KineticCoreQualificationParser.toQueryPart(field, value));
             }
         }
-        // Add the include statement to get extra values and details
-        queryPartsList.add("include=values,details");
+        // The page tokens are recorded for the query without its includes
+        List<String> baseQueryParts = new ArrayList<String>(queryPartsList);
+        // Add the include statement to get the values and details that the fields need
+        String include = KineticCoreIncludePlanner.toParameter(KineticCoreIncludePlanner.plan(request, queryIncludes));
+        if (include != null) queryPartsList.add(include);
 
-        // Add a limit to the query by either using the value that was passed, or defaulting limit=200
+        // Add a limit to the query by either using the value that was passed, or the default limit
         String pageSize = request.getMetadata("pageSize");
-        if (pageSize != null) {
-            queryPartsList.add("limit="+pageSize);
+        String pageLimit;
+        if (forcedLimit != null) {
+            pageLimit = forcedLimit;
+        } else if (pageSize != null) {
+            pageLimit = pageSize;
         } else if (limit != null && !limit.isEmpty()) {
-            queryPartsList.add("limit="+limit);
+            pageLimit = limit;
         } else {
-            queryPartsList.add("limit=1000");
+            pageLimit = "1000";
+        }
+        queryPartsList.add("limit="+pageLimit);
+
+        if (datastoreSlug == null) {
+            throw new BridgeError("Invalid Request: The bridge query needs to include a datastoreSlug.");
+        }
+        final String datastore = datastoreSlug;
+
+        // A search without a page token starts at the recorded token of the page at its offset (the
+        // first page without an offset), only scanning the pages that come before it when they
+        // haven't been recorded yet. The tokens that are seen along the way are recorded.
+        String pageToken = request.getMetadata("pageToken");
+        int pageLength = pageLimit.trim().matches("\\d+") ? Integer.parseInt(pageLimit.trim()) : 0;
+        int pageNumber = 0;
+        if (forcedLimit == null && pageLength > 0 && (pageToken == null || pageToken.isEmpty())) {
+            pageNumber = Math.max(1, KineticCorePageTokens.getPageNumber(request, pageLength));
+        }
+        String chainKey = getChainKey(datastore, baseQueryParts);
+        if (pageNumber > 1) {
+            List<String> walkQueryParts = new ArrayList<String>(baseQueryParts);
+            walkQueryParts.add("limit="+pageLimit);
+            final String walkQuery = StringUtils.join(walkQueryParts,"&");
+            pageToken = this.pageTokens.getPageToken(chainKey, pageLength, pageNumber, new KineticCorePageTokens.PageWalker() {
+                @Override
+                public String nextPageToken(String token) throws BridgeError {
+                    return scanDatastoreRecords(datastore, token.isEmpty() ? walkQuery : walkQuery+"&pageToken="+token, null).getNextPageToken();
+                }
+            });
+            // The query doesn't have that many pages
+            if (pageToken == null) {
+                JSONObject json = new JSONObject();
+                json.put("records", new JSONArray());
+                json.put("messages", new JSONArray());
+                return json;
+            }
         }
 
         // If metadata[nextPageToken] is included in the request, add it to the query
-        if (request.getMetadata("pageToken") != null) {
-            queryPartsList.add("pageToken="+request.getMetadata("pageToken"));
+        if (pageToken != null && !pageToken.isEmpty()) {
+            queryPartsList.add("pageToken="+pageToken);
         }
 
         // Join the query list into a query string
         String query = StringUtils.join(queryPartsList,"&");
 
-        if (datastoreSlug == null) {
-            throw new BridgeError("Invalid Request: The bridge query needs to include a datastoreSlug.");
-        }
-
-        return searchDatastoreRecords(datastoreSlug, query);
+        JSONObject json = searchDatastoreRecords(datastore, query, KineticCoreProjection.forRequest("records", request));
+        if (pageNumber > 0) this.pageTokens.recordPage(chainKey, pageLength, pageNumber, (String)json.get("nextPageToken"));
+        return json;
     }
 
-    private JSONObject searchDatastoreRecords(String datastore, String query) throws BridgeError {
-        // Initializing the Http Objects
-        HttpClient client = HttpClients.createDefault();
-        HttpResponse response;
-
+    // Only the fields of the projection are kept from each of the records
+    private JSONObject searchDatastoreRecords(String datastore, String query, KineticCoreProjection projection) throws BridgeError {
         // Build the records api url. Url is different based on whether the form slug has been included.
         String url = String.format("%s/app/api/v1/datastores/%s/records?%s",this.spaceUrl,datastore,query);
-        HttpGet get = new HttpGet(url);
-        get = addAuthenticationHeader(get, this.username, this.password);
-
-        String output = "";
-        try {
-            response = client.execute(get);
-
-            HttpEntity entity = response.getEntity();
-            output = EntityUtils.toString(entity);
-            logger.trace("Request response code: " + response.getStatusLine().getStatusCode());
-        }
-        catch (IOException e) {
-            logger.error(e.getMessage());
-            throw new BridgeError("Unable to make a connection to the Kinetic Core server.");
+        // Identical concurrent searches share a single request (and each parses it with its own projection)
+        KineticCoreHttpFetcher.Response response = this.fetcher.fetch(url, false);
+        JSONObject json = response.getJson(projection);
+        if (json == null) {
+            throw new BridgeError("Bridge Error: " + response.getBody());
         }
 
-        logger.trace("Starting to parse the JSON Response");
-        JSONObject json = (JSONObject)JSONValue.parse(output);
-
-        if (response.getStatusLine().getStatusCode() == 404) {
+        if (response.getStatusCode() == 404) {
             throw new BridgeError("Invalid datastoreSlug: " + json.get("error").toString());
-        } else if (response.getStatusLine().getStatusCode() != 200) {
+        } else if (response.getStatusCode() != 200) {
             String errorMessage = json.containsKey("error") ? json.get("error").toString() : json.toJSONString();
             throw new BridgeError("Bridge Error: " + errorMessage);
         }
@@ -325,52 +350,49 @@ public class KineticCoreRecordHelper {
         return json;
     }
 
-    /**
-    * Returns the string value of the object.
-    * <p>
-    * If the value is not a String, a JSON representation of the object will be returned.
-    *
-    * @param value
-    * @return
-    */
-    private static String toString(Object value) {
-        String result = null;
-        if (value != null) {
-            if (String.class.isInstance(value)) {
-                result = (String)value;
-            } else {
-                result = JSONValue.toJSONString(value);
-            }
-        }
-        return result;
-    }
-
-    protected List<Record> sortRecords(final Map<String,String> fieldParser, List<Record> records) throws BridgeError {
-        Collections.sort(records, new Comparator<Record>() {
-            @Override
-            public int compare(Record r1, Record r2){
-                CompareToBuilder comparator = new CompareToBuilder();
-
-                for (Map.Entry<String,String> entry : fieldParser.entrySet()) {
-                    String field = entry.getKey();
-                    String order = entry.getValue();
-
-                    Object o1 = r1.getValue(field);
-                    if (o1 != null) { o1 = KineticCoreRecordHelper.toString(o1).toLowerCase(); }
-
-                    Object o2 = r2.getValue(field);
-                    if (o2 != null) { o2 = KineticCoreRecordHelper.toString(o2).toLowerCase(); }
+    // Scans a page of records from the response stream, only keeping track of the amount of
+    // records and the nextPageToken instead of parsing the whole response into JSON objects
+    private KineticCorePageScanner scanDatastoreRecords(String datastore, String query,
+        KineticCorePagePipeline.TokenListener listener) throws BridgeError {
+        String url = String.format("%s/app/api/v1/datastores/%s/records?%s",this.spaceUrl,datastore,query);
+        HttpGet get = new HttpGet(url);
+        get = addAuthenticationHeader(get, this.username, this.password);
 
-                    if (order.equals("DESC")) {
-                        comparator.append(o2,o1);
-                    } else {
-                        comparator.append(o1,o2);
+        KineticCorePageScanner scanner = new KineticCorePageScanner("records", listener);
+        try {
+            HttpResponse response = this.client.execute(get);
+            HttpEntity entity = response.getEntity();
+            logger.trace("Request response code: " + response.getStatusLine().getStatusCode());
+            try {
+                if (response.getStatusLine().getStatusCode() != 200) {
+                    JSONObject json = (JSONObject)JSONValue.parse(EntityUtils.toString(entity));
+                    if (response.getStatusLine().getStatusCode() == 404) {
+                        throw new BridgeError("Invalid datastoreSlug: " + json.get("error").toString());
                     }
+                    String errorMessage = json.containsKey("error") ? json.get("error").toString() : json.toJSONString();
+                    throw new BridgeError("Bridge Error: " + errorMessage);
                 }
 
-                return comparator.toComparison();
+                Charset charset = ContentType.getOrDefault(entity).getCharset();
+                Reader reader = new InputStreamReader(entity.getContent(), charset == null ? Consts.UTF_8 : charset);
+                new JSONParser().parse(reader, scanner);
+            } finally {
+                EntityUtils.consume(entity);
             }
-        });
-        return records;
+        }
+        catch (IOException e) {
+            logger.error(e.getMessage());
+            throw new BridgeError("Unable to make a connection to the Kinetic Core server.");
+        }
+        catch (ParseException e) {
+            logger.error(e.getMessage());
+            throw new BridgeError("Unable to parse the records returned by the Kinetic Core server.");
+        }
+
+        return scanner;
+    }
+
+    protected List<Record> sortRecords(final Map<String,String> fieldParser, List<Record> records) throws BridgeError {
+        return this.sorter.sort(records, new KineticCoreSortKeys(fieldParser, false));
     }
 }
@@ -0,0 +1,187 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import static com.kineticdata.bridgehub.adapter.kineticcore.KineticCoreAdapter.logger;
+import java.net.URLEncoder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.HttpStatus;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * A local copy of a Kinetic Core list endpoint (ie. users or teams) that is kept up to date in the
+ * background.
+ * <p>
+ * The whole list (with every include that the helpers can use) is loaded on the first request.
+ * After that the replica is synced on the scheduler by only querying the items whose updatedAt is
+ * at or after the newest updatedAt that has been seen so far (the watermark), and merging them into
+ * the replica by their key. Deleted (or renamed) items can't be seen by a delta query, and neither
+ * can changes that don't update an item's updatedAt (ie. a team's memberships), so the whole list
+ * is reloaded every reconcile interval, or whenever a delta query fails. Those changes can be
+ * missing from the replica for up to the reconcile interval, which is why replicas are opt-in.
+ * <p>
+ * Readers always get a complete snapshot that is replaced (never modified) by a sync, so the
+ * returned arrays must not be modified.
+ */
+public class KineticCoreReplica {
+    /** The default number of seconds between delta syncs. */
+    public static final long DEFAULT_SYNC_INTERVAL = 60;
+    /** The default number of seconds between full reloads. */
+    public static final long DEFAULT_RECONCILE_INTERVAL = 3600;
+
+    private final String name;
+    private final String keyField;
+    private final String url;
+    private final KineticCoreHttpFetcher fetcher;
+    private final ScheduledExecutorService scheduler;
+    private final long syncIntervalMillis;
+    private final long reconcileIntervalMillis;
+
+    private volatile JSONArray snapshot;
+    private Map<Object,JSONObject> items;
+    private String watermark;
+    // The last full list that was loaded (used to skip rebuilding the replica when it is unchanged)
+    private JSONArray loaded;
+    // Whether a delta sync has changed the replica since the last full list was loaded
+    private boolean changedSinceLoad;
+    private long reconcileAt;
+    private ScheduledFuture<?> syncTask;
+
+    /**
+     * @param name the name of the list in the api responses (ie. users)
+     * @param keyField the field that uniquely identifies an item (ie. username)
+     * @param url the url of the list endpoint, including the include parameter
+     * @param fetcher
+     * @param scheduler
+     * @param syncIntervalSeconds
+     * @param reconcileIntervalSeconds
+     */
+    public KineticCoreReplica(String name, String keyField, String url, KineticCoreHttpFetcher fetcher,
+        ScheduledExecutorService scheduler, long syncIntervalSeconds, long reconcileIntervalSeconds) {
+        this.name = name;
+        this.keyField = keyField;
+        this.url = url;
+        this.fetcher = fetcher;
+        this.scheduler = scheduler;
+        this.syncIntervalMillis = syncIntervalSeconds * 1000;
+        this.reconcileIntervalMillis = reconcileIntervalSeconds * 1000;
+    }
+
+    /**
+     * Returns the replicated items, loading them the first time that they are requested.
+     *
+     * @return
+     * @throws BridgeError
+     */
+    public JSONArray get() throws BridgeError {
+        JSONArray current = this.snapshot;
+        if (current != null) return current;
+
+        synchronized (this) {
+            if (this.snapshot == null) {
+                reload();
+                if (this.scheduler != null && this.syncIntervalMillis > 0) {
+                    this.syncTask = this.scheduler.scheduleWithFixedDelay(new Runnable() {
+                        @Override
+                        public void run() {
+                            sync();
+                        }
+                    }, this.syncIntervalMillis, this.syncIntervalMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+            return this.snapshot;
+        }
+    }
+
+    /** Stops syncing the replica and drops the replicated items. */
+    public synchronized void close() {
+        if (this.syncTask != null) {
+            this.syncTask.cancel(false);
+            this.syncTask = null;
+        }
+        this.snapshot = null;
+        this.items = null;
+        this.loaded = null;
+        this.changedSinceLoad = false;
+    }
+
+    // Runs a delta sync, or a full reload when it is time to reconcile or the delta sync fails
+    synchronized void sync() {
+        if (this.snapshot == null) return;
+        try {
+            if (System.currentTimeMillis() >= this.reconcileAt || this.watermark == null) {
+                reload();
+            } else {
+                try {
+                    // Each delta url has a different watermark, so it isn't remembered for revalidation
+                    JSONArray changed = fetch(this.url + (this.url.contains("?") ? "&" : "?") + "q="
+                        + URLEncoder.encode(String.format("updatedAt>=\"%s\"", this.watermark), "UTF-8"), false);
+                    if (merge(this.items, changed, false) > 0) this.changedSinceLoad = true;
+                } catch (BridgeError e) {
+                    logger.warn(String.format("The delta sync of the %s replica failed, reloading all of the %s", this.name, this.name), e);
+                    reload();
+                }
+            }
+        } catch (Exception e) {
+            // Keep the current snapshot, the next sync will try again
+            logger.warn(String.format("Unable to sync the %s replica", this.name), e);
+        }
+    }
+
+    private void reload() throws BridgeError {
+        JSONArray all = fetch(this.url, true);
+        this.reconcileAt = System.currentTimeMillis() + this.reconcileIntervalMillis;
+        // The fetcher returns the same list when the response hasn't changed since the last load,
+        // so there is nothing to rebuild unless a delta sync has changed the replica since then
+        if (all == this.loaded && this.snapshot != null && !this.changedSinceLoad) {
+            logger.trace(String.format("The %s haven't changed since they were last loaded", this.name));
+            return;
+        }
+        this.watermark = null;
+        merge(new LinkedHashMap<Object,JSONObject>(), all, true);
+        this.loaded = all;
+        this.changedSinceLoad = false;
+        logger.debug(String.format("Loaded %d %s into the replica", this.items.size(), this.name));
+    }
+
+    // Merges the changed items into a copy of the replica and publishes it as the new snapshot
+    // (unless nothing changed), returning the number of items that were actually different
+    private int merge(Map<Object,JSONObject> items, JSONArray changed, boolean rebuild) throws BridgeError {
+        Map<Object,JSONObject> merged = new LinkedHashMap<Object,JSONObject>(items);
+        String newest = this.watermark;
+        int changes = 0;
+        for (Object o : changed) {
+            JSONObject item = (JSONObject)o;
+            JSONObject previous = merged.put(item.get(this.keyField), item);
+            if (!item.equals(previous)) changes++;
+            Object updatedAt = item.get("updatedAt");
+            if (updatedAt != null && (newest == null || KineticCoreTimelinePartitioner.parseTimestamp(updatedAt.toString())
+                    > KineticCoreTimelinePartitioner.parseTimestamp(newest))) {
+                newest = updatedAt.toString();
+            }
+        }
+        this.watermark = newest;
+        // Keep the current snapshot when none of the items have changed
+        if (changes == 0 && !rebuild) return 0;
+        logger.trace(String.format("Merged %d changed %s into the replica", changes, this.name));
+
+        JSONArray newSnapshot = new JSONArray();
+        newSnapshot.addAll(merged.values());
+        this.items = merged;
+        this.snapshot = newSnapshot;
+        return changes;
+    }
+
+    private JSONArray fetch(String url, boolean revalidate) throws BridgeError {
+        KineticCoreHttpFetcher.Response response = this.fetcher.fetch(url, revalidate);
+        JSONObject json = response.getJson();
+        if (response.getStatusCode() != HttpStatus.SC_OK || json == null || !(json.get(this.name) instanceof JSONArray)) {
+            throw new BridgeError("Bridge Error: " + (json == null ? response.getBody() : json.toJSONString()));
+        }
+        return (JSONArray)json.get(this.name);
+    }
+}
@@ -0,0 +1,347 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import com.kineticdata.bridgehub.adapter.BridgeRequest;
+import com.kineticdata.bridgehub.adapter.Count;
+import com.kineticdata.bridgehub.adapter.Record;
+import com.kineticdata.bridgehub.adapter.RecordList;
+import static com.kineticdata.bridgehub.adapter.kineticcore.KineticCoreAdapter.logger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.commons.lang.StringUtils;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Caches the results of the adapter's count, retrieve and search calls, keyed by the normalized
+ * request: the operation, the structure, the query (after its parameters were substituted, with
+ * its qualifications and includes sorted), the fields and the metadata (ie. order and pageToken).
+ * <p>
+ * Each structure has its own time to live (structures without one aren't cached). Once a result
+ * has expired it is still served for the stale time while the result is loaded again on the
+ * executor, so a slow Kinetic Core server doesn't hold up requests for results that are cached.
+ * No structure is cached by default. The results are loaded from the list cache and the replicas,
+ * which can be out of date themselves, so a cached result can be as old as its time to live plus
+ * the stale time plus the list cache's time to live (or the replica's sync interval).
+ * The loaders wait on tasks of the worker pool (ie. the pages of a search), so the executor has to
+ * be a separate one, otherwise refreshes could take up every worker while waiting on each other.
+ * <p>
+ * The cache is bounded by the approximate size (in bytes) of the results. A result that takes up
+ * more than a small part of the cache is only admitted when its request has been made before
+ * (counted by a frequency sketch of the recent requests), so a one-off large search doesn't evict
+ * the results that are requested all the time.
+ * <p>
+ * The cache holds its own copy of each result and every request is given a copy of the cached
+ * result (down to the JSON values of the records), so a request that changes its result doesn't
+ * change the result of the other requests.
+ */
+public class KineticCoreResultCache {
+    /** The default time to live (in seconds) of the results of each structure, none are cached by default. */
+    public static final String DEFAULT_TTLS = "";
+    /** The default time (in seconds) that an expired result is served while it is loaded again. */
+    public static final long DEFAULT_STALE_SECONDS = 60;
+    /** The default maximum size (in bytes) of the cached results. */
+    public static final long DEFAULT_MAXIMUM_SIZE = 32L * 1024 * 1024;
+    /** The number of threads that the adapter refreshes expired results on. */
+    public static final int REFRESH_THREADS = 2;
+    // Results larger than this fraction of the cache have to be requested twice to be admitted
+    private static final double ADMISSION_SIZE_RATIO = 0.01;
+    private static final int ADMISSION_FREQUENCY = 2;
+
+    /** Loads the result of a request from Kinetic Core. */
+    public interface Loader<T> {
+        T load() throws BridgeError;
+    }
+
+    private final Map<String,Long> ttlMillis;
+    private final long staleMillis;
+    private final long admissionSize;
+    private final ExecutorService executor;
+    private final Cache<String,Entry> entries;
+    private final FrequencySketch sketch = new FrequencySketch(4096);
+
+    /**
+     * @param ttls the time to live (in seconds) of the results of each structure
+     * @param staleSeconds how long an expired result is served while it is loaded again
+     * @param maximumSize the maximum size (in bytes) of the cached results
+     * @param executor the executor that loads expired results (they aren't served stale without one),
+     *   which must not be the executor that the loaders wait on
+     */
+    public KineticCoreResultCache(Map<String,Long> ttls, long staleSeconds, long maximumSize, ExecutorService executor) {
+        long maximumTtl = 0;
+        this.ttlMillis = new HashMap<String,Long>();
+        for (Map.Entry<String,Long> ttl : ttls.entrySet()) {
+            if (ttl.getValue() > 0) {
+                this.ttlMillis.put(ttl.getKey(), ttl.getValue() * 1000);
+                maximumTtl = Math.max(maximumTtl, ttl.getValue() * 1000);
+            }
+        }
+        this.staleMillis = executor != null ? Math.max(0, staleSeconds) * 1000 : 0;
+        this.admissionSize = (long)(Math.max(0, maximumSize) * ADMISSION_SIZE_RATIO);
+        this.executor = executor;
+        // A single segment, otherwise the maximum is split between the segments and a result larger
+        // than a segment's share would be evicted as soon as it was put
+        this.entries = CacheBuilder.newBuilder()
+            .concurrencyLevel(1)
+            .expireAfterWrite(maximumTtl + this.staleMillis, TimeUnit.MILLISECONDS)
+            .maximumWeight(Math.max(0, maximumSize))
+            .weigher(new Weigher<String,Entry>() {
+                @Override
+                public int weigh(String key, Entry entry) {
+                    return (int)Math.min(Integer.MAX_VALUE, entry.size);
+                }
+            })
+            .build();
+    }
+
+    /**
+     * Returns the cached result of the request, loading the result when it isn't cached (or
+     * loading it on the executor when the cached result is stale).
+     *
+     * @param operation count, retrieve or search
+     * @param request
+     * @param loader
+     * @return
+     * @throws BridgeError
+     */
+    public <T> T get(String operation, BridgeRequest request, final Loader<T> loader) throws BridgeError {
+        Long ttl = this.ttlMillis.get(request.getStructure());
+        if (ttl == null) return loader.load();
+
+        final String key = key(operation, request);
+        int frequency = this.sketch.increment(key);
+        long now = System.currentTimeMillis();
+        final Entry entry = this.entries.getIfPresent(key);
+
+        if (entry != null && now < entry.expiresAt + this.staleMillis) {
+            if (now >= entry.expiresAt && entry.refreshing.compareAndSet(false, true)) {
+                final long refreshTtl = ttl;
+                try {
+                    this.executor.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                put(key, loader.load(), refreshTtl, Integer.MAX_VALUE);
+                                logger.trace("Refreshed the cached result for " + key);
+                            } catch (Exception e) {
+                                // Keep serving the stale result, the next request will try again
+                                logger.warn("Unable to refresh the cached result for " + key, e);
+                                entry.refreshing.set(false);
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    entry.refreshing.set(false);
+                }
+            }
+            @SuppressWarnings("unchecked")
+            T value = (T)copy(entry.value);
+            return value;
+        }
+
+        T value = loader.load();
+        put(key, value, ttl, frequency);
+        return value;
+    }
+
+    /** Removes all of the cached results. */
+    public void clear() {
+        this.entries.invalidateAll();
+    }
+
+    private void put(String key, Object value, long ttl, int frequency) {
+        long size = estimateSize(key) + estimateSize(value);
+        if (size > this.admissionSize && frequency < ADMISSION_FREQUENCY) {
+            logger.trace("Not caching the result for " + key + " until it is requested again");
+            return;
+        }
+        this.entries.put(key, new Entry(copy(value), size, System.currentTimeMillis() + ttl));
+    }
+
+    /**
+     * Parses the time to live of each structure (ie. Kapps=300,Forms=300).
+     *
+     * @param value
+     * @return
+     * @throws BridgeError if a time to live isn't a number
+     */
+    public static Map<String,Long> parseTtls(String value) throws BridgeError {
+        Map<String,Long> ttls = new HashMap<String,Long>();
+        if (value == null) return ttls;
+        for (String item : value.split(",")) {
+            if (item.trim().isEmpty()) continue;
+            String[] split = item.split("=", 2);
+            try {
+                ttls.put(split[0].trim(), split.length > 1 ? Long.parseLong(split[1].trim()) : 0);
+            } catch (NumberFormatException e) {
+                throw new BridgeError(String.format("Invalid Property: The time to live '%s' is not a number.",item.trim()));
+            }
+        }
+        return ttls;
+    }
+
+    // Requests that only differ in the order of their qualifications or includes have the same key
+    static String key(String operation, BridgeRequest request) {
+        String query = request.getQuery() == null ? "" : request.getQuery();
+        String[] parts = query.split("&(?=[^&]*?=)");
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = parts[i].trim();
+            if (parts[i].startsWith("include=")) {
+                TreeSet<String> includes = new TreeSet<String>(Arrays.asList(parts[i].substring(8).split(",")));
+                includes.remove("");
+                parts[i] = "include=" + StringUtils.join(includes, ",");
+            }
+        }
+        Arrays.sort(parts);
+
+        Map<String,String> metadata = request.getMetadata() == null ?
+            Collections.<String,String>emptyMap() : new TreeMap<String,String>(request.getMetadata());
+        return operation+"|"+request.getStructure()+"|"+StringUtils.join(parts, "&")+"|"+request.getFields()+"|"+metadata;
+    }
+
+    // Copies a count, record or record list, and the maps and lists of its values
+    static Object copy(Object value) {
+        if (value instanceof RecordList) {
+            RecordList recordList = (RecordList)value;
+            List<Record> records = null;
+            if (recordList.getRecords() != null) {
+                records = new ArrayList<Record>(recordList.getRecords().size());
+                for (Record record : recordList.getRecords()) records.add((Record)copy(record));
+            }
+            List<String> fields = recordList.getFields() == null ? null : new ArrayList<String>(recordList.getFields());
+            return new RecordList(fields, records, copyMetadata(recordList.getMetadata()));
+        }
+        if (value instanceof Record) {
+            Record record = (Record)value;
+            @SuppressWarnings("unchecked")
+            Map<String,Object> values = (Map<String,Object>)copy(record.getRecord());
+            return new Record(values, copyMetadata(record.getMetadata()));
+        }
+        if (value instanceof Count) {
+            Count count = (Count)value;
+            return new Count(count.getValue(), copyMetadata(count.getMetadata()));
+        }
+        if (value instanceof Map) {
+            Map<Object,Object> map = value instanceof JSONObject ? new JSONObject() : new LinkedHashMap<Object,Object>();
+            for (Object entry : ((Map)value).entrySet()) {
+                map.put(((Map.Entry)entry).getKey(), copy(((Map.Entry)entry).getValue()));
+            }
+            return map;
+        }
+        if (value instanceof List) {
+            List<Object> list = value instanceof JSONArray ? new JSONArray() : new ArrayList<Object>();
+            for (Object item : (List)value) list.add(copy(item));
+            return list;
+        }
+        // Strings, numbers and booleans can't be changed
+        return value;
+    }
+
+    private static Map<String,String> copyMetadata(Map<String,String> metadata) {
+        return metadata == null ? null : new LinkedHashMap<String,String>(metadata);
+    }
+
+    // The approximate amount of memory (in bytes) that a result uses
+    static long estimateSize(Object value) {
+        if (value == null) return 8;
+        if (value instanceof String) return 40 + 2L * ((String)value).length();
+        if (value instanceof Map) {
+            long size = 48;
+            for (Object entry : ((Map)value).entrySet()) {
+                size += 32 + estimateSize(((Map.Entry)entry).getKey()) + estimateSize(((Map.Entry)entry).getValue());
+            }
+            return size;
+        }
+        if (value instanceof Collection) {
+            long size = 24;
+            for (Object item : (Collection)value) {
+                size += 8 + estimateSize(item);
+            }
+            return size;
+        }
+        if (value instanceof Record) {
+            Record record = (Record)value;
+            return 24 + estimateSize(record.getRecord()) + estimateSize(record.getMetadata());
+        }
+        if (value instanceof RecordList) {
+            RecordList recordList = (RecordList)value;
+            return 24 + estimateSize(recordList.getFields()) + estimateSize(recordList.getRecords()) + estimateSize(recordList.getMetadata());
+        }
+        if (value instanceof Count) return 32 + estimateSize(((Count)value).getMetadata());
+        return 16 + 2L * String.valueOf(value).length();
+    }
+
+    private static class Entry {
+        private final Object value;
+        private final long size;
+        private final long expiresAt;
+        private final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+        private Entry(Object value, long size, long expiresAt) {
+            this.value = value;
+            this.size = size;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    // A count-min sketch of how often the keys have been requested recently. The counts are halved
+    // once the sketch has counted ten times its width, so keys that are no longer requested fade out.
+    static class FrequencySketch {
+        private static final int DEPTH = 4;
+        private final int[][] counts;
+        private final int width;
+        private int additions;
+
+        FrequencySketch(int width) {
+            this.width = width;
+            this.counts = new int[DEPTH][width];
+        }
+
+        // Counts the key and returns its estimated count (including this request)
+        synchronized int increment(String key) {
+            int[] indexes = indexes(key);
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < DEPTH; i++) {
+                frequency = Math.min(frequency, counts[i][indexes[i]]);
+            }
+            // Only the smallest counts are incremented (conservative update)
+            for (int i = 0; i < DEPTH; i++) {
+                if (counts[i][indexes[i]] == frequency) counts[i][indexes[i]]++;
+            }
+            if (++additions >= 10 * width) {
+                for (int[] row : counts) {
+                    for (int j = 0; j < row.length; j++) row[j] >>>= 1;
+                }
+                additions /= 2;
+            }
+            return frequency + 1;
+        }
+
+        private int[] indexes(String key) {
+            int hash = key.hashCode();
+            int[] indexes = new int[DEPTH];
+            for (int i = 0; i < DEPTH; i++) {
+                // A different odd multiplier spreads the hash differently for each row
+                int h = (hash ^ (hash >>> 16)) * (0x9E3779B1 + 2 * i);
+                h ^= h >>> 15;
+                indexes[i] = (h & Integer.MAX_VALUE) % width;
+            }
+            return indexes;
+        }
+    }
+}
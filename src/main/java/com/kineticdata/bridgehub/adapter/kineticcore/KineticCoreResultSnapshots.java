@@ -0,0 +1,221 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import com.kineticdata.bridgehub.adapter.BridgeRequest;
+import com.kineticdata.bridgehub.adapter.Record;
+import com.kineticdata.bridgehub.adapter.RecordList;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Pages through the users, teams, kapps, forms, datastores or partitioned submission searches that
+ * are searched (and sorted) in memory, holding on to the results of a search so that the following
+ * pages don't have to be searched again.
+ * <p>
+ * When a search has more than one page its results are kept as a snapshot and the page token
+ * references the snapshot and the offset of the next page (Base64 encoded snapshotId:offset), so
+ * the next page is a slice of the same results even when the data has changed in the meantime.
+ * The first page only selects the records up to the end of the page, the snapshot is sorted
+ * completely when its second page is requested. Snapshots are evicted once they haven't been used
+ * for the time to live, or when the snapshots hold more than the maximum number of records. A
+ * page token whose snapshot has been evicted (or an integer offset token) searches again and
+ * returns the page at the offset of the token. The temporary files of a snapshot that was spilled
+ * while it was sorted are released when the snapshot is evicted.
+ */
+public class KineticCoreResultSnapshots {
+    /** The default time (in seconds) that a snapshot is kept after it was last used. */
+    public static final long DEFAULT_TTL_SECONDS = 300;
+    /** The default maximum number of records that are held by the snapshots. */
+    public static final long DEFAULT_MAXIMUM_RECORDS = 100000;
+
+    /** Searches and returns the records of the request (and how they are sorted). */
+    public interface Loader {
+        Result load() throws BridgeError;
+    }
+
+    /** The unsorted records of a search and the keys that they are sorted by. */
+    public static class Result {
+        private final List<Record> records;
+        private final KineticCoreSortKeys keys;
+
+        public Result(List<Record> records, KineticCoreSortKeys keys) {
+            this.records = records;
+            this.keys = keys;
+        }
+    }
+
+    private final KineticCoreExternalSorter sorter;
+    private final Cache<String,Snapshot> snapshots;
+
+    public KineticCoreResultSnapshots() {
+        this(new KineticCoreExternalSorter(), DEFAULT_TTL_SECONDS, DEFAULT_MAXIMUM_RECORDS);
+    }
+
+    /**
+     * @param sorter
+     * @param ttlSeconds how long a snapshot is kept after it was last used
+     * @param maximumRecords the maximum number of records that the snapshots can hold
+     */
+    public KineticCoreResultSnapshots(KineticCoreExternalSorter sorter, long ttlSeconds, long maximumRecords) {
+        this.sorter = sorter;
+        // A single segment, otherwise the maximum is split between the segments and a snapshot
+        // larger than a segment's share would be evicted as soon as it was put
+        this.snapshots = CacheBuilder.newBuilder()
+            .concurrencyLevel(1)
+            .expireAfterAccess(Math.max(0, ttlSeconds), TimeUnit.SECONDS)
+            .maximumWeight(Math.max(0, maximumRecords))
+            .weigher(new Weigher<String,Snapshot>() {
+                @Override
+                public int weigh(String id, Snapshot snapshot) {
+                    return snapshot.size;
+                }
+            })
+            .removalListener(new RemovalListener<String,Snapshot>() {
+                @Override
+                public void onRemoval(RemovalNotification<String,Snapshot> notification) {
+                    // A snapshot is put again for each of its pages, which replaces it with itself
+                    if (notification.getCause() != RemovalCause.REPLACED) notification.getValue().release();
+                }
+            })
+            .build();
+    }
+
+    /**
+     * Returns the page of the request, from the snapshot referenced by the request's page token
+     * or by loading the records.
+     *
+     * @param request
+     * @param loader
+     * @return
+     * @throws BridgeError
+     */
+    public RecordList search(BridgeRequest request, Loader loader) throws BridgeError {
+        String limit = request.getMetadata("limit");
+        return search(request, request.getMetadata("pageToken"),
+            limit == null || limit.isEmpty() ? null : Integer.valueOf(limit), "pageToken", loader);
+    }
+
+    /**
+     * Returns the page of the request that starts at the page token, from the snapshot referenced
+     * by the token or by loading the records. The token of the next page is returned as the
+     * tokenName metadata.
+     *
+     * @param request
+     * @param pageToken
+     * @param limit the size of the page, null returns every record after the page token
+     * @param tokenName
+     * @param loader
+     * @return
+     * @throws BridgeError
+     */
+    public RecordList search(BridgeRequest request, String pageToken, Integer limit, String tokenName,
+        Loader loader) throws BridgeError {
+        String snapshotId = null;
+        int offset = 0;
+        if (pageToken != null && !pageToken.isEmpty()) {
+            String token = new String(Base64.decodeBase64(pageToken));
+            int index = token.lastIndexOf(':');
+            // Tokens without a snapshot are just the offset
+            if (index != -1) snapshotId = token.substring(0, index);
+            try {
+                offset = Math.max(0, Integer.parseInt(token.substring(index + 1)));
+            } catch (NumberFormatException e) {
+                throw new BridgeError(String.format("Invalid Request: The pageToken '%s' is not valid.",pageToken));
+            }
+        }
+
+        // The snapshot is only used by the request that it was taken for
+        String key = key(request);
+        Snapshot snapshot = snapshotId == null ? null : snapshots.getIfPresent(snapshotId);
+        List<Record> records = snapshot == null || !snapshot.key.equals(key) ? null : snapshot.page(offset, limit);
+        // There isn't a snapshot or it was evicted (and released) since it was retrieved
+        if (records == null) {
+            Result result = loader.load();
+            snapshotId = UUID.randomUUID().toString();
+            snapshot = new Snapshot(key, result.records, result.keys);
+            records = snapshot.page(offset, limit);
+        }
+
+        int size = limit == null ? snapshot.size-offset : limit;
+
+        String nextPageToken = null;
+        if (offset+size < snapshot.size) {
+            nextPageToken = Base64.encodeBase64String((snapshotId+":"+(offset+size)).getBytes());
+            snapshots.put(snapshotId, snapshot);
+        }
+
+        Map<String,String> metadata = new LinkedHashMap<String,String>();
+        metadata.put("size",String.valueOf(size));
+        metadata.put(tokenName,nextPageToken);
+
+        // Return the response
+        return new RecordList(request.getFields(), records, metadata);
+    }
+
+    public void clear() {
+        snapshots.invalidateAll();
+    }
+
+    private static String key(BridgeRequest request) {
+        return request.getStructure()+"|"+request.getQuery()+"|"+request.getFields()+"|"+request.getMetadata("order")
+            +"|"+request.getMetadata("partitionField");
+    }
+
+    // The records of a search, which are sorted once more than the first page is needed
+    private class Snapshot {
+        private final String key;
+        private final int size;
+        private final KineticCoreSortKeys keys;
+        private List<Record> records;
+        private boolean sorted;
+        private boolean paged;
+        private boolean released;
+
+        private Snapshot(String key, List<Record> records, KineticCoreSortKeys keys) {
+            this.key = key;
+            this.size = records.size();
+            this.records = records;
+            this.keys = keys;
+        }
+
+        // Returns the limit records from the offset (every record from the offset when the limit is
+        // null), or null when the snapshot has been released
+        private synchronized List<Record> page(int from, Integer limit) throws BridgeError {
+            if (released) return null;
+            from = Math.min(from, size);
+            int to = limit == null ? size : (int)Math.min(size, (long)from + limit);
+            List<Record> page;
+            if (sorted) {
+                page = new ArrayList<Record>(records.subList(from, to));
+            } else if (!paged) {
+                // The records are kept unsorted for the following pages, so select from a copy
+                List<Record> selected = sorter.sort(new ArrayList<Record>(records), keys, to);
+                page = new ArrayList<Record>(selected.subList(from, selected.size()));
+                KineticCoreExternalSorter.release(selected);
+            } else {
+                records = sorter.sort(records, keys);
+                sorted = true;
+                page = new ArrayList<Record>(records.subList(from, to));
+            }
+            paged = true;
+            return page;
+        }
+
+        // Releases the temporary files of the sorted records
+        private synchronized void release() {
+            released = true;
+            KineticCoreExternalSorter.release(records);
+        }
+    }
+}
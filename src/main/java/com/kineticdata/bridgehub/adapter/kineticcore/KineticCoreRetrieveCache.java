@@ -0,0 +1,172 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import static com.kineticdata.bridgehub.adapter.kineticcore.KineticCoreAdapter.logger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.HttpStatus;
+import org.json.simple.JSONObject;
+
+/**
+ * Caches the responses of the submission and record retrieves (/submissions/{id} and
+ * /records/{id}), keyed by the id and the set of included properties.
+ * <p>
+ * A cached response is served until its time to live has passed, so a submission or record can be
+ * out of date for up to the time to live. When revalidation is turned on (it is off by default,
+ * because it makes every cache hit a request to the server) the cached response is only served
+ * after a minimal request (only the details of the submission or record) shows that its updatedAt
+ * hasn't changed, otherwise the response is retrieved again.
+ * Responses of ids that weren't found (404) are cached as well, for a shorter time to live and for
+ * every set of included properties. The cache is bounded by the approximate size (in bytes) of the
+ * response bodies that it holds, the least recently used responses are evicted first.
+ * <p>
+ * The cache is off by default (both times to live are 0), because a submission or record that was
+ * just created or updated (ie. by a task tree that retrieves it in its next node) could otherwise
+ * be served as it was before the change.
+ * <p>
+ * The cached responses are shared between requests (see KineticCoreHttpFetcher.Response).
+ */
+public class KineticCoreRetrieveCache {
+    /** The default time to live of a cached response (in seconds), responses aren't cached by default. */
+    public static final long DEFAULT_TTL_SECONDS = 0;
+    /** The default time to live of a cached not found response (in seconds), they aren't cached by default. */
+    public static final long DEFAULT_NOT_FOUND_TTL_SECONDS = 0;
+    /** The default maximum size (in bytes) of the cached responses. */
+    public static final long DEFAULT_MAXIMUM_SIZE = 16L * 1024 * 1024;
+    // The approximate size (in bytes) of an entry besides its response body and key
+    private static final int ENTRY_OVERHEAD = 128;
+    // The fields that are compared to revalidate a cached response
+    private static final List<String> UPDATED_AT = Arrays.asList(new String[] { "updatedAt" });
+
+    private final KineticCoreHttpFetcher fetcher;
+    private final long ttlMillis;
+    private final long notFoundTtlMillis;
+    private final boolean revalidate;
+    private final Cache<String,Entry> entries;
+
+    public KineticCoreRetrieveCache(KineticCoreHttpFetcher fetcher) {
+        this(fetcher, DEFAULT_TTL_SECONDS, DEFAULT_NOT_FOUND_TTL_SECONDS, DEFAULT_MAXIMUM_SIZE, false);
+    }
+
+    /**
+     * @param fetcher
+     * @param ttlSeconds how long a response is cached (0 doesn't cache responses)
+     * @param notFoundTtlSeconds how long a not found response is cached (0 doesn't cache them)
+     * @param maximumSize the maximum size (in bytes) of the cached responses
+     * @param revalidate whether the updatedAt of a cached response is checked before it is served
+     */
+    public KineticCoreRetrieveCache(KineticCoreHttpFetcher fetcher, long ttlSeconds, long notFoundTtlSeconds,
+        long maximumSize, boolean revalidate) {
+        this.fetcher = fetcher;
+        this.ttlMillis = Math.max(0, ttlSeconds) * 1000;
+        this.notFoundTtlMillis = Math.max(0, notFoundTtlSeconds) * 1000;
+        this.revalidate = revalidate;
+        // A single segment, otherwise the maximum is split between the segments and a response
+        // larger than a segment's share would never be cached
+        this.entries = CacheBuilder.newBuilder()
+            .concurrencyLevel(1)
+            .expireAfterWrite(Math.max(this.ttlMillis, this.notFoundTtlMillis), TimeUnit.MILLISECONDS)
+            .maximumWeight(Math.max(0, maximumSize))
+            .weigher(new Weigher<String,Entry>() {
+                @Override
+                public int weigh(String key, Entry entry) {
+                    long size = ENTRY_OVERHEAD + 2L * (key.length() + entry.response.getBody().length());
+                    return (int)Math.min(Integer.MAX_VALUE, size);
+                }
+            })
+            .build();
+    }
+
+    /**
+     * Returns the response of the submission or record, from the cache or by retrieving it.
+     *
+     * @param resourceUrl the url of the submission or record (without any query parameters)
+     * @param resultKey the property of the response that holds the submission or record
+     * @param includes the properties that are included
+     * @return
+     * @throws BridgeError
+     */
+    public KineticCoreHttpFetcher.Response get(String resourceUrl, String resultKey, Collection<String> includes) throws BridgeError {
+        // The includes are sorted so that the same set of includes always has the same key, and
+        // the details are needed to know the updatedAt of the response when it is revalidated
+        TreeSet<String> includeSet = new TreeSet<String>(includes);
+        if (this.revalidate) includeSet.add("details");
+        String include = KineticCoreIncludePlanner.toParameter(new ArrayList<String>(includeSet));
+        String url = include == null ? resourceUrl : resourceUrl+"?"+include;
+        String notFoundKey = "404 "+resourceUrl;
+
+        long now = System.currentTimeMillis();
+        Entry notFound = this.entries.getIfPresent(notFoundKey);
+        if (notFound != null && now < notFound.expiresAt) {
+            logger.trace("Using the cached not found response for " + resourceUrl);
+            return notFound.response;
+        }
+
+        Entry entry = this.entries.getIfPresent(url);
+        if (entry != null && now < entry.expiresAt) {
+            if (!this.revalidate) {
+                logger.trace("Using the cached response for " + url);
+                return entry.response;
+            }
+            KineticCoreHttpFetcher.Response check = this.fetcher.fetch(resourceUrl+"?include=details", false);
+            if (check.getStatusCode() == HttpStatus.SC_NOT_FOUND) {
+                this.entries.invalidate(url);
+                cache(notFoundKey, check, resultKey, now);
+                return check;
+            }
+            String updatedAt = getUpdatedAt(check, resultKey);
+            if (updatedAt != null && updatedAt.equals(entry.updatedAt)) {
+                logger.trace("Unchanged updatedAt, using the cached response for " + url);
+                return entry.response;
+            }
+        }
+
+        KineticCoreHttpFetcher.Response response = this.fetcher.fetch(url, false);
+        if (response.getStatusCode() == HttpStatus.SC_OK) {
+            cache(url, response, resultKey, now);
+        } else if (response.getStatusCode() == HttpStatus.SC_NOT_FOUND) {
+            cache(notFoundKey, response, resultKey, now);
+        }
+        return response;
+    }
+
+    public void clear() {
+        this.entries.invalidateAll();
+    }
+
+    private void cache(String key, KineticCoreHttpFetcher.Response response, String resultKey, long now) {
+        boolean found = response.getStatusCode() == HttpStatus.SC_OK;
+        long ttl = found ? this.ttlMillis : this.notFoundTtlMillis;
+        if (ttl > 0) {
+            this.entries.put(key, new Entry(response, found ? getUpdatedAt(response, resultKey) : null, now + ttl));
+        }
+    }
+
+    // Returns the updatedAt of the submission or record of the response (only parsing its updatedAt)
+    private static String getUpdatedAt(KineticCoreHttpFetcher.Response response, String resultKey) {
+        if (response.getStatusCode() != HttpStatus.SC_OK) return null;
+        JSONObject json = new KineticCoreProjection(resultKey, UPDATED_AT).parse(response.getBody());
+        Object result = json == null ? null : json.get(resultKey);
+        Object updatedAt = result instanceof JSONObject ? ((JSONObject)result).get("updatedAt") : null;
+        return updatedAt == null ? null : updatedAt.toString();
+    }
+
+    private static class Entry {
+        private final KineticCoreHttpFetcher.Response response;
+        private final String updatedAt;
+        private final long expiresAt;
+
+        private Entry(KineticCoreHttpFetcher.Response response, String updatedAt, long expiresAt) {
+            this.response = response;
+            this.updatedAt = updatedAt;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import com.kineticdata.bridgehub.adapter.Record;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.regex.Pattern;
+import org.json.simple.JSONValue;
+
+/**
+ * Sorts records by the fields of an order (field name to ASC or DESC).
+ * <p>
+ * The sort key of every record is extracted once before the records are sorted (instead of on
+ * every comparison) and the records are put back in the sorted order of their keys. The keys are
+ * type aware: numbers are compared numerically, ISO 8601 timestamps (ie. createdAt) are compared
+ * by the instant that they represent and other strings are compared ignoring case. Null values
+ * come first in ascending order. Values of different types are ordered booleans, numbers,
+ * timestamps and then strings.
+ */
+public class KineticCoreSortKeys {
+    // A value that compares as equal to every other value (lists when skipLists is true)
+    private static final Object SKIP = new Object();
+    private static final Pattern TIMESTAMP_PATTERN = Pattern.compile(
+        "\\d{4}-\\d{2}-\\d{2}T\\d{2}:\\d{2}(:\\d{2}(\\.\\d{3})?)?(Z|[+-]\\d{2}:?\\d{2})");
+
+    private final String[] fields;
+    private final boolean[] descending;
+    private final boolean skipLists;
+
+    /**
+     * @param order the fields to sort by and their direction (ASC or DESC)
+     * @param skipLists whether fields that have a list value are ignored when comparing two records
+     *   (instead of comparing the JSON of the list)
+     */
+    public KineticCoreSortKeys(Map<String,String> order, boolean skipLists) {
+        this.fields = order.keySet().toArray(new String[order.size()]);
+        this.descending = new boolean[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            descending[i] = "DESC".equals(order.get(fields[i]));
+        }
+        this.skipLists = skipLists;
+    }
+
+    /**
+     * Sorts the records in place (the sort is stable) and returns them.
+     *
+     * @param records
+     * @return
+     */
+    public List<Record> sort(List<Record> records) {
+        Decorated[] decorated = new Decorated[records.size()];
+        for (int i = 0; i < decorated.length; i++) {
+            Record record = records.get(i);
+            decorated[i] = new Decorated(extract(record), record, i);
+        }
+        Arrays.sort(decorated, new Comparator<Decorated>() {
+            @Override
+            public int compare(Decorated d1, Decorated d2) {
+                return KineticCoreSortKeys.this.compare(d1.keys, d2.keys);
+            }
+        });
+        for (int i = 0; i < decorated.length; i++) {
+            records.set(i, decorated[i].record);
+        }
+        return records;
+    }
+
+    /**
+     * Returns the first count records in sorted order (the same records, in the same order, as the
+     * start of the fully sorted list) without sorting the rest of the records. Only count records
+     * are kept in a bounded heap, so selecting a page out of n records takes O(n log count).
+     *
+     * @param records
+     * @param count
+     * @return
+     */
+    public List<Record> top(List<Record> records, int count) {
+        if (count <= 0) return new ArrayList<Record>();
+        // The heap's head is the largest of the records that have been kept so far
+        PriorityQueue<Decorated> heap = new PriorityQueue<Decorated>(count + 1, new Comparator<Decorated>() {
+            @Override
+            public int compare(Decorated d1, Decorated d2) {
+                return compareDecorated(d2, d1);
+            }
+        });
+        for (int i = 0; i < records.size(); i++) {
+            Record record = records.get(i);
+            Decorated decorated = new Decorated(extract(record), record, i);
+            if (heap.size() < count) {
+                heap.add(decorated);
+            } else if (compareDecorated(decorated, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(decorated);
+            }
+        }
+
+        Record[] top = new Record[heap.size()];
+        for (int i = top.length - 1; i >= 0; i--) {
+            top[i] = heap.poll().record;
+        }
+        return new ArrayList<Record>(Arrays.asList(top));
+    }
+
+    /**
+     * Returns a comparator that orders records the same way as sort does (extracting the keys on
+     * every comparison, for when the records can't all be decorated at once).
+     *
+     * @return
+     */
+    public Comparator<Record> comparator() {
+        return new Comparator<Record>() {
+            @Override
+            public int compare(Record r1, Record r2) {
+                return KineticCoreSortKeys.this.compare(extract(r1), extract(r2));
+            }
+        };
+    }
+
+    // Returns the sort key of each of the order fields
+    Object[] extract(Record record) {
+        Object[] keys = new Object[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            keys[i] = key(record.getValue(fields[i]));
+        }
+        return keys;
+    }
+
+    private Object key(Object value) {
+        if (value == null || value instanceof Boolean) return value;
+        if (value instanceof List && skipLists) return SKIP;
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return ((Number)value).longValue();
+        }
+        if (value instanceof Number) return ((Number)value).doubleValue();
+
+        String string = value instanceof String ? (String)value : JSONValue.toJSONString(value);
+        Long timestamp = parseTimestamp(string);
+        return timestamp != null ? new Timestamp(timestamp) : string.toLowerCase();
+    }
+
+    // Orders records with equal keys by their position, so the order is the same as a stable sort
+    private int compareDecorated(Decorated d1, Decorated d2) {
+        int result = compare(d1.keys, d2.keys);
+        return result != 0 ? result : (d1.index < d2.index ? -1 : (d1.index == d2.index ? 0 : 1));
+    }
+
+    int compare(Object[] keys1, Object[] keys2) {
+        for (int i = 0; i < keys1.length; i++) {
+            int result = descending[i] ? compareKeys(keys2[i], keys1[i]) : compareKeys(keys1[i], keys2[i]);
+            if (result != 0) return result;
+        }
+        return 0;
+    }
+
+    private static int compareKeys(Object k1, Object k2) {
+        if (k1 == SKIP || k2 == SKIP || k1 == k2) return 0;
+        if (k1 == null) return -1;
+        if (k2 == null) return 1;
+
+        int rank1 = rank(k1);
+        int rank2 = rank(k2);
+        if (rank1 != rank2) return rank1 < rank2 ? -1 : 1;
+        if (k1 instanceof Long && k2 instanceof Long) {
+            return compare((Long)k1, (Long)k2);
+        } else if (k1 instanceof Number) {
+            return Double.compare(((Number)k1).doubleValue(), ((Number)k2).doubleValue());
+        } else if (k1 instanceof Timestamp) {
+            return compare(((Timestamp)k1).millis, ((Timestamp)k2).millis);
+        } else if (k1 instanceof Boolean) {
+            return ((Boolean)k1).compareTo((Boolean)k2);
+        }
+        return ((String)k1).compareTo((String)k2);
+    }
+
+    private static int rank(Object key) {
+        if (key instanceof Boolean) return 0;
+        if (key instanceof Number) return 1;
+        if (key instanceof Timestamp) return 2;
+        return 3;
+    }
+
+    private static int compare(long l1, long l2) {
+        return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+    }
+
+    // Returns the epoch millis of an ISO 8601 timestamp, or null if the value isn't a timestamp
+    private static Long parseTimestamp(String value) {
+        // Check the shape before using the pattern, most values aren't timestamps
+        if (value.length() < 17 || value.length() > 29 || value.charAt(4) != '-' || value.charAt(10) != 'T') return null;
+        if (!TIMESTAMP_PATTERN.matcher(value).matches()) return null;
+        try {
+            return KineticCoreTimelinePartitioner.parseTimestamp(value);
+        } catch (BridgeError e) {
+            return null;
+        }
+    }
+
+    // A timestamp value
+    private static class Timestamp {
+        private final long millis;
+
+        private Timestamp(long millis) {
+            this.millis = millis;
+        }
+    }
+
+    // A record, its sort keys and its position in the unsorted list
+    private static class Decorated {
+        private final Object[] keys;
+        private final Record record;
+        private final int index;
+
+        private Decorated(Object[] keys, Record record, int index) {
+            this.keys = keys;
+            this.record = record;
+            this.index = index;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Merges lists (or iterators) that are each already sorted into a single sorted list.
+ * <p>
+ * Only the head of each list is kept in the heap, so retrieving a single page out of the merged
+ * results only compares the items up to the end of that page. Items that compare as equal are
+ * returned in the order of the lists they came from.
+ */
+public class KineticCoreSortedMerge {
+
+    /**
+     * Merges the sorted lists and returns at most limit items, starting at the offset into the
+     * merged results.
+     *
+     * @param lists
+     * @param comparator
+     * @param offset
+     * @param limit
+     * @return
+     */
+    public static <T> List<T> merge(List<List<T>> lists, Comparator<? super T> comparator, int offset, int limit) {
+        List<Iterator<T>> iterators = new ArrayList<Iterator<T>>();
+        for (List<T> list : lists) {
+            iterators.add(list.iterator());
+        }
+        Iterator<T> merged = iterator(iterators, comparator);
+
+        List<T> results = new ArrayList<T>();
+        int position = 0;
+        while (merged.hasNext() && results.size() < limit) {
+            T value = merged.next();
+            if (position++ >= offset) results.add(value);
+        }
+        return results;
+    }
+
+    /**
+     * Returns an iterator that lazily merges the items of the sorted iterators, only reading the
+     * next item of an iterator once its current item has been returned.
+     *
+     * @param iterators
+     * @param comparator
+     * @return
+     */
+    public static <T> Iterator<T> iterator(List<? extends Iterator<T>> iterators, final Comparator<? super T> comparator) {
+        final PriorityQueue<Head<T>> heap = new PriorityQueue<Head<T>>(Math.max(1, iterators.size()), new Comparator<Head<T>>() {
+            @Override
+            public int compare(Head<T> h1, Head<T> h2) {
+                int result = comparator.compare(h1.value, h2.value);
+                return result != 0 ? result : h1.list - h2.list;
+            }
+        });
+        for (int i = 0; i < iterators.size(); i++) {
+            Iterator<T> iterator = iterators.get(i);
+            if (iterator.hasNext()) heap.add(new Head<T>(i, iterator.next(), iterator));
+        }
+
+        return new Iterator<T>() {
+            @Override
+            public boolean hasNext() {
+                return !heap.isEmpty();
+            }
+
+            @Override
+            public T next() {
+                if (heap.isEmpty()) throw new NoSuchElementException();
+                Head<T> head = heap.poll();
+                if (head.iterator.hasNext()) {
+                    heap.add(new Head<T>(head.list, head.iterator.next(), head.iterator));
+                }
+                return head.value;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    // The current item of one of the lists that are being merged
+    private static class Head<T> {
+        private final int list;
+        private final T value;
+        private final Iterator<T> iterator;
+
+        private Head(int list, T value, Iterator<T> iterator) {
+            this.list = list;
+            this.value = value;
+            this.iterator = iterator;
+        }
+    }
+}
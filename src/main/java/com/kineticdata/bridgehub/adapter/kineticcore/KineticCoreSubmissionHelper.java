@@ -8,30 +8,38 @@ import com.kineticdata.bridgehub.adapter.Record;
 import com.kineticdata.bridgehub.adapter.RecordList;
 import static com.kineticdata.bridgehub.adapter.kineticcore.KineticCoreAdapter.logger;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.URLEncoder;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang.StringUtils;
-import org.apache.commons.lang.builder.CompareToBuilder;
+import org.apache.http.Consts;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.util.EntityUtils;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
 
 /**
  *
@@ -40,15 +48,41 @@ public class KineticCoreSubmissionHelper {
     private final String username;
     private final String password;
     private final String spaceUrl;
-    private final Pattern fieldPattern;
+    private final HttpClient client;
+    private final KineticCoreHttpFetcher fetcher;
+    private final KineticCoreExternalSorter sorter;
+    private final KineticCoreRetrieveCache retrieveCache;
+    private final KineticCorePageTokens pageTokens;
+    private final KineticCoreResultSnapshots snapshots;
+    private final KineticCorePagePipeline pagePipeline;
+    private final KineticCoreTimelinePartitioner partitioner;
 
     public KineticCoreSubmissionHelper(String username, String password, String spaceUrl) {
+        this(username, password, spaceUrl, HttpClients.createDefault(), null, null, new KineticCoreExternalSorter(), null, null, null);
+    }
+
+    public KineticCoreSubmissionHelper(String username, String password, String spaceUrl, HttpClient client,
+        KineticCoreHttpFetcher fetcher, ExecutorService executor, KineticCoreExternalSorter sorter, KineticCoreRetrieveCache retrieveCache,
+        KineticCorePageTokens pageTokens, KineticCoreResultSnapshots snapshots) {
         this.username = username;
         this.password = password;
         this.spaceUrl = spaceUrl;
-        this.fieldPattern = Pattern.compile("(\\S+)\\[(.*?)\\]");
+        this.client = client;
+        this.fetcher = fetcher != null ? fetcher : new KineticCoreHttpFetcher(client, username, password);
+        this.sorter = sorter;
+        this.retrieveCache = retrieveCache != null ? retrieveCache : new KineticCoreRetrieveCache(this.fetcher);
+        this.pageTokens = pageTokens != null ? pageTokens : new KineticCorePageTokens();
+        this.snapshots = snapshots != null ? snapshots : new KineticCoreResultSnapshots(sorter,
+            KineticCoreResultSnapshots.DEFAULT_TTL_SECONDS, KineticCoreResultSnapshots.DEFAULT_MAXIMUM_RECORDS);
+        this.pagePipeline = new KineticCorePagePipeline(executor);
+        this.partitioner = new KineticCoreTimelinePartitioner(executor);
     }
 
+    /** Query parameters that are replaced by the partitions when doing a partitioned count. */
+    public static final List<String> TIMELINE_PARAMETERS = Arrays.asList(new String[] {
+        "timeline","start","end","direction"
+    });
+
     public Count count(BridgeRequest request) throws BridgeError {
        Integer count = countSubmissions(request,null);
 
@@ -56,20 +90,15 @@ public class KineticCoreSubmissionHelper {
     }
 
     public Record retrieve(BridgeRequest request) throws BridgeError {
-        String submissionId = null;
-        if (request.getQuery().matches("[Ii][Dd]=.*?(?:$|&)")) {
-            Pattern p = Pattern.compile("[Ii][Dd]=(.*?)(?:$|&)");
-            Matcher m = p.matcher(request.getQuery());
-
-            if (m.find()) {
-                submissionId = m.group(1);
-            }
-        }
+        // An id anywhere in the query is retrieved directly
+        String submissionId = KineticCoreQualificationParser.getId(request.getQuery());
 
         String url;
         JSONObject submission;
         if (submissionId == null) {
-            JSONObject response = searchSubmissions(request);
+            // Two results are enough to know that the query doesn't have a single match (a
+            // smaller pageSize or query limit would hide the second match)
+            JSONObject response = searchSubmissions(request, "2");
             JSONArray submissions = (JSONArray)response.get("submissions");
 
             if (submissions.size() > 1) {
@@ -80,40 +109,30 @@ public class KineticCoreSubmissionHelper {
                 submission = (JSONObject)submissions.get(0);
             }
         } else {
-            url = String.format("%s/app/api/v1/submissions/%s?include=values,details",this.spaceUrl,submissionId);
-
-            HttpClient client = HttpClients.createDefault();
-            HttpResponse response;
-            HttpGet get = new HttpGet(url);
-            get = addAuthenticationHeader(get, this.username, this.password);
-
-            String output = "";
-            try {
-                response = client.execute(get);
-
-                logger.trace("Request response code: " + response.getStatusLine().getStatusCode());
-                HttpEntity entity = response.getEntity();
-                if (response.getStatusLine().getStatusCode() == 404) {
-                    throw new BridgeError(String.format("Not Found: The submission with the id '%s' cannot be found.",submissionId));
-                }
-                output = EntityUtils.toString(entity);
-            }
-            catch (IOException e) {
-                logger.error(e.getMessage());
-                throw new BridgeError("Unable to make a connection to the Kinetic Core server.");
+            // Only include the properties that the fields need
+            List<String> includes = KineticCoreIncludePlanner.plan(request, Collections.<String>emptyList());
+            url = String.format("%s/app/api/v1/submissions/%s",this.spaceUrl,submissionId);
+
+            // The same submissions are retrieved repeatedly, so their responses are cached
+            KineticCoreHttpFetcher.Response response = this.retrieveCache.get(url, "submission", includes);
+            if (response.getStatusCode() == 404) {
+                throw new BridgeError(String.format("Not Found: The submission with the id '%s' cannot be found.",submissionId));
             }
-
-            JSONObject json = (JSONObject)JSONValue.parse(output);
-            submission = (JSONObject)json.get("submission");
+            submission = (JSONObject)response.getJson(new KineticCoreProjection("submission", request.getFields())).get("submission");
         }
 
         return createRecordFromSubmission(request.getFields(), submission);
     }
 
     public RecordList search(BridgeRequest request) throws BridgeError {
+        // A partitioned search retrieves every page so that the results can be ordered
+        if ("partitioned".equals(request.getMetadata("searchStrategy"))) {
+            return searchSubmissionsByPartition(request);
+        }
+
         // Initialize the metadata variable that will be returned
         Map<String,String> metadata = new LinkedHashMap<String,String>();
-        JSONObject response = searchSubmissions(request);
+        JSONObject response = searchSubmissions(request, null);
         JSONArray submissions = (JSONArray)response.get("submissions");
 
         List<Record> records = createRecordsFromSubmissions(request.getFields(), submissions);
@@ -153,6 +172,148 @@ public class KineticCoreSubmissionHelper {
         return new RecordList(request.getFields(), records, metadata);
     }
 
+    // Retrieves all of the submissions that match the query by splitting the query into timeline
+    // partitions that are retrieved in parallel. The submissions are kept as a snapshot that is
+    // sorted (by the external sorter) so the order metadata is honored across every page, and the
+    // following pages are sliced out of the snapshot instead of being retrieved again. The
+    // nextPageToken that is returned references the snapshot and the offset of the next page.
+    private RecordList searchSubmissionsByPartition(final BridgeRequest request) throws BridgeError {
+        // Retrieving the slugs for the kapp and form slug that were passed in the query
+        String kappSlug = null;
+        String formSlug = null;
+        String limit = null;
+        List<String> queryPartsList = new ArrayList<String>();
+        List<String> queryIncludes = new ArrayList<String>();
+        final Map<String,String> timelineParameters = new HashMap<String,String>();
+        for (String[] parameter : KineticCoreQualificationParser.getParameters(request.getQuery())) {
+            String field = parameter[0];
+            String value = parameter[1];
+            if (field.equals("formSlug")) { formSlug = value; }
+            else if (field.equals("kappSlug")) { kappSlug = value; }
+            else if (field.equals("limit")) { limit = value; }
+            else if (TIMELINE_PARAMETERS.contains(field)) { timelineParameters.put(field, value); }
+            else if (field.equals("include")) { queryIncludes.add(value); }
+            else {
+                queryPartsList.add(KineticCoreQualificationParser.toQueryPart(field, value));
+            }
+        }
+
+        if (kappSlug == null) {
+            throw new BridgeError("Invalid Request: The bridge query needs to include a kappSlug.");
+        }
+
+        // The size of the page that is returned (the pages retrieved from Core always use 1000)
+        int pageSize = 1000;
+        String pageSizeValue = request.getMetadata("pageSize") != null ? request.getMetadata("pageSize") : limit;
+        if (pageSizeValue != null && !pageSizeValue.isEmpty()) {
+            try {
+                pageSize = Integer.parseInt(pageSizeValue.trim());
+            } catch (NumberFormatException e) {
+                throw new BridgeError(String.format("Invalid Request: The page size '%s' is not a number.",pageSizeValue));
+            }
+        }
+
+        // name,type,desc assumes name ASC,type ASC,desc ASC
+        Map<String,String> order = new LinkedHashMap<String,String>();
+        if (request.getMetadata("order") == null) {
+            for (String field : request.getFields()) {
+                order.put(field, "ASC");
+            }
+        } else {
+            order = BridgeUtils.parseOrder(request.getMetadata("order"));
+        }
+        // Include the order fields in the records so that they can be sorted on
+        Set<String> fieldSet = new LinkedHashSet<String>(request.getFields());
+        fieldSet.addAll(order.keySet());
+        final List<String> fields = new ArrayList<String>(fieldSet);
+        final KineticCoreSortKeys keys = new KineticCoreSortKeys(order, false);
+
+        final String kapp = kappSlug;
+        final String form = formSlug;
+        final List<String> baseQueryParts = queryPartsList;
+        final List<String> includes = queryIncludes;
+        RecordList page = this.snapshots.search(request, request.getMetadata("pageToken"), pageSize, "nextPageToken",
+            new KineticCoreResultSnapshots.Loader() {
+                @Override
+                public KineticCoreResultSnapshots.Result load() throws BridgeError {
+                    List<Record> records = retrieveSubmissionsByPartition(request, kapp, form, baseQueryParts,
+                        includes, timelineParameters, fields);
+                    return new KineticCoreResultSnapshots.Result(records, keys);
+                }
+            });
+        page.getMetadata().put("size", String.valueOf(page.getRecords().size()));
+        return page;
+    }
+
+    // Retrieves the submissions of each of the timeline partitions (unsorted). Core returns the
+    // newest submissions of a range first, so when a partition holds more than a single page the
+    // submissions of its first page that are newer than the last one on the page are kept and only
+    // the older part of the range is split up further.
+    private List<Record> retrieveSubmissionsByPartition(BridgeRequest request, final String kapp, final String form,
+        List<String> baseQueryParts, List<String> queryIncludes, Map<String,String> timelineParameters,
+        final List<String> fields) throws BridgeError {
+        final String timeline = getPartitionTimeline(request, timelineParameters);
+        KineticCoreTimelinePartitioner.Range bounds = getPartitionBounds(kapp, form, baseQueryParts, timeline, timelineParameters);
+        if (bounds == null) return new ArrayList<Record>();
+
+        // The timeline value is needed to know which submissions of a first page can be kept
+        Set<String> projectionFields = new LinkedHashSet<String>(fields);
+        projectionFields.add(timeline);
+        final KineticCoreProjection projection = new KineticCoreProjection("submissions", projectionFields);
+        List<String> includes = KineticCoreIncludePlanner.plan(request, queryIncludes);
+        for (String include : KineticCoreIncludePlanner.plan(Arrays.asList(timeline))) {
+            if (!includes.contains(include)) includes.add(include);
+        }
+
+        List<String> timelineQueryParts = new ArrayList<String>(baseQueryParts);
+        String include = KineticCoreIncludePlanner.toParameter(includes);
+        if (include != null) timelineQueryParts.add(include);
+        timelineQueryParts.add("limit=1000");
+        timelineQueryParts.add("timeline="+timeline);
+        timelineQueryParts.add("direction=DESC");
+        final String timelineQuery = StringUtils.join(timelineQueryParts,"&");
+
+        List<JSONArray> partitions = this.partitioner.execute(new KineticCoreTimelinePartitioner.RangeTask<JSONArray>() {
+            @Override
+            public KineticCoreTimelinePartitioner.Result<JSONArray> run(KineticCoreTimelinePartitioner.Range range, boolean splittable) throws BridgeError {
+                String rangeQuery = timelineQuery+"&start="+URLEncoder.encode(range.getStartTimestamp())
+                    +"&end="+URLEncoder.encode(range.getEndTimestamp());
+                JSONObject page = searchSubmissions(kapp, form, rangeQuery, projection);
+                JSONArray submissions = new JSONArray();
+                submissions.addAll((JSONArray)page.get("submissions"));
+
+                // If there is more than one page in the partition, keep the submissions that are
+                // newer than the oldest one on the page and have the rest of the range split up
+                if (page.get("nextPageToken") != null && splittable && !submissions.isEmpty()) {
+                    Object oldest = ((JSONObject)submissions.get(submissions.size() - 1)).get(timeline);
+                    if (oldest != null) {
+                        long coveredFrom = KineticCoreTimelinePartitioner.parseTimestamp(oldest.toString()) + 1;
+                        JSONArray newer = new JSONArray();
+                        for (Object submission : submissions) {
+                            Object value = ((JSONObject)submission).get(timeline);
+                            if (value != null && KineticCoreTimelinePartitioner.parseTimestamp(value.toString()) >= coveredFrom) {
+                                newer.add(submission);
+                            }
+                        }
+                        return KineticCoreTimelinePartitioner.Result.partial(newer, coveredFrom);
+                    }
+                }
+
+                while (page.get("nextPageToken") != null) {
+                    page = searchSubmissions(kapp, form, rangeQuery+"&pageToken="+page.get("nextPageToken"), projection);
+                    submissions.addAll((JSONArray)page.get("submissions"));
+                }
+                return KineticCoreTimelinePartitioner.Result.complete(submissions);
+            }
+        }, bounds, getPartitionCount(request));
+
+        JSONArray submissions = new JSONArray();
+        for (JSONArray partition : partitions) {
+            submissions.addAll(partition);
+        }
+        return createRecordsFromSubmissions(fields, submissions);
+    }
+
     /*---------------------------------------------------------------------------------------------
      * HELPER METHODS
      *-------------------------------------------------------------------------------------------*/
@@ -180,25 +341,11 @@ public class KineticCoreSubmissionHelper {
     }
 
     private List<Record> createRecordsFromSubmissions(List<String> fields, JSONArray submissions) throws BridgeError {
-        // Create 'searchable' field list. If there needs to be a multi-level
-        // search (aka, values[Group]) the field's type will be List<String>
-        // instead of just String
-        List searchableFields = new ArrayList();
-        for (String field : fields) {
-            Matcher matcher = fieldPattern.matcher(field);
-            if (matcher.find()) {
-                List<String> multiLevelField = new ArrayList<String>();
-                multiLevelField.add(matcher.group(1));
-                multiLevelField.add(matcher.group(2));
-                searchableFields.add(multiLevelField);
-            } else {
-                searchableFields.add(field);
-            }
-        }
-
         // Go through the submissions in the JSONArray to create a list of records
         List<Record> records = new ArrayList<Record>();
         for (Object o : submissions) {
+            // The results were parsed with the projection of this request (so they aren't shared
+            // with other requests) and only hold the fields that are needed
             records.add(new Record((Map)o));
         }
 
@@ -210,152 +357,279 @@ public class KineticCoreSubmissionHelper {
 
     private Integer countSubmissions(BridgeRequest request, String pageToken) throws BridgeError {
         Integer count = 0;
-        String[] indvQueryParts = request.getQuery().split("&");
+        // A partitioned count splits the query into timeline ranges that are counted in parallel
+        boolean partitioned = "partitioned".equals(request.getMetadata("countStrategy"));
 
         // Retrieving the slugs for the kapp and form slug that were passed in the query
         String kappSlug = null;
         String formSlug = null;
         List<String> queryPartsList = new ArrayList<String>();
-        for (String indvQueryPart : indvQueryParts) {
-            String[] str_array = indvQueryPart.split("=");
-            String field = str_array[0].trim();
-            String value = "";
-            if (str_array.length > 1) value = str_array[1].trim();
+        Map<String,String> timelineParameters = new HashMap<String,String>();
+        for (String[] parameter : KineticCoreQualificationParser.getParameters(request.getQuery())) {
+            String field = parameter[0];
+            String value = parameter[1];
             if (field.equals("formSlug")) { formSlug = value; }
             else if (field.equals("kappSlug")) { kappSlug = value; }
+            else if (partitioned && TIMELINE_PARAMETERS.contains(field)) { timelineParameters.put(field, value); }
+            else if (field.equals("include")) { continue; } // the included properties aren't needed to count
             else if (!field.equals("limit")) { // ignore the limit, because count always uses the default limit
-                queryPartsList.add(URLEncoder.encode(field) + "=" + URLEncoder.encode(value));
+                queryPartsList.add(KineticCoreQualificationParser.toQueryPart(field, value));
             }
         }
+        List<String> baseQueryParts = new ArrayList<String>(queryPartsList);
         queryPartsList.add("limit=1000");
-        String query = StringUtils.join(queryPartsList,"&");
+        final String query = StringUtils.join(queryPartsList,"&");
 
         if (kappSlug == null) {
             throw new BridgeError("Invalid Request: The bridge query needs to include a kappSlug.");
         }
 
+        if (partitioned) {
+            return countSubmissionsByPartition(kappSlug, formSlug, baseQueryParts, timelineParameters, request);
+        }
+
+        // A count of a query whose pages were just walked is answered from the recorded pages
+        String chainKey = getChainKey(kappSlug, formSlug, baseQueryParts);
+        if (pageToken == null) {
+            Integer total = this.pageTokens.getTotal(chainKey);
+            if (total != null) return total;
+        }
 
-        // Make sure that the pageToken isn't null for the first pass.
-        String nextToken = pageToken != null ? pageToken : "";
-        while (nextToken != null) {
-            // the token query is used to reset the query each time so that multiple pageTokens
-            // aren't added to the query after multiple passes
-            String tokenQuery = query;
-            // if nextToken is empty, don't add to query (only relevant on first pass)
-            if (!nextToken.isEmpty()) {
-                tokenQuery = tokenQuery+"&pageToken="+nextToken;
+        // Walk the pages through the pipeline so that the next page is already being retrieved
+        // while the current page is still being scanned
+        final String kapp = kappSlug;
+        final String form = formSlug;
+        List<KineticCorePageScanner> pages = this.pagePipeline.fetchAll(new KineticCorePagePipeline.PageFetcher<KineticCorePageScanner>() {
+            @Override
+            public KineticCorePageScanner fetch(String nextToken, KineticCorePagePipeline.TokenListener listener) throws BridgeError {
+                // if nextToken is empty, don't add to query (only relevant on first pass)
+                String tokenQuery = nextToken == null || nextToken.isEmpty() ? query : query+"&pageToken="+nextToken;
+                return scanSubmissions(kapp, form, tokenQuery, listener);
             }
-            JSONObject json = searchSubmissions(kappSlug, formSlug, tokenQuery);
-            nextToken = (String)json.get("nextPageToken");
-            JSONArray submissions = (JSONArray)json.get("submissions");
-            count += submissions.size();
+        }, pageToken);
+        List<String> nextPageTokens = new ArrayList<String>();
+        for (KineticCorePageScanner page : pages) {
+            count += page.getCount();
+            nextPageTokens.add(page.getNextPageToken());
         }
+        // Record the pages so that searches at an offset can start at the token of its page
+        if (pageToken == null) this.pageTokens.recordAll(chainKey, 1000, nextPageTokens, count);
 
         return count;
     }
 
-        /**
-       * Returns the string value of the object.
-       * <p>
-       * If the value is not a String, a JSON representation of the object will be returned.
-       *
-       * @param value
-       * @return
-       */
-    private static String toString(Object value) {
-        String result = null;
-        if (value != null) {
-            if (String.class.isInstance(value)) {
-                result = (String)value;
-            } else {
-                result = JSONValue.toJSONString(value);
+    private Integer countSubmissionsByPartition(final String kapp, final String form, List<String> baseQueryParts,
+        Map<String,String> timelineParameters, BridgeRequest request) throws BridgeError {
+        String timeline = getPartitionTimeline(request, timelineParameters);
+        int partitions = getPartitionCount(request);
+        KineticCoreTimelinePartitioner.Range bounds = getPartitionBounds(kapp, form, baseQueryParts, timeline, timelineParameters);
+        // There aren't any submissions on the timeline
+        if (bounds == null) return 0;
+
+        List<String> timelineQueryParts = new ArrayList<String>(baseQueryParts);
+        timelineQueryParts.add("limit=1000");
+        timelineQueryParts.add("timeline="+timeline);
+        final String timelineQuery = StringUtils.join(timelineQueryParts,"&");
+
+        List<Integer> counts = this.partitioner.execute(new KineticCoreTimelinePartitioner.RangeTask<Integer>() {
+            @Override
+            public KineticCoreTimelinePartitioner.Result<Integer> run(KineticCoreTimelinePartitioner.Range range, boolean splittable) throws BridgeError {
+                final String rangeQuery = timelineQuery+"&start="+URLEncoder.encode(range.getStartTimestamp())
+                    +"&end="+URLEncoder.encode(range.getEndTimestamp());
+                KineticCorePageScanner firstPage = scanSubmissions(kapp, form, rangeQuery, null);
+                // If there is more than one page in the partition, have it split up further
+                if (firstPage.getNextPageToken() != null && splittable) return null;
+
+                int count = firstPage.getCount();
+                if (firstPage.getNextPageToken() != null) {
+                    // The partition can't be split any further, so walk the rest of its pages
+                    List<KineticCorePageScanner> pages = new KineticCorePagePipeline(null).fetchAll(
+                        new KineticCorePagePipeline.PageFetcher<KineticCorePageScanner>() {
+                            @Override
+                            public KineticCorePageScanner fetch(String nextToken, KineticCorePagePipeline.TokenListener listener) throws BridgeError {
+                                return scanSubmissions(kapp, form, rangeQuery+"&pageToken="+nextToken, listener);
+                            }
+                        }, firstPage.getNextPageToken());
+                    for (KineticCorePageScanner page : pages) {
+                        count += page.getCount();
+                    }
+                }
+                return KineticCoreTimelinePartitioner.Result.complete(count);
             }
+        }, bounds, partitions);
+
+        Integer count = 0;
+        for (Integer partitionCount : counts) {
+            count += partitionCount;
         }
-        return result;
-     }
+        return count;
+    }
+
+    // Determine which timeline to partition on (metadata, then the query, then createdAt)
+    private String getPartitionTimeline(BridgeRequest request, Map<String,String> timelineParameters) throws BridgeError {
+        String timeline = request.getMetadata("partitionField");
+        if (timeline == null || timeline.isEmpty()) timeline = timelineParameters.get("timeline");
+        if (timeline == null || timeline.isEmpty()) timeline = "createdAt";
+        if (!KineticCoreTimelinePartitioner.TIMELINE_FIELDS.contains(timeline)) {
+            throw new BridgeError(String.format("Invalid Request: Cannot partition on '%s'. Partitions can only be made on one of %s.",
+                timeline,KineticCoreTimelinePartitioner.TIMELINE_FIELDS));
+        }
+        return timeline;
+    }
+
+    private int getPartitionCount(BridgeRequest request) throws BridgeError {
+        int partitions = KineticCoreTimelinePartitioner.DEFAULT_PARTITIONS;
+        if (request.getMetadata("partitions") != null && !request.getMetadata("partitions").isEmpty()) {
+            try {
+                partitions = Integer.parseInt(request.getMetadata("partitions"));
+            } catch (NumberFormatException e) {
+                throw new BridgeError(String.format("Invalid Request: The partitions metadata '%s' is not a number.",request.getMetadata("partitions")));
+            }
+        }
+        return partitions;
+    }
 
-    private JSONObject searchSubmissions(BridgeRequest request) throws BridgeError {
-        String[] indvQueryParts = request.getQuery().split("&(?=[^&]*?=)");
+    // Use the start and end from the query as the bounds when they were passed, otherwise look up
+    // the oldest and newest submission on the timeline. Returns null if the bounds are empty.
+    private KineticCoreTimelinePartitioner.Range getPartitionBounds(String kapp, String form, List<String> baseQueryParts,
+        String timeline, Map<String,String> timelineParameters) throws BridgeError {
+        Long start = timelineParameters.containsKey("start") && !timelineParameters.get("start").isEmpty()
+            ? Long.valueOf(KineticCoreTimelinePartitioner.parseTimestamp(timelineParameters.get("start")))
+            : findTimelineBound(kapp, form, baseQueryParts, timeline, "ASC");
+        Long end = timelineParameters.containsKey("end") && !timelineParameters.get("end").isEmpty()
+            ? Long.valueOf(KineticCoreTimelinePartitioner.parseTimestamp(timelineParameters.get("end")))
+            : findTimelineBound(kapp, form, baseQueryParts, timeline, "DESC");
+        if (start == null || end == null) return null;
+        // The newest submission that was found needs to be included in the last partition
+        if (!timelineParameters.containsKey("end") || timelineParameters.get("end").isEmpty()) end = end + 1;
+        if (start >= end) return null;
+        return new KineticCoreTimelinePartitioner.Range(start, end);
+    }
 
+    // Retrieves the timeline value (in millis) of either the oldest (ASC) or newest (DESC) submission
+    // that matches the query. Returns null if there are no matching submissions.
+    private Long findTimelineBound(String kapp, String form, List<String> baseQueryParts, String timeline, String direction) throws BridgeError {
+        List<String> boundQueryParts = new ArrayList<String>(baseQueryParts);
+        String include = KineticCoreIncludePlanner.toParameter(KineticCoreIncludePlanner.plan(Arrays.asList(timeline)));
+        if (include != null) boundQueryParts.add(include);
+        boundQueryParts.add("timeline="+timeline);
+        boundQueryParts.add("direction="+direction);
+        boundQueryParts.add("limit=1");
+        JSONObject json = searchSubmissions(kapp, form, StringUtils.join(boundQueryParts,"&"),
+            new KineticCoreProjection("submissions", Arrays.asList(timeline)));
+        JSONArray submissions = (JSONArray)json.get("submissions");
+        if (submissions == null || submissions.isEmpty()) return null;
+
+        Object value = ((JSONObject)submissions.get(0)).get(timeline);
+        return value == null ? null : KineticCoreTimelinePartitioner.parseTimestamp(value.toString());
+    }
+
+    // Returns the key of the page tokens of the submissions query
+    private static String getChainKey(String kapp, String form, List<String> queryParts) {
+        return KineticCorePageTokens.key("kapps/"+kapp+(form == null ? "" : "/forms/"+form), queryParts);
+    }
+
+    // A forced limit (the probe of a retrieve) is always used, otherwise the limit is the pageSize
+    // metadata, the limit of the query or 1000
+    private JSONObject searchSubmissions(BridgeRequest request, String forcedLimit) throws BridgeError {
         // Retrieving the slugs for the kapp and form slug that were passed in the query
         String kappSlug = null;
         String formSlug = null;
         String limit = null;
         List<String> queryPartsList = new ArrayList<String>();
-        for (String indvQueryPart : indvQueryParts) {
-            String[] str_array = indvQueryPart.split("=");
-            String field = str_array[0].trim();
-            String value = "";
-            if (str_array.length > 1) value = StringUtils.join(Arrays.copyOfRange(str_array, 1, str_array.length),"=");
+        List<String> queryIncludes = new ArrayList<String>();
+        for (String[] parameter : KineticCoreQualificationParser.getParameters(request.getQuery())) {
+            String field = parameter[0];
+            String value = parameter[1];
             if (field.equals("formSlug")) { formSlug = value; }
             else if (field.equals("kappSlug")) { kappSlug = value; }
             else if (field.equals("limit")) { limit = value; }
+            else if (field.equals("include")) { queryIncludes.add(value); }
             else {
-                queryPartsList.add(URLEncoder.encode(field) + "=" + URLEncoder.encode(value.trim()));
+                queryPartsList.add(KineticCoreQualificationParser.toQueryPart(field, value));
             }
         }
-        // Add the include statement to get extra values and details
-        queryPartsList.add("include=values,details");
+        // The page tokens are recorded for the query without its includes
+        List<String> baseQueryParts = new ArrayList<String>(queryPartsList);
+        // Add the include statement to get the values and details that the fields need
+        String include = KineticCoreIncludePlanner.toParameter(KineticCoreIncludePlanner.plan(request, queryIncludes));
+        if (include != null) queryPartsList.add(include);
 
-        // Add a limit to the query by either using the value that was passed, or defaulting limit=200
+        // Add a limit to the query by either using the value that was passed, or the default limit
         String pageSize = request.getMetadata("pageSize");
-        if (pageSize != null) {
-            queryPartsList.add("limit="+pageSize);
+        String pageLimit;
+        if (forcedLimit != null) {
+            pageLimit = forcedLimit;
+        } else if (pageSize != null) {
+            pageLimit = pageSize;
         } else if (limit != null && !limit.isEmpty()) {
-            queryPartsList.add("limit="+limit);
+            pageLimit = limit;
         } else {
-            queryPartsList.add("limit=1000");
+            pageLimit = "1000";
+        }
+        queryPartsList.add("limit="+pageLimit);
+
+        if (kappSlug == null) {
+            throw new BridgeError("Invalid Request: The bridge query needs to include a kappSlug.");
+        }
+        final String kapp = kappSlug;
+        final String form = formSlug;
+
+        // A search without a page token starts at the recorded token of the page at its offset (the
+        // first page without an offset), only scanning the pages that come before it when they
+        // haven't been recorded yet. The tokens that are seen along the way are recorded.
+        String pageToken = request.getMetadata("pageToken");
+        int pageLength = pageLimit.trim().matches("\\d+") ? Integer.parseInt(pageLimit.trim()) : 0;
+        int pageNumber = 0;
+        if (forcedLimit == null && pageLength > 0 && (pageToken == null || pageToken.isEmpty())) {
+            pageNumber = Math.max(1, KineticCorePageTokens.getPageNumber(request, pageLength));
+        }
+        String chainKey = getChainKey(kapp, form, baseQueryParts);
+        if (pageNumber > 1) {
+            List<String> walkQueryParts = new ArrayList<String>(baseQueryParts);
+            walkQueryParts.add("limit="+pageLimit);
+            final String walkQuery = StringUtils.join(walkQueryParts,"&");
+            pageToken = this.pageTokens.getPageToken(chainKey, pageLength, pageNumber, new KineticCorePageTokens.PageWalker() {
+                @Override
+                public String nextPageToken(String token) throws BridgeError {
+                    return scanSubmissions(kapp, form, token.isEmpty() ? walkQuery : walkQuery+"&pageToken="+token, null).getNextPageToken();
+                }
+            });
+            // The query doesn't have that many pages
+            if (pageToken == null) {
+                JSONObject json = new JSONObject();
+                json.put("submissions", new JSONArray());
+                json.put("messages", new JSONArray());
+                return json;
+            }
         }
 
         // If metadata[nextPageToken] is included in the request, add it to the query
-        if (request.getMetadata("pageToken") != null) {
-            queryPartsList.add("pageToken="+request.getMetadata("pageToken"));
+        if (pageToken != null && !pageToken.isEmpty()) {
+            queryPartsList.add("pageToken="+pageToken);
         }
 
         // Join the query list into a query string
         String query = StringUtils.join(queryPartsList,"&");
 
-        if (kappSlug == null) {
-            throw new BridgeError("Invalid Request: The bridge query needs to include a kappSlug.");
-        }
-
-        return searchSubmissions(kappSlug, formSlug, query);
+        JSONObject json = searchSubmissions(kapp, form, query, KineticCoreProjection.forRequest("submissions", request));
+        if (pageNumber > 0) this.pageTokens.recordPage(chainKey, pageLength, pageNumber, (String)json.get("nextPageToken"));
+        return json;
     }
 
-    private JSONObject searchSubmissions(String kapp, String form, String query) throws BridgeError {
-        // Initializing the Http Objects
-        HttpClient client = HttpClients.createDefault();
-        HttpResponse response;
-
-        // Build the submissions api url. Url is different based on whether the form slug has been included.
-        String url;
-        if (form != null) {
-            url = String.format("%s/app/api/v1/kapps/%s/forms/%s/submissions?%s",this.spaceUrl,kapp,form,query);
-        } else {
-            url = String.format("%s/app/api/v1/kapps/%s/submissions?%s",this.spaceUrl,kapp,query);
+    // Only the fields of the projection are kept from each of the submissions (all of the fields
+    // are kept when the projection is null)
+    private JSONObject searchSubmissions(String kapp, String form, String query, KineticCoreProjection projection) throws BridgeError {
+        // Identical concurrent searches share a single request (and each parses it with its own projection)
+        KineticCoreHttpFetcher.Response response = this.fetcher.fetch(buildSubmissionsUrl(kapp, form, query), false);
+        JSONObject json = response.getJson(projection);
+        if (json == null) {
+            throw new BridgeError("Bridge Error: " + response.getBody());
         }
-        HttpGet get = new HttpGet(url);
-        get = addAuthenticationHeader(get, this.username, this.password);
-
-        String output = "";
-        try {
-            response = client.execute(get);
 
-            HttpEntity entity = response.getEntity();
-            output = EntityUtils.toString(entity);
-            logger.trace("Request response code: " + response.getStatusLine().getStatusCode());
-        }
-        catch (IOException e) {
-            logger.error(e.getMessage());
-            throw new BridgeError("Unable to make a connection to the Kinetic Core server.");
-        }
-
-        logger.trace("Starting to parse the JSON Response");
-        JSONObject json = (JSONObject)JSONValue.parse(output);
-
-        if (response.getStatusLine().getStatusCode() == 404) {
+        if (response.getStatusCode() == 404) {
             throw new BridgeError("Invalid kappSlug or formSlug: " + json.get("error").toString());
-        } else if (response.getStatusLine().getStatusCode() != 200) {
+        } else if (response.getStatusCode() != 200) {
             String errorMessage = json.containsKey("error") ? json.get("error").toString() : json.toJSONString();
             throw new BridgeError("Bridge Error: " + errorMessage);
         }
@@ -369,32 +643,57 @@ public class KineticCoreSubmissionHelper {
         return json;
     }
 
-    protected List<Record> sortRecords(final Map<String,String> fieldParser, List<Record> records) throws BridgeError {
-        Collections.sort(records, new Comparator<Record>() {
-            @Override
-            public int compare(Record r1, Record r2){
-                CompareToBuilder comparator = new CompareToBuilder();
-
-                for (Map.Entry<String,String> entry : fieldParser.entrySet()) {
-                    String field = entry.getKey();
-                    String order = entry.getValue();
-
-                    Object o1 = r1.getValue(field);
-                    if (o1 != null) { o1 = KineticCoreSubmissionHelper.toString(o1).toLowerCase(); }
-
-                    Object o2 = r2.getValue(field);
-                    if (o2 != null) { o2 = KineticCoreSubmissionHelper.toString(o2).toLowerCase(); }
+    // Scans a page of submissions from the response stream, only keeping track of the amount of
+    // submissions and the nextPageToken instead of parsing the whole response into JSON objects
+    private KineticCorePageScanner scanSubmissions(String kapp, String form, String query,
+        KineticCorePagePipeline.TokenListener listener) throws BridgeError {
+        HttpGet get = new HttpGet(buildSubmissionsUrl(kapp, form, query));
+        get = addAuthenticationHeader(get, this.username, this.password);
 
-                    if (order.equals("DESC")) {
-                        comparator.append(o2,o1);
-                    } else {
-                        comparator.append(o1,o2);
+        KineticCorePageScanner scanner = new KineticCorePageScanner("submissions", listener);
+        try {
+            HttpResponse response = this.client.execute(get);
+            HttpEntity entity = response.getEntity();
+            logger.trace("Request response code: " + response.getStatusLine().getStatusCode());
+            try {
+                if (response.getStatusLine().getStatusCode() != 200) {
+                    JSONObject json = (JSONObject)JSONValue.parse(EntityUtils.toString(entity));
+                    if (response.getStatusLine().getStatusCode() == 404) {
+                        throw new BridgeError("Invalid kappSlug or formSlug: " + json.get("error").toString());
                     }
+                    String errorMessage = json.containsKey("error") ? json.get("error").toString() : json.toJSONString();
+                    throw new BridgeError("Bridge Error: " + errorMessage);
                 }
 
-                return comparator.toComparison();
+                Charset charset = ContentType.getOrDefault(entity).getCharset();
+                Reader reader = new InputStreamReader(entity.getContent(), charset == null ? Consts.UTF_8 : charset);
+                new JSONParser().parse(reader, scanner);
+            } finally {
+                EntityUtils.consume(entity);
             }
-        });
-        return records;
+        }
+        catch (IOException e) {
+            logger.error(e.getMessage());
+            throw new BridgeError("Unable to make a connection to the Kinetic Core server.");
+        }
+        catch (ParseException e) {
+            logger.error(e.getMessage());
+            throw new BridgeError("Unable to parse the submissions returned by the Kinetic Core server.");
+        }
+
+        return scanner;
+    }
+
+    // Build the submissions api url. Url is different based on whether the form slug has been included.
+    private String buildSubmissionsUrl(String kapp, String form, String query) {
+        if (form != null) {
+            return String.format("%s/app/api/v1/kapps/%s/forms/%s/submissions?%s",this.spaceUrl,kapp,form,query);
+        } else {
+            return String.format("%s/app/api/v1/kapps/%s/submissions?%s",this.spaceUrl,kapp,query);
+        }
+    }
+
+    protected List<Record> sortRecords(final Map<String,String> fieldParser, List<Record> records) throws BridgeError {
+        return this.sorter.sort(records, new KineticCoreSortKeys(fieldParser, false));
     }
 }
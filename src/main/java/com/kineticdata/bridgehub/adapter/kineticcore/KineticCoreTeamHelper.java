@@ -1,5 +1,8 @@
 package com.kineticdata.bridgehub.adapter.kineticcore;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
 import com.kineticdata.bridgehub.adapter.BridgeError;
 import com.kineticdata.bridgehub.adapter.BridgeRequest;
 import com.kineticdata.bridgehub.adapter.BridgeUtils;
@@ -10,8 +13,8 @@ import static com.kineticdata.bridgehub.adapter.kineticcore.KineticCoreAdapter.l
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
@@ -20,9 +23,8 @@ import java.util.Map;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import org.apache.commons.codec.Charsets;
 import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.lang.StringUtils;
-import org.apache.commons.lang.builder.CompareToBuilder;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
@@ -37,21 +39,54 @@ import org.json.simple.JSONValue;
  *
  */
 public class KineticCoreTeamHelper {
+    // The number of team lists (ie. with different includes) whose hierarchy index is kept
+    private static final int TEAM_INDEX_CACHE_SIZE = 16;
+
     private final String username;
     private final String password;
     private final String spaceUrl;
+    private final HttpClient client;
+    private final KineticCoreHttpFetcher fetcher;
+    private final KineticCoreResultSnapshots snapshots;
+    private final KineticCoreReplica replica;
+    private final KineticCoreFilterPlanCache filterPlans;
     private final Pattern attributePattern;
+    // The hierarchy index of each team list that was filtered by name, keyed by the list instance
+    // (weak keys are compared by identity), so lists with different includes each keep their index
+    private final Cache<JSONArray,KineticCoreTeamIndex> teamIndexes = CacheBuilder.newBuilder()
+        .weakKeys()
+        .maximumSize(TEAM_INDEX_CACHE_SIZE)
+        .build();
 
     public KineticCoreTeamHelper(String username, String password, String spaceUrl) {
+        this(username, password, spaceUrl, HttpClients.createDefault(), null, new KineticCoreResultSnapshots(), null, null);
+    }
+
+    public KineticCoreTeamHelper(String username, String password, String spaceUrl, HttpClient client, KineticCoreHttpFetcher fetcher,
+        KineticCoreResultSnapshots snapshots, KineticCoreReplica replica, KineticCoreFilterPlanCache filterPlans) {
         this.username = username;
         this.password = password;
         this.spaceUrl = spaceUrl;
+        this.client = client;
+        this.fetcher = fetcher != null ? fetcher : new KineticCoreHttpFetcher(client, username, password);
+        this.snapshots = snapshots;
+        this.replica = replica;
+        this.filterPlans = filterPlans != null ? filterPlans : new KineticCoreFilterPlanCache();
         this.attributePattern = Pattern.compile("(.*?)\\[(.*?)\\]");
     }
 
+    // The query parameters that filter teams by their place in the team hierarchy
+    private static final List<String> HIERARCHY_OPERATORS = Arrays.asList(new String[] {
+        "exclude","parent","ancestor"
+    });
+
     public static final List<String> DETAIL_FIELDS = Arrays.asList(new String[] {
         "createdAt","createdBy","updatedAt","updatedBy"
     });
+    // The properties that are only returned when they are included
+    private static final List<String> INCLUDE_FIELDS = Arrays.asList(new String[] {
+        "attributes","memberships"
+    });
 
     public Count count(BridgeRequest request) throws BridgeError {
         JSONArray teams = searchTeams(request);
@@ -71,55 +106,52 @@ public class KineticCoreTeamHelper {
                 slug = m.group(1);
             }
 
-            String url = String.format("%s/app/api/v1/teams/%s?include=attributes,memberships,details",this.spaceUrl,slug);
-
-            HttpClient client = HttpClients.createDefault();
-            HttpResponse response;
-            HttpGet get = new HttpGet(url);
-            get = addAuthenticationHeader(get, this.username, this.password);
-
-            String output = "";
-            try {
-                response = client.execute(get);
-
-                logger.trace("Request response code: " + response.getStatusLine().getStatusCode());
-                HttpEntity entity = response.getEntity();
-                output = EntityUtils.toString(entity);
-            }
-            catch (IOException e) {
-                logger.error(e.getMessage());
-                throw new BridgeError("Unable to make a connection to the Kinetic Core server.");
-            }
-
-            if (response.getStatusLine().getStatusCode() == 200) {
-                JSONObject json = (JSONObject)JSONValue.parse(output);
-                team = (JSONObject)json.get("team");
-            }
+            team = fetchTeam(slug, request.getFields());
         } else {
-            JSONArray teams = searchTeams(request);
-            if (teams.size() > 1) {
-                throw new BridgeError("Multiple results matched an expected single match query");
-            } else if (!teams.isEmpty()) {
-                team = (JSONObject)teams.get(0);
+            // The slug of a team is the md5 hash of its name, so a team that is retrieved by its
+            // exact name can be retrieved directly (unless the replica already holds every team)
+            String name = this.replica == null ? getExactName(request.getQuery()) : null;
+            if (name != null) {
+                team = fetchTeam(Hashing.md5().hashString(name, Charsets.UTF_8).toString(), request.getFields());
+            }
+            // Names are matched ignoring case, so a name that wasn't found directly is searched for
+            if (team == null) {
+                JSONArray teams = searchTeams(request);
+                if (teams.size() > 1) {
+                    throw new BridgeError("Multiple results matched an expected single match query");
+                } else if (!teams.isEmpty()) {
+                    team = (JSONObject)teams.get(0);
+                }
             }
         }
 
         return createRecordFromTeam(request.getFields(), team);
     }
 
-    public RecordList search(BridgeRequest request) throws BridgeError {
+    public RecordList search(final BridgeRequest request) throws BridgeError {
+        return this.snapshots.search(request, new KineticCoreResultSnapshots.Loader() {
+            @Override
+            public KineticCoreResultSnapshots.Result load() throws BridgeError {
+                return searchResult(request);
+            }
+        });
+    }
+
+    // Searches the teams and creates their (unsorted) records and the keys to sort them by
+    private KineticCoreResultSnapshots.Result searchResult(BridgeRequest request) throws BridgeError {
         JSONArray teams = searchTeams(request);
 
         List<Record> records = createRecordsFromTeams(request.getFields(), teams);
 
-        // Sort the records because they are always returned on one page
+        // The records are sorted when they are paged, because they are always returned on one page
+        KineticCoreSortKeys keys;
         if (request.getMetadata("order") == null) {
             // name,type,desc assumes name ASC,type ASC,desc ASC
             Map<String,String> defaultOrder = new LinkedHashMap<String,String>();
             for (String field : request.getFields()) {
                 defaultOrder.put(field, "ASC");
             }
-            records = sortRecords(defaultOrder, records);
+            keys = new KineticCoreSortKeys(defaultOrder, true);
         } else {
         // Creates a map out of order metadata
           Map<String,String> orderParse = BridgeUtils.parseOrder(request.getMetadata("order"));
@@ -134,27 +166,10 @@ public class KineticCoreTeamHelper {
                   break;
               }
           }
-          records = sortRecords(orderParse, records);
+          keys = new KineticCoreSortKeys(orderParse, true);
         }
 
-        // Add pagination to the returned record list
-        int pageToken = request.getMetadata("pageToken") == null || request.getMetadata("pageToken").isEmpty() ?
-                0 : Integer.parseInt(new String(Base64.decodeBase64(request.getMetadata("pageToken"))));
-
-        int limit = request.getMetadata("limit") == null || request.getMetadata("limit").isEmpty() ?
-                records.size()-pageToken : Integer.parseInt(request.getMetadata("limit"));
-
-        String nextPageToken = null;
-        if (pageToken+limit < records.size()) nextPageToken = Base64.encodeBase64String(String.valueOf(pageToken+limit).getBytes());
-
-        records = records.subList(pageToken, pageToken+limit > records.size() ? records.size() : pageToken+limit);
-
-        Map<String,String> metadata = new LinkedHashMap<String,String>();
-        metadata.put("size",String.valueOf(limit));
-        metadata.put("pageToken",nextPageToken);
-
-        // Return the response
-        return new RecordList(request.getFields(), records, metadata);
+        return new KineticCoreResultSnapshots.Result(records, keys);
     }
 
     /*---------------------------------------------------------------------------------------------
@@ -222,12 +237,58 @@ public class KineticCoreTeamHelper {
         return records;
     }
 
-    // Filter teams was made protected for the purposes of testing
-    private JSONArray searchTeams(BridgeRequest request) throws BridgeError {
-        // Initializing the Http Objects
-        HttpClient client = HttpClients.createDefault();
+    // Retrieves the team with the slug (and the includes that the fields need), returning null
+    // if the team wasn't found
+    private JSONObject fetchTeam(String slug, List<String> fields) throws BridgeError {
+        String url = String.format("%s/app/api/v1/teams/%s",this.spaceUrl,slug);
+        // Only include the properties that the fields need
+        String include = KineticCoreIncludePlanner.toParameter(KineticCoreIncludePlanner.plan(fields, INCLUDE_FIELDS, DETAIL_FIELDS));
+        if (include != null) url += "?"+include;
+
         HttpResponse response;
+        HttpGet get = new HttpGet(url);
+        get = addAuthenticationHeader(get, this.username, this.password);
+
+        String output = "";
+        try {
+            response = this.client.execute(get);
+
+            logger.trace("Request response code: " + response.getStatusLine().getStatusCode());
+            HttpEntity entity = response.getEntity();
+            output = EntityUtils.toString(entity);
+        }
+        catch (IOException e) {
+            logger.error(e.getMessage());
+            throw new BridgeError("Unable to make a connection to the Kinetic Core server.");
+        }
+
+        JSONObject team = null;
+        if (response.getStatusLine().getStatusCode() == 200) {
+            JSONObject json = (JSONObject)JSONValue.parse(output);
+            team = (JSONObject)json.get("team");
+        }
+        return team;
+    }
 
+    /**
+     * Returns the name of a query that only matches a team by its exact name (ie.
+     * name=Department::IT), or null if the query has wildcards or any other parameters.
+     *
+     * @param query
+     * @return
+     */
+    static String getExactName(String query) {
+        if (query == null || query.contains("&")) return null;
+        String[] split = query.split("=", -1);
+        if (split.length != 2 || !split[0].trim().equals("name")) return null;
+        String name = split[1].trim();
+        // The values that aren't matched literally
+        if (name.isEmpty() || name.contains("%") || name.equals("null") || name.equals("true") || name.equals("false")) return null;
+        return name;
+    }
+
+    // Filter teams was made protected for the purposes of testing
+    private JSONArray searchTeams(BridgeRequest request) throws BridgeError {
         // Based on the passed fields figure out if an ?include needs to be in the Url
         String includeParam = null;
         if (request.getFields() != null) {
@@ -258,32 +319,8 @@ public class KineticCoreTeamHelper {
             if (!Collections.disjoint(DETAIL_FIELDS, request.getFields())) includeParam = includeParam == null ? "include=details" : includeParam + ",details";
         }
 
-        String url = this.spaceUrl + "/app/api/v1/teams";
-        if (includeParam != null) url += "?"+includeParam;
-        HttpGet get = new HttpGet(url);
-        get = addAuthenticationHeader(get, this.username, this.password);
-
-        String output = "";
-        try {
-            response = client.execute(get);
-
-            HttpEntity entity = response.getEntity();
-            output = EntityUtils.toString(entity);
-            logger.trace("Request response code: " + response.getStatusLine().getStatusCode());
-        }
-        catch (IOException e) {
-            logger.error(e.getMessage());
-            throw new BridgeError("Unable to make a connection to the Kinetic Core server.");
-        }
-
-        logger.trace("Starting to parse the JSON Response");
-        JSONObject json = (JSONObject)JSONValue.parse(output);
-
-        if (response.getStatusLine().getStatusCode() != 200) {
-            throw new BridgeError("Bridge Error: " + json.toJSONString());
-        }
-
-        JSONArray teams = (JSONArray)json.get("teams");
+        // The replica holds every team (with all of their includes)
+        JSONArray teams = this.replica != null ? this.replica.get() : fetchTeams(includeParam);
 
         String query = request.getQuery();
         if (!query.isEmpty()) {
@@ -293,15 +330,14 @@ public class KineticCoreTeamHelper {
         return teams;
     }
 
-    private Pattern getPatternFromValue(String value) {
-        // Escape regex characters from value
-        String[] parts = value.split("(?<!\\\\)%");
-        for (int i = 0; i<parts.length; i++) {
-            if (!parts[i].isEmpty()) parts[i] = Pattern.quote(parts[i].replaceAll("\\\\%","%"));
-        }
-        String regex = StringUtils.join(parts,".*?");
-        if (!value.isEmpty() && value.substring(value.length() - 1).equals("%")) regex += ".*?";
-        return Pattern.compile("^"+regex+"$",Pattern.CASE_INSENSITIVE);
+    // Retrieves all of the teams from the server
+    private JSONArray fetchTeams(String includeParam) throws BridgeError {
+        String url = this.spaceUrl + "/app/api/v1/teams";
+        if (includeParam != null) url += "?"+includeParam;
+        JSONObject json = this.fetcher.getJson(url);
+
+        JSONArray teams = (JSONArray)json.get("teams");
+        return teams;
     }
 
     private List getAttributeValues(String type, String name, JSONObject team) throws BridgeError {
@@ -326,165 +362,60 @@ public class KineticCoreTeamHelper {
         return members;
     }
 
-    protected final JSONArray filterTeams(JSONArray teams, String query) throws BridgeError {
-        String[] queryParts = query.split("&");
+    // Resolves the (attribute) values of the fields that the teams are filtered by
+    private final KineticCoreFilterEngine.FieldResolver fieldResolver = new KineticCoreFilterEngine.FieldResolver() {
+        @Override
+        public List getValues(JSONObject item, KineticCoreFilterPlan.Field field) throws BridgeError {
+            if (field.getAttribute() == null) return Arrays.asList(new Object[] { item.get(field.getName()) });
+            if (field.getType().equals("memberships")) return getMembershipsUserField(field.getAttribute(), item);
+            return getAttributeValues(field.getType(), field.getAttribute(), item);
+        }
+    };
 
-        Map<String[],Object[]> queryMatchers = new HashMap<String[],Object[]>();
-        // Variables used for OR query (pattern and fields)
-        String pattern = null;
-        String[] fields = null;
+    protected final JSONArray filterTeams(JSONArray teams, String query) throws BridgeError {
+        // The parsed query (with the compiled patterns) is cached
+        KineticCoreFilterPlan plan = this.filterPlans.get(query, HIERARCHY_OPERATORS);
         // List of the teams to be excluded from the result set
-        List<String> excludedTeams = new ArrayList<String>();
-        // Iterate through the query parts and create all the possible matchers to check against
-        // the team results
-        for (String part : queryParts) {
-            String[] split = part.split("=");
-            String field = split[0].trim();
-            String value = split.length > 1 ? split[1].trim() : "";
-
-            Object[] matchers;
-            if (field.equals("pattern")) {
-                pattern = value;
-            } else if (field.equals("fields")) {
-                fields = value.split(",");
-            } else if (field.equals("exclude")) {
-                excludedTeams.add(value.toLowerCase());
-            } else {
-                // If the field isn't 'pattern' or 'fields', add the field and appropriate values
-                // to the query matcher
-                if (value.equals("true") || value.equals("false")) {
-                    matchers = new Object[] { getPatternFromValue(value), Boolean.valueOf(value) };
-                } else if (value.equals("null")) {
-                    matchers = new Object[] { null, getPatternFromValue(value) };
-                } else if (value.isEmpty()) {
-                    matchers = new Object[] { "" };
-                } else {
-                    matchers = new Object[] { getPatternFromValue(value) };
-                }
-                queryMatchers.put(new String[] { field }, matchers);
+        List<String> excludedTeams = plan.getOperatorValues("exclude");
+        // Lists of the teams whose children (parent=) or descendants (ancestor=) are returned
+        List<String> parentTeams = plan.getOperatorValues("parent");
+        List<String> ancestorTeams = plan.getOperatorValues("ancestor");
+
+        // Before sorting through with query matcher qualifications, use the team hierarchy to
+        // limit the teams to the children / descendants of the parent and ancestor teams, and to
+        // exclude any teams (and their descendants) that are in the excluded team array
+        JSONArray matchedTeams = teams;
+        if (!excludedTeams.isEmpty() || !parentTeams.isEmpty() || !ancestorTeams.isEmpty()) {
+            matchedTeams = new JSONArray();
+            KineticCoreTeamIndex index = getTeamIndex(teams);
+            BitSet positions = new BitSet(teams.size());
+            positions.set(0, teams.size());
+            for (String parentTeam : parentTeams) {
+                positions.and(index.children(parentTeam));
+            }
+            for (String ancestorTeam : ancestorTeams) {
+                positions.and(index.descendants(ancestorTeam));
             }
-        }
-
-
-        // If both query and pattern are not equal to null, add the list of fields and the
-        // pattern (compiled into a regex Pattern object) to the queryMatchers map
-        if (pattern != null && fields != null) {
-            queryMatchers.put(fields,new Object[] { Pattern.compile(".*"+Pattern.quote(pattern)+".*",Pattern.CASE_INSENSITIVE) });
-        }
-        // If both pattern & fields are not equals to null AND both pattern & fields are not
-        // both null, that means that one is null and the other is not which is not an
-        // allowed query.
-        else if (pattern != null || fields != null) {
-            throw new BridgeError("The 'pattern' and 'fields' parameter must be provided together.  When the 'pattern' parameter "+
-                    "is provided the 'fields' parameter is required and when the 'fields' parameter is provided the 'pattern' parameter is required.");
-        }
-
-        // Before sorting through with query matcher qualifications, go through and exclude
-        // any teams (and their descendants) that are in the excluded team array
-        JSONArray matchedTeams = new JSONArray();
-        for (Object o : teams) {
-            JSONObject team = (JSONObject)o;
-
-            boolean teamExcluded = false;
-            String teamName = (String)team.get("name");
             for (String excludedTeam : excludedTeams) {
-                if (teamName.toLowerCase().equals(excludedTeam) || teamName.toLowerCase().startsWith(excludedTeam+"::")) {
-                    teamExcluded = true;
-                }
+                positions.andNot(index.subtree(excludedTeam));
             }
-            if (!teamExcluded) matchedTeams.add(o);
-        }
-
-        // Start with the list of teams that weren't excluded and then delete from the list
-        // when they don't match a qualification. Will be left with a list of values that match
-        // all qualifications.
-        for (Map.Entry<String[],Object[]> entry : queryMatchers.entrySet()) {
-            JSONArray matchedTeamsEntry = new JSONArray();
-            for (String field : entry.getKey()) {
-                // If passed in field is an attribute, save its attributeName
-                String attributeType = null;
-                String attributeName = null;
-                Matcher m = this.attributePattern.matcher(field);
-                if (m.find()) {
-                    attributeType = m.group(1);
-                    attributeName = m.group(2);
-                }
-
-                for (Object o : matchedTeams) {
-                    // Check if the object matches the field qualification if it hasn't already been
-                    // successfully matched
-                    if (!matchedTeamsEntry.contains(o)) {
-                        JSONObject team = (JSONObject)o;
-                        // Get the value for the field
-//                        List fieldValues = attributeName != null ? getAttributeValues(attributeType,attributeName,team) : Arrays.asList(new Object[] { team.get(field) });
-                        List fieldValues = null;
-                        if (attributeName != null) {
-                            if (attributeType.equals("memberships")) {
-                                fieldValues = getMembershipsUserField(attributeName, team);
-                            } else {
-                                fieldValues = getAttributeValues(attributeType,attributeName,team);
-                            }
-                        } else {
-                            fieldValues = Arrays.asList(new Object[] { team.get(field) });
-                        }
-
-                        // if field values is empty, check for an empty value
-                        if (fieldValues.isEmpty()) {
-                            for (Object value : entry.getValue()) {
-                                if (value.equals("")) matchedTeamsEntry.add(o);
-                            }
-                        } else {
-                            for (Object fieldValue : fieldValues) {
-                                for (Object value : entry.getValue()) {
-                                    if (fieldValue == value || // Objects equal
-                                       fieldValue != null && value != null && (
-                                           value.getClass() == Pattern.class && ((Pattern)value).matcher(fieldValue.toString()).matches() || // fieldValue != null && Pattern matches
-                                           value.equals(fieldValue) // fieldValue != null && values equal
-                                       )
-                                    ) {
-                                        matchedTeamsEntry.add(o);
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
+            for (int i = positions.nextSetBit(0); i >= 0; i = positions.nextSetBit(i + 1)) {
+                matchedTeams.add(teams.get(i));
             }
-            matchedTeams = (JSONArray)matchedTeamsEntry;
         }
 
-        return matchedTeams;
+        // Filter the teams that weren't excluded by the rest of the query
+        return KineticCoreFilterEngine.filter(matchedTeams, plan, this.fieldResolver);
     }
 
-    protected List<Record> sortRecords(final Map<String,String> fieldParser, List<Record> records) throws BridgeError {
-        Collections.sort(records, new Comparator<Record>() {
-            @Override
-            public int compare(Record r1, Record r2){
-                CompareToBuilder comparator = new CompareToBuilder();
-
-                for (Map.Entry<String,String> entry : fieldParser.entrySet()) {
-                    String field = entry.getKey();
-                    String order = entry.getValue();
-
-                    Object o1 = r1.getValue(field);
-                    Object o2 = r2.getValue(field);
-                    // If the object is a type that cannot be sorted, continue to the next field
-                    if (o1 instanceof List) { continue; }
-                    if (o2 instanceof List) { continue; }
-                    // If the object is a string, lowercase the string so that capitalization doesn't factor into the comparison
-                    if (o1 != null && o1.getClass() == String.class) {o1 = o1.toString().toLowerCase();}
-                    if (o2 != null && o2.getClass() == String.class) {o2 = o2.toString().toLowerCase();}
-
-                    if (order.equals("DESC")) {
-                        comparator.append(o2,o1);
-                    } else {
-                        comparator.append(o1,o2);
-                    }
-                }
-
-                return comparator.toComparison();
-            }
-        });
-        return records;
+    // Returns the hierarchy index of the teams, only building it for a team list it hasn't seen
+    // (concurrent searches of a new list may both build it)
+    KineticCoreTeamIndex getTeamIndex(JSONArray teams) {
+        KineticCoreTeamIndex index = this.teamIndexes.getIfPresent(teams);
+        if (index == null) {
+            index = new KineticCoreTeamIndex(teams);
+            this.teamIndexes.put(teams, index);
+        }
+        return index;
     }
 }
@@ -0,0 +1,128 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import java.lang.ref.WeakReference;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * An index of the team hierarchy, where every "::" separated segment of a team name is a node of a
+ * trie (ie. Departments::IT::Support is the Support child of the IT child of Departments).
+ * <p>
+ * The index is built for a single list of teams and returns the positions of the matching teams
+ * in that list, so a team, its children or all of its descendants can be found by walking down to
+ * a node instead of comparing the name of every team. Names are matched case insensitively.
+ * The index only holds a weak reference to the list, so it can be cached by the list.
+ */
+public class KineticCoreTeamIndex {
+    /** The separator between the levels of a team name. */
+    public static final String SEPARATOR = "::";
+
+    private final WeakReference<JSONArray> teams;
+    private final Node root = new Node();
+
+    public KineticCoreTeamIndex(JSONArray teams) {
+        this.teams = new WeakReference<JSONArray>(teams);
+        for (int i = 0; i < teams.size(); i++) {
+            Object name = ((JSONObject)teams.get(i)).get("name");
+            if (name == null) continue;
+
+            Node node = root;
+            for (String segment : split(name.toString())) {
+                Node child = node.children.get(segment);
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(segment, child);
+                }
+                node = child;
+            }
+            node.teams.set(i);
+        }
+    }
+
+    /**
+     * Returns true if the index was built for this list of teams (the same instance).
+     *
+     * @param teams
+     * @return
+     */
+    public boolean isFor(JSONArray teams) {
+        return this.teams.get() == teams;
+    }
+
+    /**
+     * Returns the positions of the team with the name and all of its descendants.
+     *
+     * @param name
+     * @return
+     */
+    public BitSet subtree(String name) {
+        BitSet positions = new BitSet();
+        Node node = find(name);
+        if (node != null) collect(node, positions);
+        return positions;
+    }
+
+    /**
+     * Returns the positions of the teams that are directly below the team with the name.
+     *
+     * @param name
+     * @return
+     */
+    public BitSet children(String name) {
+        BitSet positions = new BitSet();
+        Node node = find(name);
+        if (node != null) {
+            for (Node child : node.children.values()) {
+                positions.or(child.teams);
+            }
+        }
+        return positions;
+    }
+
+    /**
+     * Returns the positions of all of the teams below the team with the name (not including the
+     * team itself).
+     *
+     * @param name
+     * @return
+     */
+    public BitSet descendants(String name) {
+        BitSet positions = new BitSet();
+        Node node = find(name);
+        if (node != null) {
+            for (Node child : node.children.values()) {
+                collect(child, positions);
+            }
+        }
+        return positions;
+    }
+
+    private Node find(String name) {
+        Node node = root;
+        for (String segment : split(name)) {
+            node = node.children.get(segment);
+            if (node == null) return null;
+        }
+        return node;
+    }
+
+    private static void collect(Node node, BitSet positions) {
+        positions.or(node.teams);
+        for (Node child : node.children.values()) {
+            collect(child, positions);
+        }
+    }
+
+    private static String[] split(String name) {
+        return name.toLowerCase().split(SEPARATOR, -1);
+    }
+
+    // A level of the team hierarchy and the positions of the teams whose name ends at it
+    private static class Node {
+        private final Map<String,Node> children = new HashMap<String,Node>();
+        private final BitSet teams = new BitSet();
+    }
+}
@@ -0,0 +1,274 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import static com.kineticdata.bridgehub.adapter.kineticcore.KineticCoreAdapter.logger;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Splits a Kinetic Core query into disjoint timeline ranges (using the timeline, start and end
+ * parameters of the api) and runs a task for each of the ranges in parallel.
+ * <p>
+ * The amount of partitions adapts to the data: when a task reports that its range holds more
+ * than a single page of results the range is split again, until the maximum amount of partitions
+ * has been reached or the range can't be split any further. A task that already has the results
+ * for the end of its range (ie. the newest page) can return them as a partial result, so only the
+ * rest of the range is split and run again.
+ */
+public class KineticCoreTimelinePartitioner {
+    /** The timeline fields that Kinetic Core can be partitioned on. */
+    public static final List<String> TIMELINE_FIELDS = Arrays.asList(new String[] {
+        "createdAt","updatedAt","submittedAt","closedAt"
+    });
+    public static final int DEFAULT_PARTITIONS = 4;
+    public static final int MAX_PARTITIONS = 64;
+    // Ranges smaller than a second aren't split any further
+    private static final long MIN_RANGE_MILLIS = 1000;
+    // The amount of ranges that an overfull range is split into
+    private static final int SPLIT_FACTOR = 4;
+
+    /** A range of time that starts at (inclusive) and ends before (exclusive) the given millis. */
+    public static class Range {
+        private final long start;
+        private final long end;
+
+        public Range(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        public long getStart() { return start; }
+        public long getEnd() { return end; }
+        public String getStartTimestamp() { return formatTimestamp(start); }
+        public String getEndTimestamp() { return formatTimestamp(end); }
+
+        public boolean isSplittable() {
+            return end - start >= MIN_RANGE_MILLIS * 2;
+        }
+
+        public List<Range> split(int parts) {
+            List<Range> ranges = new ArrayList<Range>();
+            long width = Math.max(1, (end - start) / parts);
+            long rangeStart = start;
+            for (int i = 0; i < parts && rangeStart < end; i++) {
+                long rangeEnd = i == parts - 1 ? end : Math.min(end, rangeStart + width);
+                ranges.add(new Range(rangeStart, rangeEnd));
+                rangeStart = rangeEnd;
+            }
+            return ranges;
+        }
+
+        @Override
+        public String toString() {
+            return getStartTimestamp() + " - " + getEndTimestamp();
+        }
+    }
+
+    /** The result of a task for a range, which can only cover the end of the range. */
+    public static class Result<T> {
+        private final T value;
+        private final Long coveredFrom;
+
+        private Result(T value, Long coveredFrom) {
+            this.value = value;
+            this.coveredFrom = coveredFrom;
+        }
+
+        /** The result for the whole range. */
+        public static <T> Result<T> complete(T value) {
+            return new Result<T>(value, null);
+        }
+
+        /**
+         * The result for the end of the range, from the given millis on (inclusive). The start of
+         * the range, before the given millis, is split and run again.
+         */
+        public static <T> Result<T> partial(T value, long coveredFrom) {
+            return new Result<T>(value, coveredFrom);
+        }
+    }
+
+    /** The work that is done for a single partition. */
+    public interface RangeTask<T> {
+        /**
+         * Runs the task for the range. When (and only when) the range is splittable the task can
+         * return null to signal that the range holds too many results and should be split instead,
+         * or a partial result when it already has the results for the end of the range.
+         */
+        Result<T> run(Range range, boolean splittable) throws BridgeError;
+    }
+
+    private final ExecutorService executor;
+    private final int maxPartitions;
+
+    public KineticCoreTimelinePartitioner(ExecutorService executor) {
+        this(executor, MAX_PARTITIONS);
+    }
+
+    public KineticCoreTimelinePartitioner(ExecutorService executor, int maxPartitions) {
+        this.executor = executor;
+        this.maxPartitions = maxPartitions;
+    }
+
+    /**
+     * Runs the task over the bounds, initially split into the passed amount of partitions, and
+     * returns the result of each of the partitions in timeline order.
+     *
+     * @param task
+     * @param bounds
+     * @param partitions
+     * @return
+     * @throws BridgeError
+     */
+    public <T> List<T> execute(final RangeTask<T> task, Range bounds, int partitions) throws BridgeError {
+        List<Range> ranges = bounds.split(Math.max(1, Math.min(partitions, maxPartitions)));
+        int partitionCount = ranges.size();
+        // The results keyed by the start of their range (the ranges never overlap)
+        Map<Long,T> results = new TreeMap<Long,T>();
+
+        // Without an executor each of the partitions are run on the calling thread
+        if (executor == null) {
+            while (!ranges.isEmpty()) {
+                Range range = ranges.remove(0);
+                boolean splittable = range.isSplittable() && partitionCount < maxPartitions;
+                Range rest = complete(range, task.run(range, splittable), results);
+                if (rest != null) {
+                    List<Range> split = rest.split(SPLIT_FACTOR);
+                    partitionCount += split.size() - (rest == range ? 1 : 0);
+                    ranges.addAll(split);
+                }
+            }
+            return new ArrayList<T>(results.values());
+        }
+
+        CompletionService<Result<T>> completionService = new ExecutorCompletionService<Result<T>>(executor);
+        // The range that each of the submitted partitions is working on
+        Map<Future<Result<T>>,Range> futures = new IdentityHashMap<Future<Result<T>>,Range>();
+        int outstanding = 0;
+        try {
+            for (Range range : ranges) {
+                futures.put(submit(completionService, task, range, range.isSplittable() && partitionCount < maxPartitions), range);
+                outstanding++;
+            }
+            while (outstanding > 0) {
+                Future<Result<T>> future = completionService.take();
+                outstanding--;
+                Range range = futures.get(future);
+                Range rest = complete(range, future.get(), results);
+                if (rest == null) continue;
+                // The piece that was already covered counts as a partition of its own
+                if (rest != range) partitionCount++;
+                if (partitionCount >= maxPartitions) {
+                    // Other partitions were split in the meantime, so this one has to be run whole
+                    futures.put(submit(completionService, task, rest, false), rest);
+                    outstanding++;
+                } else {
+                    // The partition held too much data, so split it up and count the pieces
+                    List<Range> split = rest.split(SPLIT_FACTOR);
+                    partitionCount += split.size() - 1;
+                    logger.trace("Splitting the partition " + rest + " into " + split.size() + " partitions");
+                    for (Range subRange : split) {
+                        futures.put(submit(completionService, task, subRange, subRange.isSplittable() && partitionCount < maxPartitions), subRange);
+                        outstanding++;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BridgeError("Interrupted while retrieving partitions from the Kinetic Core server.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof BridgeError) throw (BridgeError)e.getCause();
+            logger.error("Unexpected error while retrieving a partition", e.getCause());
+            throw new BridgeError("Unexpected error while retrieving a partition from the Kinetic Core server.");
+        } finally {
+            if (outstanding > 0) {
+                for (Future<Result<T>> future : futures.keySet()) future.cancel(true);
+            }
+        }
+        logger.debug("Retrieved " + results.size() + " partitions between " + bounds);
+        return new ArrayList<T>(results.values());
+    }
+
+    private <T> Future<Result<T>> submit(CompletionService<Result<T>> completionService, final RangeTask<T> task,
+        final Range range, final boolean splittable) {
+        return completionService.submit(new Callable<Result<T>>() {
+            @Override
+            public Result<T> call() throws Exception {
+                return task.run(range, splittable);
+            }
+        });
+    }
+
+    // Keeps the result of the range (keyed by the start of the part of the range that it covers)
+    // and returns the part of the range that still has to be run, or null if the range is done
+    private static <T> Range complete(Range range, Result<T> result, Map<Long,T> results) {
+        if (result == null) return range;
+        if (result.coveredFrom == null || result.coveredFrom <= range.getStart()) {
+            results.put(range.getStart(), result.value);
+            return null;
+        }
+        if (result.coveredFrom >= range.getEnd()) return range;
+        results.put(result.coveredFrom, result.value);
+        return new Range(range.getStart(), result.coveredFrom);
+    }
+
+    /*---------------------------------------------------------------------------------------------
+     * TIMESTAMP METHODS
+     *-------------------------------------------------------------------------------------------*/
+
+    /**
+     * Parses an ISO 8601 timestamp (as returned by Kinetic Core) into epoch millis.
+     *
+     * @param timestamp
+     * @return
+     * @throws BridgeError
+     */
+    public static long parseTimestamp(String timestamp) throws BridgeError {
+        String value = timestamp.trim();
+        // Normalize the timezone into a form that SimpleDateFormat understands
+        if (value.endsWith("Z")) {
+            value = value.substring(0, value.length() - 1) + "+0000";
+        } else if (value.matches(".*[+-]\\d\\d:\\d\\d$")) {
+            value = value.substring(0, value.length() - 3) + value.substring(value.length() - 2);
+        }
+        String[] patterns = new String[] {
+            "yyyy-MM-dd'T'HH:mm:ss.SSSZ", "yyyy-MM-dd'T'HH:mm:ssZ", "yyyy-MM-dd'T'HH:mmZ"
+        };
+        for (String pattern : patterns) {
+            SimpleDateFormat format = new SimpleDateFormat(pattern);
+            format.setLenient(false);
+            try {
+                return format.parse(value).getTime();
+            } catch (ParseException e) {
+                // Try the next pattern
+            }
+        }
+        throw new BridgeError(String.format("Unable to parse '%s' as a timestamp.",timestamp));
+    }
+
+    /**
+     * Formats epoch millis as an ISO 8601 UTC timestamp that Kinetic Core accepts.
+     *
+     * @param millis
+     * @return
+     */
+    public static String formatTimestamp(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(millis));
+    }
+}
@@ -0,0 +1,162 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import java.util.regex.Pattern;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Matches field values against a query value where % is a wildcard (and \% is a literal %),
+ * ignoring the case of ASCII letters.
+ * <p>
+ * Literal (abc), prefix (abc%), suffix (%abc) and contains (%abc%) values are compared directly
+ * instead of with a regular expression. Every other value is compiled into an anchored case
+ * insensitive pattern. The direct comparisons give the same results as the pattern would: only
+ * ASCII letters are case folded, and a field value that contains a line terminator (which the
+ * wildcard doesn't match) is always checked with the pattern, which is only compiled the first
+ * time that such a field value is matched.
+ */
+public class KineticCoreValueMatcher {
+    /** The ways that a value can be matched. */
+    public enum Kind { LITERAL, PREFIX, SUFFIX, CONTAINS, PATTERN }
+
+    private final Kind kind;
+    // The text between the wildcards (with \% replaced by %)
+    private final String text;
+    // The pattern of the value, which is compiled when it is first needed unless the kind is PATTERN
+    private final String regex;
+    private volatile Pattern pattern;
+
+    private KineticCoreValueMatcher(Kind kind, String text, String regex) {
+        this.kind = kind;
+        this.text = text;
+        this.regex = regex;
+        if (kind == Kind.PATTERN) this.pattern = Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
+    }
+
+    /**
+     * Compiles a query value, where % is a wildcard.
+     *
+     * @param value
+     * @return
+     */
+    public static KineticCoreValueMatcher compile(String value) {
+        boolean leading = value.startsWith("%");
+        boolean trailing = value.length() > (leading ? 1 : 0) && value.endsWith("%");
+        String text = value.substring(leading ? 1 : 0, trailing ? value.length() - 1 : value.length());
+
+        Kind kind;
+        // The pattern treats a trailing \% as a literal % followed by a wildcard, so leave that to it
+        if (hasWildcard(text) || trailing && isEscaped(value, value.length() - 1)) {
+            return new KineticCoreValueMatcher(Kind.PATTERN, null, getRegexFromValue(value));
+        } else if (leading && (trailing || text.isEmpty())) {
+            kind = Kind.CONTAINS;
+        } else if (leading) {
+            kind = Kind.SUFFIX;
+        } else if (trailing) {
+            kind = Kind.PREFIX;
+        } else {
+            kind = Kind.LITERAL;
+        }
+        return new KineticCoreValueMatcher(kind, text.replace("\\%", "%"), getRegexFromValue(value));
+    }
+
+    /**
+     * Returns a matcher for field values that contain the text (used by the pattern parameter).
+     *
+     * @param text
+     * @return
+     */
+    public static KineticCoreValueMatcher contains(String text) {
+        return new KineticCoreValueMatcher(Kind.CONTAINS, text, ".*"+Pattern.quote(text)+".*");
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Returns true if the field value matches.
+     *
+     * @param value
+     * @return
+     */
+    public boolean matches(String value) {
+        if (kind == Kind.PATTERN || hasLineTerminator(value)) {
+            return getPattern().matcher(value).matches();
+        }
+        switch (kind) {
+            case LITERAL:
+                return value.length() == text.length() && regionMatches(value, 0);
+            case PREFIX:
+                return value.length() >= text.length() && regionMatches(value, 0);
+            case SUFFIX:
+                return value.length() >= text.length() && regionMatches(value, value.length() - text.length());
+            default:
+                for (int i = 0; i <= value.length() - text.length(); i++) {
+                    if (regionMatches(value, i)) return true;
+                }
+                return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return kind == Kind.PATTERN ? regex : kind + ":" + text;
+    }
+
+    // Compiling the pattern more than once when matching concurrently is harmless
+    private Pattern getPattern() {
+        Pattern compiled = this.pattern;
+        if (compiled == null) {
+            compiled = Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
+            this.pattern = compiled;
+        }
+        return compiled;
+    }
+
+    // Compares the text to the value starting at the offset, only folding the case of ASCII
+    // letters (like a case insensitive pattern does)
+    private boolean regionMatches(String value, int offset) {
+        for (int i = 0; i < text.length(); i++) {
+            char c1 = value.charAt(offset + i);
+            char c2 = text.charAt(i);
+            if (c1 != c2 && (c1 > 127 || c2 > 127 || toLowerCase(c1) != toLowerCase(c2))) return false;
+        }
+        return true;
+    }
+
+    private static char toLowerCase(char c) {
+        return c >= 'A' && c <= 'Z' ? (char)(c + ('a' - 'A')) : c;
+    }
+
+    // The wildcard of a pattern (and its $) treat line terminators differently from other characters
+    private static boolean hasLineTerminator(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') return true;
+        }
+        return false;
+    }
+
+    private static boolean hasWildcard(String text) {
+        for (int i = text.indexOf('%'); i != -1; i = text.indexOf('%', i + 1)) {
+            if (!isEscaped(text, i)) return true;
+        }
+        return false;
+    }
+
+    private static boolean isEscaped(String value, int index) {
+        return index > 0 && value.charAt(index - 1) == '\\';
+    }
+
+    // Converts a value (where % is a wildcard) into an anchored regex (that is matched case insensitive)
+    static String getRegexFromValue(String value) {
+        // Escape regex characters from value
+        String[] parts = value.split("(?<!\\\\)%");
+        for (int i = 0; i<parts.length; i++) {
+            if (!parts[i].isEmpty()) parts[i] = Pattern.quote(parts[i].replaceAll("\\\\%","%"));
+        }
+        String regex = StringUtils.join(parts,".*?");
+        if (!value.isEmpty() && value.substring(value.length() - 1).equals("%")) regex += ".*?";
+        return "^"+regex+"$";
+    }
+}
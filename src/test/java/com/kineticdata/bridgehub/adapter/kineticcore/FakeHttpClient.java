@@ -0,0 +1,92 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * An HttpClient that answers requests without a server, for the tests of the classes that make
+ * requests to Kinetic Core. The requests that were made are recorded.
+ */
+abstract class FakeHttpClient extends CloseableHttpClient {
+    final List<HttpRequest> requests = Collections.synchronizedList(new ArrayList<HttpRequest>());
+
+    /** Returns the response to the request. */
+    abstract HttpResponse respond(HttpRequest request) throws IOException;
+
+    /**
+     * Returns a response with a JSON body and the headers (name, value, name, value...).
+     *
+     * @param statusCode
+     * @param body
+     * @param headers
+     * @return
+     */
+    static HttpResponse response(int statusCode, String body, String... headers) {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, statusCode, null);
+        if (body != null) response.setEntity(new StringEntity(body, ContentType.APPLICATION_JSON));
+        for (int i = 0; i + 1 < headers.length; i += 2) {
+            response.addHeader(headers[i], headers[i + 1]);
+        }
+        return response;
+    }
+
+    /** Returns the uri of each of the requests that were made. */
+    List<String> getUris() {
+        List<String> uris = new ArrayList<String>();
+        synchronized (requests) {
+            for (HttpRequest request : requests) uris.add(request.getRequestLine().getUri());
+        }
+        return uris;
+    }
+
+    @Override
+    protected CloseableHttpResponse doExecute(HttpHost target, HttpRequest request, HttpContext context) throws IOException {
+        requests.add(request);
+        final HttpResponse response = respond(request);
+        return (CloseableHttpResponse)Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class[] { CloseableHttpResponse.class }, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if (method.getName().equals("close")) return null;
+                    try {
+                        return method.invoke(response, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                }
+            });
+    }
+
+    @Override
+    public void close() {}
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public HttpParams getParams() {
+        return null;
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public ClientConnectionManager getConnectionManager() {
+        return null;
+    }
+}
@@ -0,0 +1,110 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import com.kineticdata.bridgehub.adapter.Record;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class KineticCoreExternalSorterTest {
+    // Small enough that 5000 records are spilled in a few dozen runs
+    private static final long BUDGET = 20000;
+
+    @Test
+    public void test_spilledSortIsStable() throws Exception {
+        List<Record> records = records(5000);
+        List<Record> expected = new ArrayList<Record>(records);
+        Collections.sort(expected, keys().comparator());
+
+        List<Record> sorted = new KineticCoreExternalSorter(BUDGET).sort(records, keys());
+
+        // The passed list is cleared when the records are spilled
+        assertTrue(records.isEmpty());
+        assertEquals(ids(expected), ids(sorted));
+        KineticCoreExternalSorter.release(sorted);
+    }
+
+    @Test
+    public void test_spilledSortByComparator() throws Exception {
+        List<Record> records = records(5000);
+        List<Record> expected = new ArrayList<Record>(records);
+        Collections.sort(expected, keys().comparator());
+
+        List<Record> sorted = new KineticCoreExternalSorter(BUDGET).sort(records, keys().comparator());
+
+        assertTrue(records.isEmpty());
+        assertEquals(ids(expected), ids(sorted));
+        KineticCoreExternalSorter.release(sorted);
+    }
+
+    @Test
+    public void test_spilledTop() throws Exception {
+        List<Record> records = records(5000);
+        List<Record> expected = new ArrayList<Record>(records);
+        Collections.sort(expected, keys().comparator());
+
+        // The selected records don't fit into the budget either
+        List<Record> top = new KineticCoreExternalSorter(BUDGET).sort(records, keys(), 3000);
+
+        assertEquals(ids(expected.subList(0, 3000)), ids(top));
+        KineticCoreExternalSorter.release(top);
+    }
+
+    @Test
+    public void test_releaseDeletesTheTemporaryFiles() throws Exception {
+        int files = countTemporaryFiles();
+        List<Record> sorted = new KineticCoreExternalSorter(BUDGET).sort(records(5000), keys());
+        KineticCoreExternalSorter.release(sorted);
+
+        assertEquals(files, countTemporaryFiles());
+        try {
+            sorted.get(0);
+            throw new AssertionError("The released records shouldn't be readable");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        // Releasing again (or releasing records sorted in memory) doesn't do anything
+        KineticCoreExternalSorter.release(sorted);
+        KineticCoreExternalSorter.release(records(10));
+    }
+
+    // Records with few distinct values, so many of them compare as equal
+    private static List<Record> records(int size) {
+        Random random = new Random(42);
+        List<Record> records = new ArrayList<Record>();
+        for (int i = 0; i < size; i++) {
+            Map<String,Object> record = new LinkedHashMap<String,Object>();
+            record.put("status", "Status " + random.nextInt(20));
+            record.put("id", String.valueOf(i));
+            records.add(new Record(record));
+        }
+        return records;
+    }
+
+    private static KineticCoreSortKeys keys() {
+        Map<String,String> order = new LinkedHashMap<String,String>();
+        order.put("status", "DESC");
+        return new KineticCoreSortKeys(order, false);
+    }
+
+    private static List<Object> ids(List<Record> records) {
+        List<Object> ids = new ArrayList<Object>();
+        for (Record record : records) ids.add(record.getValue("id"));
+        return ids;
+    }
+
+    private static int countTemporaryFiles() {
+        String[] names = new File(System.getProperty("java.io.tmpdir")).list();
+        int count = 0;
+        for (String name : names) {
+            if (name.startsWith("kinetic-core-sort-")) count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,84 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class KineticCoreFilterEngineTest {
+
+    // Resolves a field to the value of the item's property (no value when the property is missing)
+    private static final KineticCoreFilterEngine.FieldResolver PROPERTIES = new KineticCoreFilterEngine.FieldResolver() {
+        @Override
+        public List getValues(JSONObject item, KineticCoreFilterPlan.Field field) {
+            return item.containsKey(field.getName()) ?
+                Arrays.asList(new Object[] { item.get(field.getName()) }) : Collections.emptyList();
+        }
+    };
+
+    @Test
+    public void test_matchesAllConditions() throws Exception {
+        JSONArray items = (JSONArray)JSONValue.parse("[{\"name\":\"Alpha\",\"enabled\":true},"
+            + "{\"name\":\"Beta\",\"enabled\":true},{\"name\":\"Alphabet\",\"enabled\":false}]");
+        KineticCoreFilterPlan plan = KineticCoreFilterPlan.parse("enabled=true&name=alpha%", new ArrayList<String>());
+
+        // The prefix value is estimated to be more selective than the boolean value
+        assertEquals("name", plan.getConditions().get(0).getFields()[0].getName());
+        JSONArray matched = KineticCoreFilterEngine.filter(items, plan, PROPERTIES);
+        assertEquals(1, matched.size());
+        assertTrue(matched.get(0) == items.get(0));
+    }
+
+    @Test
+    public void test_emptyQueryMatchesEverything() throws Exception {
+        JSONArray items = (JSONArray)JSONValue.parse("[{\"name\":\"Alpha\"},{\"name\":\"Beta\"}]");
+        KineticCoreFilterPlan plan = KineticCoreFilterPlan.parse("", new ArrayList<String>());
+
+        assertEquals(2, KineticCoreFilterEngine.filter(items, plan, PROPERTIES).size());
+    }
+
+    @Test
+    public void test_nullAndEmptyValues() throws Exception {
+        JSONArray items = (JSONArray)JSONValue.parse("[{\"name\":\"Alpha\",\"email\":null},"
+            + "{\"name\":\"Beta\",\"email\":\"beta@acme.com\"},{\"name\":\"Gamma\"}]");
+
+        // A null value matches a null property, and an empty value matches a missing property
+        JSONArray matched = KineticCoreFilterEngine.filter(items,
+            KineticCoreFilterPlan.parse("email=null", new ArrayList<String>()), PROPERTIES);
+        assertEquals(1, matched.size());
+        assertTrue(matched.get(0) == items.get(0));
+        matched = KineticCoreFilterEngine.filter(items,
+            KineticCoreFilterPlan.parse("email=", new ArrayList<String>()), PROPERTIES);
+        assertEquals(1, matched.size());
+        assertTrue(matched.get(0) == items.get(2));
+    }
+
+    @Test
+    public void test_patternSearchesFields() throws Exception {
+        JSONArray items = (JSONArray)JSONValue.parse("[{\"name\":\"Alpha\",\"email\":\"a@acme.com\"},"
+            + "{\"name\":\"Beta\",\"email\":\"b@example.com\"},{\"name\":\"ACME\",\"email\":\"c@example.com\"}]");
+        KineticCoreFilterPlan plan = KineticCoreFilterPlan.parse("pattern=acme&fields=name,email", new ArrayList<String>());
+
+        JSONArray matched = KineticCoreFilterEngine.filter(items, plan, PROPERTIES);
+        assertEquals(2, matched.size());
+        assertTrue(matched.get(0) == items.get(0));
+        assertTrue(matched.get(1) == items.get(2));
+    }
+
+    @Test
+    public void test_duplicateItemsReturnedOnce() throws Exception {
+        JSONObject item = (JSONObject)JSONValue.parse("{\"name\":\"Alpha\"}");
+        List<Object> items = new ArrayList<Object>();
+        items.add(item);
+        items.add(item);
+
+        assertEquals(1, KineticCoreFilterEngine.filter(items,
+            KineticCoreFilterPlan.parse("name=Alpha", new ArrayList<String>()), PROPERTIES).size());
+    }
+}
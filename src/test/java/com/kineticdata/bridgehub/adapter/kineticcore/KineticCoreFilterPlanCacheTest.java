@@ -0,0 +1,60 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import java.util.Arrays;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class KineticCoreFilterPlanCacheTest {
+
+    @Test
+    public void test_sharesReorderedQueries() throws Exception {
+        KineticCoreFilterPlanCache cache = new KineticCoreFilterPlanCache();
+        KineticCoreFilterPlan plan = cache.get("name=Test%&enabled=true");
+
+        assertTrue(plan == cache.get("enabled=true&name=Test%"));
+        assertEquals("1", cache.getStats().get("hits"));
+    }
+
+    @Test
+    public void test_normalizeKeepsRepeatedParameterOrder() {
+        // Only the parameter names are sorted, so repeated parameters keep their order
+        assertEquals("a=1&b=2&b=1", KineticCoreFilterPlanCache.normalize("b=2&a=1&b=1"));
+        assertEquals("", KineticCoreFilterPlanCache.normalize(""));
+    }
+
+    @Test
+    public void test_operatorNamesArePartOfTheKey() throws Exception {
+        KineticCoreFilterPlanCache cache = new KineticCoreFilterPlanCache();
+        KineticCoreFilterPlan plan = cache.get("name=IT&exclude=HR");
+        KineticCoreFilterPlan operatorPlan = cache.get("name=IT&exclude=HR", Arrays.asList("exclude"));
+
+        assertTrue(plan != operatorPlan);
+        assertEquals(Arrays.asList("HR"), operatorPlan.getOperatorValues("exclude"));
+        assertTrue(plan.getOperatorValues("exclude").isEmpty());
+    }
+
+    @Test
+    public void test_invalidQueriesAreNotCached() throws Exception {
+        KineticCoreFilterPlanCache cache = new KineticCoreFilterPlanCache();
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.get("pattern=abc");
+            } catch (BridgeError e) {
+                continue;
+            }
+            throw new AssertionError("A pattern without fields should be rejected every time");
+        }
+        assertEquals("0", cache.getStats().get("hits"));
+    }
+
+    @Test
+    public void test_evictsLeastRecentlyUsed() throws Exception {
+        KineticCoreFilterPlanCache cache = new KineticCoreFilterPlanCache(1);
+        KineticCoreFilterPlan plan = cache.get("name=a");
+        cache.get("name=b");
+
+        assertTrue(plan != cache.get("name=a"));
+    }
+}
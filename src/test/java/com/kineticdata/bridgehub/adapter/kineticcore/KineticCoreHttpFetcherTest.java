@@ -0,0 +1,186 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.Header;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.json.simple.JSONObject;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class KineticCoreHttpFetcherTest {
+    private static final String URL = "http://localhost/kinetic/app/api/v1/kapps";
+
+    @Test
+    public void test_notModifiedReturnsPreviousResponse() throws Exception {
+        FakeHttpClient client = new FakeHttpClient() {
+            @Override
+            HttpResponse respond(HttpRequest request) {
+                return request.containsHeader("If-None-Match") ?
+                    response(304, null) : response(200, "{\"kapps\":[]}", "ETag", "\"v1\"");
+            }
+        };
+        KineticCoreHttpFetcher fetcher = new KineticCoreHttpFetcher(client, "user", "password");
+
+        JSONObject json = fetcher.getJson(URL);
+        assertTrue(json == fetcher.getJson(URL));
+        assertEquals("\"v1\"", header(client.requests.get(1), "If-None-Match"));
+        assertNull(header(client.requests.get(0), "If-None-Match"));
+    }
+
+    @Test
+    public void test_lastModifiedValidator() throws Exception {
+        FakeHttpClient client = new FakeHttpClient() {
+            @Override
+            HttpResponse respond(HttpRequest request) {
+                return response(200, "{\"kapps\":[]}", "Last-Modified", "Sun, 01 Jan 2017 00:00:00 GMT");
+            }
+        };
+        KineticCoreHttpFetcher fetcher = new KineticCoreHttpFetcher(client, "user", "password");
+
+        fetcher.getJson(URL);
+        fetcher.getJson(URL);
+        assertEquals("Sun, 01 Jan 2017 00:00:00 GMT", header(client.requests.get(1), "If-Modified-Since"));
+        assertNull(header(client.requests.get(1), "If-None-Match"));
+    }
+
+    @Test
+    public void test_unchangedBodyWithoutValidators() throws Exception {
+        final String[] body = { "{\"kapps\":[{\"slug\":\"services\"}]}" };
+        FakeHttpClient client = new FakeHttpClient() {
+            @Override
+            HttpResponse respond(HttpRequest request) {
+                return response(200, body[0]);
+            }
+        };
+        KineticCoreHttpFetcher fetcher = new KineticCoreHttpFetcher(client, "user", "password");
+
+        // The hash of the body shows that it hasn't changed, so it isn't parsed again
+        JSONObject json = fetcher.getJson(URL);
+        assertTrue(json == fetcher.getJson(URL));
+
+        body[0] = "{\"kapps\":[{\"slug\":\"queue\"}]}";
+        JSONObject changed = fetcher.getJson(URL);
+        assertTrue(json != changed);
+        assertEquals("{\"kapps\":[{\"slug\":\"queue\"}]}", changed.toJSONString());
+        assertEquals(3, client.requests.size());
+    }
+
+    @Test
+    public void test_errorResponsesAreNotRemembered() throws Exception {
+        final int[] statusCode = { 500 };
+        FakeHttpClient client = new FakeHttpClient() {
+            @Override
+            HttpResponse respond(HttpRequest request) {
+                return response(statusCode[0], "{\"error\":\"Unavailable\"}", "ETag", "\"v1\"");
+            }
+        };
+        KineticCoreHttpFetcher fetcher = new KineticCoreHttpFetcher(client, "user", "password");
+
+        try {
+            fetcher.getJson(URL);
+            throw new AssertionError("A 500 response should be an error");
+        } catch (BridgeError e) {
+            assertTrue(e.getMessage().contains("Unavailable"));
+        }
+        statusCode[0] = 200;
+        fetcher.getJson(URL);
+        assertNull(header(client.requests.get(1), "If-None-Match"));
+
+        // Responses that aren't revalidated aren't remembered either
+        fetcher.fetch(URL + "?include=details", false);
+        fetcher.fetch(URL + "?include=details", false);
+        assertNull(header(client.requests.get(3), "If-None-Match"));
+    }
+
+    @Test
+    public void test_sizeBound() throws Exception {
+        final String small = "{\"value\":\"" + repeat('x', 100000) + "\"}";
+        final String large = "{\"value\":\"" + repeat('x', 300000) + "\"}";
+        FakeHttpClient client = new FakeHttpClient() {
+            @Override
+            HttpResponse respond(HttpRequest request) {
+                return response(200, request.getRequestLine().getUri().endsWith("large") ? large : small, "ETag", "\"v1\"");
+            }
+        };
+        // The small response (its body and its parsed value) weighs about 400KB, which is more than
+        // a quarter of the bound but within it. The large response weighs more than the bound.
+        KineticCoreHttpFetcher fetcher = new KineticCoreHttpFetcher(client, "user", "password", 1024 * 1024);
+
+        fetcher.getJson(URL + "/small");
+        fetcher.getJson(URL + "/small");
+        fetcher.getJson(URL + "/large");
+        fetcher.getJson(URL + "/large");
+        assertEquals("\"v1\"", header(client.requests.get(1), "If-None-Match"));
+        assertNull(header(client.requests.get(3), "If-None-Match"));
+    }
+
+    @Test
+    public void test_singleFlight() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        FakeHttpClient client = new FakeHttpClient() {
+            @Override
+            HttpResponse respond(HttpRequest request) {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return response(200, "{\"kapps\":[]}");
+            }
+        };
+        final KineticCoreHttpFetcher fetcher = new KineticCoreHttpFetcher(client, "user", "password");
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<JSONObject>> results = new ArrayList<Future<JSONObject>>();
+            for (int i = 0; i < threads; i++) {
+                results.add(executor.submit(new Callable<JSONObject>() {
+                    @Override
+                    public JSONObject call() throws Exception {
+                        return fetcher.getJson(URL);
+                    }
+                }));
+            }
+            // Wait for every other request to join the first one before it is answered
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!String.valueOf(threads - 1).equals(fetcher.getStats().get("coalesced"))) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            release.countDown();
+
+            JSONObject json = results.get(0).get(5, TimeUnit.SECONDS);
+            for (Future<JSONObject> result : results) {
+                assertTrue(json == result.get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(1, client.requests.size());
+            assertEquals("1", fetcher.getStats().get("issued"));
+            assertEquals("0", fetcher.getStats().get("inFlight"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static String header(HttpRequest request, String name) {
+        Header header = request.getFirstHeader(name);
+        return header == null ? null : header.getValue();
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
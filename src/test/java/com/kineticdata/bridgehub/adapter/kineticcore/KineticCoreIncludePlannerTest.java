@@ -0,0 +1,54 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import com.kineticdata.bridgehub.adapter.BridgeRequest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class KineticCoreIncludePlannerTest {
+
+    @Test
+    public void test_minimalIncludes() {
+        assertTrue(KineticCoreIncludePlanner.plan(Arrays.asList("id", "handle")).isEmpty());
+        assertEquals(Arrays.asList("values", "details"),
+            KineticCoreIncludePlanner.plan(Arrays.asList("handle", "values[Group]", "createdAt", "values[Status]")));
+        assertEquals(Arrays.asList("form"), KineticCoreIncludePlanner.plan(Arrays.asList("form[name]")));
+        assertEquals(Arrays.asList("values"), KineticCoreIncludePlanner.plan(Arrays.asList("values", "values[Group]")));
+    }
+
+    @Test
+    public void test_requestOrderAndQueryIncludes() throws Exception {
+        BridgeRequest request = new BridgeRequest();
+        request.setFields(Arrays.asList("handle"));
+        Map<String,String> metadata = new LinkedHashMap<String,String>();
+        metadata.put("order", "<%=field[\"submittedAt\"]%>:DESC");
+        request.setMetadata(metadata);
+
+        // The order fields are planned, and the query includes are added once each
+        assertEquals(Arrays.asList("details", "form", "values"),
+            KineticCoreIncludePlanner.plan(request, Arrays.asList("form, details", "values,")));
+    }
+
+    @Test
+    public void test_structureIncludes() {
+        // A team retrieve only includes what the fields need
+        List<String> teamIncludes = Arrays.asList("attributes", "memberships");
+        assertTrue(KineticCoreIncludePlanner.plan(Arrays.asList("name", "slug"), teamIncludes, KineticCoreTeamHelper.DETAIL_FIELDS).isEmpty());
+        assertEquals(Arrays.asList("attributes", "details"), KineticCoreIncludePlanner.plan(
+            Arrays.asList("attributes[Icon]", "createdAt"), teamIncludes, KineticCoreTeamHelper.DETAIL_FIELDS));
+        assertEquals(Arrays.asList("memberships"), KineticCoreIncludePlanner.plan(
+            Arrays.asList("memberships", "memberships[user]"), teamIncludes, KineticCoreTeamHelper.DETAIL_FIELDS));
+    }
+
+    @Test
+    public void test_toParameter() {
+        assertNull(KineticCoreIncludePlanner.toParameter(new ArrayList<String>()));
+        assertEquals("include=values,details", KineticCoreIncludePlanner.toParameter(Arrays.asList("values", "details")));
+    }
+}
@@ -0,0 +1,64 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import org.json.simple.JSONArray;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class KineticCoreListCacheTest {
+
+    @Test
+    public void test_normalizesIncludes() {
+        assertEquals(KineticCoreListCache.normalize("http://localhost/app/api/v1/kapps?include=details,attributes"),
+            KineticCoreListCache.normalize("http://localhost/app/api/v1/kapps?include=attributes,details,details"));
+        // Empty includes are dropped and the parameters are sorted
+        assertEquals("http://localhost/app/api/v1/kapps?include=attributes&limit=10",
+            KineticCoreListCache.normalize("http://localhost/app/api/v1/kapps?limit=10&include=attributes,,"));
+        assertEquals("http://localhost/app/api/v1/kapps", KineticCoreListCache.normalize("http://localhost/app/api/v1/kapps"));
+    }
+
+    @Test
+    public void test_servesCachedList() throws Exception {
+        final int[] loads = new int[1];
+        KineticCoreListCache.Loader loader = new KineticCoreListCache.Loader() {
+            @Override
+            public JSONArray load() {
+                loads[0]++;
+                return new JSONArray();
+            }
+        };
+        KineticCoreListCache cache = new KineticCoreListCache(null, 300);
+
+        JSONArray list = cache.get("http://localhost/kapps?include=details,attributes", loader);
+        assertTrue(list == cache.get("http://localhost/kapps?include=attributes,details", loader));
+        assertEquals(1, loads[0]);
+
+        cache.clear();
+        cache.get("http://localhost/kapps?include=details,attributes", loader);
+        assertEquals(2, loads[0]);
+    }
+
+    @Test
+    public void test_failedLoadIsNotCached() throws Exception {
+        KineticCoreListCache cache = new KineticCoreListCache(null, 300);
+        try {
+            cache.get("http://localhost/kapps", new KineticCoreListCache.Loader() {
+                @Override
+                public JSONArray load() throws BridgeError {
+                    throw new BridgeError("Unavailable");
+                }
+            });
+        } catch (BridgeError e) {
+            // The next request loads the list again
+        }
+
+        final JSONArray kapps = new JSONArray();
+        assertTrue(kapps == cache.get("http://localhost/kapps", new KineticCoreListCache.Loader() {
+            @Override
+            public JSONArray load() {
+                return kapps;
+            }
+        }));
+    }
+}
@@ -0,0 +1,184 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Test;
+
+public class KineticCorePagePipelineTest {
+    private final ExecutorService executor = Executors.newFixedThreadPool(8);
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void test_inFlightLimit() throws Exception {
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        List<Integer> pages = new KineticCorePagePipeline(executor, 3).fetchAll(new Pages(10) {
+            @Override
+            Integer fetch(int index, KineticCorePagePipeline.TokenListener listener) throws Exception {
+                int current = inFlight.incrementAndGet();
+                synchronized (maxInFlight) {
+                    maxInFlight.set(Math.max(maxInFlight.get(), current));
+                }
+                // The token is known right away, but the rest of the page takes a while
+                reportToken(index, listener);
+                Thread.sleep(50);
+                inFlight.decrementAndGet();
+                return index;
+            }
+        }, null);
+
+        assertEquals(10, pages.size());
+        assertEquals(3, maxInFlight.get());
+    }
+
+    @Test
+    public void test_pagesAreInPageOrder() throws Exception {
+        // The later pages finish before the earlier ones
+        List<Integer> pages = new KineticCorePagePipeline(executor, 5).fetchAll(new Pages(10) {
+            @Override
+            Integer fetch(int index, KineticCorePagePipeline.TokenListener listener) throws Exception {
+                reportToken(index, listener);
+                Thread.sleep((10 - index) * 10);
+                return index;
+            }
+        }, null);
+
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < 10; i++) expected.add(i);
+        assertEquals(expected, pages);
+    }
+
+    @Test
+    public void test_startsAtTheToken() throws Exception {
+        List<Integer> pages = new KineticCorePagePipeline(executor).fetchAll(new Pages(5) {
+            @Override
+            Integer fetch(int index, KineticCorePagePipeline.TokenListener listener) {
+                reportToken(index, listener);
+                return index;
+            }
+        }, "3");
+
+        List<Integer> expected = new ArrayList<Integer>();
+        expected.add(3);
+        expected.add(4);
+        assertEquals(expected, pages);
+    }
+
+    @Test
+    public void test_errorsArePropagated() throws Exception {
+        final BridgeError error = new BridgeError("Unable to retrieve page 3");
+        try {
+            new KineticCorePagePipeline(executor).fetchAll(new Pages(10) {
+                @Override
+                Integer fetch(int index, KineticCorePagePipeline.TokenListener listener) throws Exception {
+                    reportToken(index, listener);
+                    if (index == 3) throw error;
+                    return index;
+                }
+            }, null);
+            throw new AssertionError("The error of the page should have been thrown");
+        } catch (BridgeError e) {
+            assertSame(error, e);
+        }
+
+        try {
+            new KineticCorePagePipeline(executor).fetchAll(new Pages(10) {
+                @Override
+                Integer fetch(int index, KineticCorePagePipeline.TokenListener listener) {
+                    reportToken(index, listener);
+                    if (index == 3) throw new IllegalStateException("Unexpected");
+                    return index;
+                }
+            }, null);
+            throw new AssertionError("The error of the page should have been thrown");
+        } catch (BridgeError e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Unexpected error"));
+        }
+    }
+
+    @Test
+    public void test_outstandingPagesAreCancelledOnError() throws Exception {
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        try {
+            new KineticCorePagePipeline(executor).fetchAll(new Pages(10) {
+                @Override
+                Integer fetch(int index, KineticCorePagePipeline.TokenListener listener) throws Exception {
+                    reportToken(index, listener);
+                    if (index == 1) throw new BridgeError("Unable to retrieve page 1");
+                    // The first page is still being read when the second page fails
+                    try {
+                        Thread.sleep(TimeUnit.SECONDS.toMillis(30));
+                    } catch (InterruptedException e) {
+                        if (index == 0) interrupted.countDown();
+                        throw e;
+                    }
+                    return index;
+                }
+            }, null);
+            throw new AssertionError("The error of the page should have been thrown");
+        } catch (BridgeError e) {
+            assertEquals("Unable to retrieve page 1", e.getMessage());
+        }
+        assertTrue("The first page wasn't cancelled", interrupted.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void test_serialWithoutAnExecutor() throws Exception {
+        final AtomicInteger inFlight = new AtomicInteger();
+        List<Integer> pages = new KineticCorePagePipeline(null).fetchAll(new Pages(4) {
+            @Override
+            Integer fetch(int index, KineticCorePagePipeline.TokenListener listener) {
+                assertEquals(1, inFlight.incrementAndGet());
+                reportToken(index, listener);
+                inFlight.decrementAndGet();
+                return index;
+            }
+        }, null);
+        assertEquals(4, pages.size());
+    }
+
+    // Pages whose token is the index of the page (the first page doesn't have a token)
+    private abstract static class Pages implements KineticCorePagePipeline.PageFetcher<Integer> {
+        private final int count;
+
+        private Pages(int count) {
+            this.count = count;
+        }
+
+        abstract Integer fetch(int index, KineticCorePagePipeline.TokenListener listener) throws Exception;
+
+        void reportToken(int index, KineticCorePagePipeline.TokenListener listener) {
+            listener.nextPageToken(index + 1 < count ? String.valueOf(index + 1) : null);
+        }
+
+        @Override
+        public Integer fetch(String pageToken, KineticCorePagePipeline.TokenListener listener) throws BridgeError {
+            try {
+                return fetch(pageToken == null ? 0 : Integer.parseInt(pageToken), listener);
+            } catch (BridgeError e) {
+                throw e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BridgeError("Interrupted");
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
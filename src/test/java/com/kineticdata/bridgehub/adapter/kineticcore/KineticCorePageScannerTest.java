@@ -0,0 +1,77 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import org.json.simple.parser.JSONParser;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+public class KineticCorePageScannerTest {
+
+    @Test
+    public void test_countsTopLevelElements() throws Exception {
+        String page = "{\"messages\":[],\"nextPageToken\":\"token-1\",\"submissions\":[{\"id\":\"1\","+
+            "\"values\":{\"Checkbox\":[\"a\",\"b\"],\"Submissions\":[{\"id\":\"x\"}]}},{\"id\":\"2\"},{\"id\":\"3\"}]}";
+
+        KineticCorePageScanner scanner = scan("submissions", page);
+
+        // Nested arrays (even ones named submissions) shouldn't be counted
+        assertEquals(3,scanner.getCount());
+        assertEquals("token-1",scanner.getNextPageToken());
+    }
+
+    @Test
+    public void test_lastPage() throws Exception {
+        KineticCorePageScanner scanner = scan("submissions", "{\"submissions\":[],\"nextPageToken\":null}");
+
+        assertEquals(0,scanner.getCount());
+        assertNull(scanner.getNextPageToken());
+    }
+
+    @Test
+    public void test_ignoresNestedArraysWithTheSameKey() throws Exception {
+        // A records array inside of a record isn't the results array
+        String page = "{\"records\":[{\"values\":{\"records\":[1,2,3]}},[\"nested\",\"array\"],\"primitive\"],"+
+            "\"other\":{\"records\":[{\"id\":\"x\"}],\"nextPageToken\":\"nested-token\"}}";
+
+        KineticCorePageScanner scanner = scan("records", page);
+
+        // Objects, arrays and primitives directly in the results array are each a result
+        assertEquals(3,scanner.getCount());
+        assertNull(scanner.getNextPageToken());
+    }
+
+    @Test
+    public void test_tokenBeforeResults() throws Exception {
+        final List<String> tokens = new ArrayList<String>();
+        KineticCorePageScanner scanner = new KineticCorePageScanner("submissions", new KineticCorePagePipeline.TokenListener() {
+            @Override
+            public void nextPageToken(String token) {
+                tokens.add(token);
+            }
+        });
+        new JSONParser().parse(new StringReader("{\"nextPageToken\":\"token-2\",\"submissions\":[{},{}]}"), scanner);
+
+        // The listener hears about the token as soon as it is parsed
+        assertEquals(1,tokens.size());
+        assertEquals("token-2",tokens.get(0));
+        assertEquals(2,scanner.getCount());
+    }
+
+    @Test
+    public void test_reusedScannerResets() throws Exception {
+        KineticCorePageScanner scanner = scan("submissions", "{\"submissions\":[{},{},{}],\"nextPageToken\":\"token-1\"}");
+        new JSONParser().parse(new StringReader("{\"submissions\":[{}]}"), scanner);
+
+        assertEquals(1,scanner.getCount());
+        assertNull(scanner.getNextPageToken());
+    }
+
+    private static KineticCorePageScanner scan(String arrayKey, String page) throws Exception {
+        KineticCorePageScanner scanner = new KineticCorePageScanner(arrayKey);
+        new JSONParser().parse(new StringReader(page), scanner);
+        return scanner;
+    }
+}
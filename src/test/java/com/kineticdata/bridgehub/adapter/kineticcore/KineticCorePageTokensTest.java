@@ -0,0 +1,161 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import com.kineticdata.bridgehub.adapter.BridgeRequest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class KineticCorePageTokensTest {
+
+    // Fails the test if a page has to be retrieved
+    private static final KineticCorePageTokens.PageWalker NO_WALKING = new KineticCorePageTokens.PageWalker() {
+        @Override
+        public String nextPageToken(String pageToken) throws BridgeError {
+            throw new BridgeError("The recorded pages shouldn't be walked");
+        }
+    };
+
+    @Test
+    public void test_key() {
+        String key = KineticCorePageTokens.key("kapps/services", Arrays.asList("q=a", "direction=ASC"));
+        assertEquals(key, KineticCorePageTokens.key("kapps/services", Arrays.asList("direction=ASC", "q=a")));
+        assertTrue(!key.equals(KineticCorePageTokens.key("kapps/services/forms/ipad", Arrays.asList("q=a", "direction=ASC"))));
+    }
+
+    @Test
+    public void test_pageNumberOfTheOffset() throws Exception {
+        assertEquals(0, KineticCorePageTokens.getPageNumber(request(null), 25));
+        assertEquals(1, KineticCorePageTokens.getPageNumber(request("0"), 25));
+        assertEquals(3, KineticCorePageTokens.getPageNumber(request("50"), 25));
+        // Offsets that aren't the start of a page aren't jumped to
+        assertEquals(0, KineticCorePageTokens.getPageNumber(request("30"), 25));
+        assertEquals(0, KineticCorePageTokens.getPageNumber(request("-25"), 25));
+        assertEquals(0, KineticCorePageTokens.getPageNumber(request("first"), 25));
+    }
+
+    @Test
+    public void test_countRecordsChain() throws Exception {
+        KineticCorePageTokens pageTokens = new KineticCorePageTokens();
+        String key = KineticCorePageTokens.key("kapps/services", Arrays.asList("q=a"));
+        assertNull(pageTokens.getTotal(key));
+
+        pageTokens.recordAll(key, 1000, Arrays.asList("token2", "token3", null), 2500);
+        assertEquals(Integer.valueOf(2500), pageTokens.getTotal(key));
+        assertEquals("", pageTokens.getPageToken(key, 1000, 1, NO_WALKING));
+        assertEquals("token3", pageTokens.getPageToken(key, 1000, 3, NO_WALKING));
+        // Every page is known, so there isn't a fourth page
+        assertNull(pageTokens.getPageToken(key, 1000, 4, NO_WALKING));
+    }
+
+    @Test
+    public void test_totalIsSharedBetweenPageSizes() throws Exception {
+        KineticCorePageTokens pageTokens = new KineticCorePageTokens();
+        String key = KineticCorePageTokens.key("kapps/services", Arrays.asList("q=a"));
+        pageTokens.recordAll(key, 1000, Arrays.asList("token2", "token3", null), 2500);
+
+        // The tokens of another page size aren't known, but the total shows the page doesn't exist
+        assertNull(pageTokens.getPageToken(key, 25, 101, NO_WALKING));
+        assertEquals("t2", pageTokens.getPageToken(key, 25, 2, new KineticCorePageTokens.PageWalker() {
+            @Override
+            public String nextPageToken(String pageToken) {
+                return "t2";
+            }
+        }));
+    }
+
+    @Test
+    public void test_walksOnlyUnknownPages() throws Exception {
+        KineticCorePageTokens pageTokens = new KineticCorePageTokens();
+        String key = KineticCorePageTokens.key("datastores/people", new ArrayList<String>());
+        final List<String> walked = new ArrayList<String>();
+        KineticCorePageTokens.PageWalker walker = new KineticCorePageTokens.PageWalker() {
+            @Override
+            public String nextPageToken(String pageToken) {
+                walked.add(pageToken);
+                return pageToken.isEmpty() ? "t2" : pageToken.equals("t2") ? "t3" : null;
+            }
+        };
+
+        assertEquals("t3", pageTokens.getPageToken(key, 25, 3, walker));
+        assertEquals(Arrays.asList("", "t2"), walked);
+        // The walked pages were recorded
+        assertEquals("t2", pageTokens.getPageToken(key, 25, 2, NO_WALKING));
+        // The third page is the last one, which is remembered
+        assertNull(pageTokens.getPageToken(key, 25, 5, walker));
+        assertEquals(Arrays.asList("", "t2", "t3"), walked);
+        assertNull(pageTokens.getPageToken(key, 25, 4, NO_WALKING));
+        assertNull(pageTokens.getTotal(key));
+    }
+
+    @Test
+    public void test_recordPageOnlyExtendsTheChain() throws Exception {
+        KineticCorePageTokens pageTokens = new KineticCorePageTokens();
+        String key = KineticCorePageTokens.key("datastores/people", new ArrayList<String>());
+
+        // The token of the third page can't be recorded before the second page is known
+        pageTokens.recordPage(key, 25, 2, "t3");
+        pageTokens.recordPage(key, 25, 1, "t2");
+        pageTokens.recordPage(key, 25, 2, "t3");
+        pageTokens.recordPage(key, 25, 3, null);
+        assertEquals("t3", pageTokens.getPageToken(key, 25, 3, NO_WALKING));
+        assertNull(pageTokens.getPageToken(key, 25, 4, NO_WALKING));
+    }
+
+    @Test
+    public void test_walkDoesNotBlockTheQuery() throws Exception {
+        final KineticCorePageTokens pageTokens = new KineticCorePageTokens();
+        final String key = KineticCorePageTokens.key("datastores/people", new ArrayList<String>());
+        pageTokens.recordPage(key, 25, 1, "t2");
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // While the third page is being walked another search reads the second page
+            String token = pageTokens.getPageToken(key, 25, 3, new KineticCorePageTokens.PageWalker() {
+                @Override
+                public String nextPageToken(String pageToken) throws BridgeError {
+                    Future<String> other = executor.submit(new Callable<String>() {
+                        @Override
+                        public String call() throws Exception {
+                            return pageTokens.getPageToken(key, 25, 2, NO_WALKING);
+                        }
+                    });
+                    try {
+                        assertEquals("t2", other.get(5, TimeUnit.SECONDS));
+                    } catch (Exception e) {
+                        throw new AssertionError("The other search was blocked by the walk: " + e);
+                    }
+                    return "t3";
+                }
+            });
+            assertEquals("t3", token);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void test_expiredChain() throws Exception {
+        KineticCorePageTokens pageTokens = new KineticCorePageTokens(0, 10);
+        String key = KineticCorePageTokens.key("datastores/people", new ArrayList<String>());
+        pageTokens.recordAll(key, 25, Arrays.asList("t2", null), 30);
+
+        assertNull(pageTokens.getTotal(key));
+    }
+
+    private static BridgeRequest request(String offset) {
+        BridgeRequest request = new BridgeRequest();
+        request.setMetadata(new LinkedHashMap<String,String>());
+        if (offset != null) request.getMetadata().put("offset", offset);
+        return request;
+    }
+}
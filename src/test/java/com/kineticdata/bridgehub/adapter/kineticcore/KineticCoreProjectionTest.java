@@ -0,0 +1,82 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import com.kineticdata.bridgehub.adapter.BridgeRequest;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class KineticCoreProjectionTest {
+
+    @Test
+    public void test_keepsRequestedFields() {
+        String response = "{\"messages\":[],\"nextPageToken\":\"abc\",\"submissions\":["
+            + "{\"id\":\"1\",\"handle\":\"A1\",\"coreState\":\"Draft\",\"values\":{\"Group\":[\"IT\"],\"Notes\":\"...\"}},"
+            + "{\"id\":\"2\",\"handle\":\"B2\",\"coreState\":\"Submitted\",\"values\":{\"Notes\":\"...\"}}]}";
+        KineticCoreProjection projection = new KineticCoreProjection("submissions", Arrays.asList("handle", "values[Group]"));
+
+        JSONObject json = projection.parse(response);
+        assertEquals("abc", json.get("nextPageToken"));
+        JSONArray submissions = (JSONArray)json.get("submissions");
+        assertEquals(2, submissions.size());
+        // Only the requested fields (and the requested values) are kept
+        JSONObject submission = (JSONObject)submissions.get(0);
+        assertEquals(2, submission.size());
+        assertEquals("A1", submission.get("handle"));
+        assertEquals(Arrays.asList("IT"), ((JSONObject)submission.get("values")).get("Group"));
+        assertTrue(((JSONObject)((JSONObject)submissions.get(1)).get("values")).isEmpty());
+    }
+
+    @Test
+    public void test_singleResultObject() {
+        String response = "{\"record\":{\"id\":\"1\",\"updatedAt\":\"2017-01-01T00:00:00.000Z\","
+            + "\"values\":{\"Status\":\"Open\",\"Nested\":{\"a\":[1,{\"b\":2}]}}}}";
+        KineticCoreProjection projection = new KineticCoreProjection("record", Arrays.asList("updatedAt", "values[Nested]"));
+
+        JSONObject record = (JSONObject)projection.parse(response).get("record");
+        assertEquals(2, record.size());
+        assertEquals("2017-01-01T00:00:00.000Z", record.get("updatedAt"));
+        // A nested field keeps the whole value of that entry
+        JSONObject nested = (JSONObject)((JSONObject)record.get("values")).get("Nested");
+        assertEquals("[1,{\"b\":2}]", nested.get("a").toString());
+    }
+
+    @Test
+    public void test_wholeObjectAndNullValues() {
+        String response = "{\"submissions\":[{\"form\":{\"name\":\"iPad\",\"slug\":\"ipad\"},\"values\":null}]}";
+        KineticCoreProjection projection = new KineticCoreProjection("submissions", Arrays.asList("form", "values[Group]"));
+
+        JSONObject submission = (JSONObject)((JSONArray)projection.parse(response).get("submissions")).get(0);
+        assertEquals(2, ((JSONObject)submission.get("form")).size());
+        assertTrue(submission.containsKey("values"));
+        assertNull(submission.get("values"));
+    }
+
+    @Test
+    public void test_invalidJson() {
+        KineticCoreProjection projection = new KineticCoreProjection("submissions", Arrays.asList("handle"));
+        assertNull(projection.parse("<html>Bad Gateway</html>"));
+        assertNull(projection.parse("[1,2]"));
+    }
+
+    @Test
+    public void test_forRequestKeepsOrderFields() throws Exception {
+        BridgeRequest request = new BridgeRequest();
+        request.setFields(Arrays.asList("handle"));
+        Map<String,String> metadata = new LinkedHashMap<String,String>();
+        metadata.put("order", "<%=field[\"values[Due]\"]%>:DESC");
+        request.setMetadata(metadata);
+
+        JSONObject json = KineticCoreProjection.forRequest("submissions", request).parse(
+            "{\"submissions\":[{\"handle\":\"A1\",\"coreState\":\"Draft\",\"values\":{\"Due\":\"2017\",\"Other\":1}}]}");
+        JSONObject submission = (JSONObject)((JSONArray)json.get("submissions")).get(0);
+        assertEquals(2, submission.size());
+        assertEquals("2017", ((JSONObject)submission.get("values")).get("Due"));
+        assertEquals(1, ((JSONObject)submission.get("values")).size());
+    }
+}
@@ -0,0 +1,30 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+public class KineticCoreQualificationParserTest {
+
+    @Test
+    public void test_getId() {
+        assertEquals("abc", KineticCoreQualificationParser.getId("id=abc"));
+        assertEquals("abc", KineticCoreQualificationParser.getId("kappSlug=services&ID=abc&formSlug=ipad"));
+        assertEquals("abc", KineticCoreQualificationParser.getId("kappSlug=services& id = abc "));
+    }
+
+    @Test
+    public void test_getIdWithoutId() {
+        assertNull(KineticCoreQualificationParser.getId(""));
+        assertNull(KineticCoreQualificationParser.getId("kappSlug=services&values[Id]=abc"));
+        assertNull(KineticCoreQualificationParser.getId("kappSlug=services&id="));
+        assertNull(KineticCoreQualificationParser.getId("kappSlug=services&identifier=abc"));
+    }
+
+    @Test
+    public void test_getIdValueWithAmpersand() {
+        // An & that isn't followed by another parameter is part of the previous value
+        assertEquals("services", KineticCoreQualificationParser.getId("q=values[Name]=\"A & B\"&id=services"));
+        assertNull(KineticCoreQualificationParser.getId("q=values[Name]=\"A &id\""));
+    }
+}
@@ -0,0 +1,57 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import com.kineticdata.bridgehub.adapter.BridgeRequest;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class KineticCoreRecordHelperTest {
+    private static final String SPACE_URL = "http://localhost/kinetic/acme";
+
+    @Test
+    public void test_retrieveProbesForASecondMatch() throws Exception {
+        FakeHttpClient client = new FakeHttpClient() {
+            @Override
+            HttpResponse respond(HttpRequest request) {
+                return response(200, "{\"messages\":[],\"nextPageToken\":null,\"records\":"
+                    + "[{\"id\":\"1\",\"handle\":\"A1\"},{\"id\":\"2\",\"handle\":\"B2\"}]}");
+            }
+        };
+        KineticCoreRecordHelper helper = helper(client);
+
+        // Neither the pageSize metadata nor the limit of the query can hide the second match
+        BridgeRequest request = request("datastoreSlug=people&q=values[Status]=\"Open\"&limit=1");
+        request.getMetadata().put("pageSize", "1");
+        try {
+            helper.retrieve(request);
+            throw new AssertionError("The retrieve should have matched two records");
+        } catch (BridgeError e) {
+            assertEquals("Multiple results matched an expected single match query", e.getMessage());
+        }
+        assertEquals(1, client.requests.size());
+        String uri = client.getUris().get(0);
+        assertTrue(uri, uri.contains("limit=2"));
+        assertTrue(uri, !uri.contains("limit=1"));
+    }
+
+    static KineticCoreRecordHelper helper(FakeHttpClient client) {
+        return new KineticCoreRecordHelper("user", "password", SPACE_URL, client, null, null,
+            new KineticCoreExternalSorter(), null, null);
+    }
+
+    static BridgeRequest request(String query) {
+        BridgeRequest request = new BridgeRequest();
+        request.setStructure("Records");
+        request.setFields(Arrays.asList("handle"));
+        request.setQuery(query);
+        Map<String,String> metadata = new LinkedHashMap<String,String>();
+        request.setMetadata(metadata);
+        return request;
+    }
+}
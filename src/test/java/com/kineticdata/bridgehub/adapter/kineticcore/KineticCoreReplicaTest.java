@@ -0,0 +1,206 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class KineticCoreReplicaTest {
+    private static final String URL = "http://localhost/kinetic/acme/app/api/v1/users?include=details";
+
+    @Test
+    public void test_deltaSyncAdvancesTheWatermark() throws Exception {
+        FakeCore core = new FakeCore();
+        core.put("alice", "Alice", "2017-01-01T00:00:00.000Z");
+        core.put("bob", "Bob", "2017-01-02T00:00:00.000Z");
+        KineticCoreReplica replica = replica(core, 3600);
+
+        assertEquals(Arrays.asList("Alice", "Bob"), names(replica.get()));
+        // The timestamps are compared as instants, not as strings
+        core.put("alice", "Alice Smith", "2017-01-03T01:00:00.000+02:00");
+        replica.sync();
+        assertEquals("2017-01-02T00:00:00.000Z", core.getDeltaWatermark(1));
+        assertEquals(Arrays.asList("Alice Smith", "Bob"), names(replica.get()));
+
+        // Later than Alice's update, although it sorts before it as a string
+        core.put("carol", "Carol", "2017-01-02T23:30:00Z");
+        replica.sync();
+        assertEquals("2017-01-03T01:00:00.000+02:00", core.getDeltaWatermark(2));
+        assertEquals(Arrays.asList("Alice Smith", "Bob", "Carol"), names(replica.get()));
+        replica.sync();
+        assertEquals("2017-01-02T23:30:00Z", core.getDeltaWatermark(3));
+    }
+
+    @Test
+    public void test_unchangedDeltaKeepsTheSnapshot() throws Exception {
+        FakeCore core = new FakeCore();
+        core.put("alice", "Alice", "2017-01-01T00:00:00.000Z");
+        core.put("bob", "Bob", "2017-01-02T00:00:00.000Z");
+        KineticCoreReplica replica = replica(core, 3600);
+        JSONArray snapshot = replica.get();
+
+        // The newest item is always in the delta, but it is the same as the replicated one
+        replica.sync();
+        replica.sync();
+        assertSame(snapshot, replica.get());
+        assertEquals(3, core.requests.size());
+        // The delta responses aren't remembered, so they aren't conditional requests
+        assertNull(core.requests.get(2).getFirstHeader("If-None-Match"));
+    }
+
+    @Test
+    public void test_reconcileReloadsEverything() throws Exception {
+        FakeCore core = new FakeCore();
+        core.put("alice", "Alice", "2017-01-01T00:00:00.000Z");
+        core.put("bob", "Bob", "2017-01-02T00:00:00.000Z");
+        KineticCoreReplica delta = replica(core, 3600);
+        KineticCoreReplica reconciled = replica(core, 0);
+        delta.get();
+        reconciled.get();
+
+        // A deleted item isn't seen by a delta query, only by the reconcile
+        core.users.remove("alice");
+        delta.sync();
+        reconciled.sync();
+        assertEquals(Arrays.asList("Alice", "Bob"), names(delta.get()));
+        assertEquals(Arrays.asList("Bob"), names(reconciled.get()));
+        assertEquals(URL, core.getUris().get(3));
+    }
+
+    @Test
+    public void test_failedDeltaReloads() throws Exception {
+        FakeCore core = new FakeCore();
+        core.put("alice", "Alice", "2017-01-01T00:00:00.000Z");
+        core.put("bob", "Bob", "2017-01-02T00:00:00.000Z");
+        KineticCoreReplica replica = replica(core, 3600);
+        replica.get();
+
+        core.users.remove("alice");
+        core.failDeltas = true;
+        replica.sync();
+        assertEquals(3, core.requests.size());
+        assertEquals(URL, core.getUris().get(2));
+        assertEquals(Arrays.asList("Bob"), names(replica.get()));
+    }
+
+    @Test
+    public void test_unchangedReloadKeepsTheSnapshot() throws Exception {
+        FakeCore core = new FakeCore();
+        core.put("alice", "Alice", "2017-01-01T00:00:00.000Z");
+        KineticCoreReplica replica = replica(core, 0);
+        JSONArray snapshot = replica.get();
+
+        // The fetcher returns the list it loaded before, so the replica isn't rebuilt
+        replica.sync();
+        assertEquals(2, core.requests.size());
+        assertSame(snapshot, replica.get());
+    }
+
+    @Test
+    public void test_reloadAfterDeltaRebuilds() throws Exception {
+        FakeCore core = new FakeCore();
+        core.put("alice", "Alice", "2017-01-01T00:00:00.000Z");
+        KineticCoreReplica replica = replica(core, 3600);
+        replica.get();
+
+        // A delta that the full list doesn't agree with (ie. the list was answered from a cache)
+        core.delta = user("alice", "Alice Smith", "2017-01-02T00:00:00.000Z");
+        replica.sync();
+        assertEquals(Arrays.asList("Alice Smith"), names(replica.get()));
+
+        // The full list is unchanged, but the replica was changed since it was loaded
+        core.failDeltas = true;
+        replica.sync();
+        assertEquals(Arrays.asList("Alice"), names(replica.get()));
+    }
+
+    private static KineticCoreReplica replica(FakeCore core, long reconcileIntervalSeconds) {
+        return new KineticCoreReplica("users", "username", URL, new KineticCoreHttpFetcher(core, "user", "password"),
+            null, 60, reconcileIntervalSeconds);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JSONObject user(String username, String displayName, String updatedAt) {
+        JSONObject user = new JSONObject();
+        user.put("username", username);
+        user.put("displayName", displayName);
+        user.put("updatedAt", updatedAt);
+        return user;
+    }
+
+    private static List<Object> names(JSONArray users) {
+        List<Object> names = new ArrayList<Object>();
+        for (Object user : users) names.add(((JSONObject)user).get("displayName"));
+        return names;
+    }
+
+    // Answers the users list, and the delta queries with the users updated at or after the watermark
+    private static class FakeCore extends FakeHttpClient {
+        private static final Pattern WATERMARK = Pattern.compile("updatedAt>=\"([^\"]+)\"");
+        private final Map<String,JSONObject> users = new LinkedHashMap<String,JSONObject>();
+        private volatile boolean failDeltas;
+        private volatile JSONObject delta;
+
+        private void put(String username, String displayName, String updatedAt) {
+            users.put(username, user(username, displayName, updatedAt));
+        }
+
+        // Returns the watermark of the delta query that was the nth request
+        private String getDeltaWatermark(int index) throws UnsupportedEncodingException {
+            Matcher matcher = WATERMARK.matcher(URLDecoder.decode(getUris().get(index), "UTF-8"));
+            assertTrue(matcher.find());
+            return matcher.group(1);
+        }
+
+        private static long instant(String timestamp) {
+            try {
+                return KineticCoreTimelinePartitioner.parseTimestamp(timestamp);
+            } catch (BridgeError e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        synchronized HttpResponse respond(HttpRequest request) {
+            String uri = request.getRequestLine().getUri();
+            Matcher matcher;
+            try {
+                matcher = WATERMARK.matcher(URLDecoder.decode(uri, "UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+            JSONArray list = new JSONArray();
+            if (matcher.find()) {
+                if (failDeltas) return response(500, "{\"error\":\"Internal Server Error\"}");
+                long watermark = instant(matcher.group(1));
+                for (JSONObject user : users.values()) {
+                    if (instant((String)user.get("updatedAt")) >= watermark) {
+                        list.add(user);
+                    }
+                }
+                if (delta != null) list.add(delta);
+            } else {
+                list.addAll(users.values());
+            }
+            JSONObject json = new JSONObject();
+            json.put("users", list);
+            return response(200, json.toJSONString(), "ETag", "\"" + json.toJSONString().hashCode() + "\"");
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import com.kineticdata.bridgehub.adapter.BridgeRequest;
+import com.kineticdata.bridgehub.adapter.Record;
+import com.kineticdata.bridgehub.adapter.RecordList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONValue;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class KineticCoreResultCacheTest {
+
+    @Test
+    public void test_normalizedKey() throws Exception {
+        BridgeRequest request1 = request("Kapps", "name=IT&include=details,attributes");
+        BridgeRequest request2 = request("Kapps", "include=attributes,details&name=IT");
+        assertEquals(KineticCoreResultCache.key("search", request1), KineticCoreResultCache.key("search", request2));
+        assertTrue(!KineticCoreResultCache.key("search", request1).equals(KineticCoreResultCache.key("count", request1)));
+
+        // Different metadata (ie. the page token) is a different result
+        request2.getMetadata().put("pageToken", "abc");
+        assertTrue(!KineticCoreResultCache.key("search", request1).equals(KineticCoreResultCache.key("search", request2)));
+    }
+
+    @Test
+    public void test_parseTtls() throws Exception {
+        Map<String,Long> ttls = KineticCoreResultCache.parseTtls("Kapps=300, Forms=0,,Teams");
+        assertEquals(Long.valueOf(300), ttls.get("Kapps"));
+        assertEquals(Long.valueOf(0), ttls.get("Forms"));
+        assertEquals(Long.valueOf(0), ttls.get("Teams"));
+        assertTrue(KineticCoreResultCache.parseTtls(null).isEmpty());
+    }
+
+    @Test(expected = BridgeError.class)
+    public void test_parseTtlsInvalid() throws Exception {
+        KineticCoreResultCache.parseTtls("Kapps=five");
+    }
+
+    @Test
+    public void test_cachesStructuresWithTtl() throws Exception {
+        KineticCoreResultCache cache = new KineticCoreResultCache(
+            KineticCoreResultCache.parseTtls("Kapps=300,Forms=0"), 0, KineticCoreResultCache.DEFAULT_MAXIMUM_SIZE, null);
+        CountingLoader loader = new CountingLoader("value");
+
+        cache.get("search", request("Kapps", "name=IT"), loader);
+        assertEquals("value", cache.get("search", request("Kapps", "name=IT"), loader));
+        assertEquals(1, loader.loads);
+
+        // Structures without a time to live are always loaded
+        cache.get("search", request("Forms", "name=IT"), loader);
+        cache.get("search", request("Forms", "name=IT"), loader);
+        cache.get("search", request("Submissions", "name=IT"), loader);
+        assertEquals(4, loader.loads);
+
+        cache.clear();
+        cache.get("search", request("Kapps", "name=IT"), loader);
+        assertEquals(5, loader.loads);
+    }
+
+    @Test
+    public void test_largeResultsAdmittedWhenRepeated() throws Exception {
+        // Results over 1% of the cache (100 bytes) have to be requested twice to be cached
+        KineticCoreResultCache cache = new KineticCoreResultCache(
+            KineticCoreResultCache.parseTtls("Kapps=300"), 0, 10000, null);
+        char[] large = new char[200];
+        Arrays.fill(large, 'x');
+        CountingLoader loader = new CountingLoader(new String(large));
+
+        cache.get("search", request("Kapps", ""), loader);
+        cache.get("search", request("Kapps", ""), loader);
+        cache.get("search", request("Kapps", ""), loader);
+        assertEquals(2, loader.loads);
+    }
+
+    @Test
+    public void test_staleResultServedWhileRefreshing() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            KineticCoreResultCache cache = new KineticCoreResultCache(
+                KineticCoreResultCache.parseTtls("Kapps=1"), 60, KineticCoreResultCache.DEFAULT_MAXIMUM_SIZE, executor);
+            CountingLoader loader = new CountingLoader("value");
+            cache.get("search", request("Kapps", ""), loader);
+            Thread.sleep(1100);
+
+            // The expired result is returned right away and loaded again in the background
+            assertEquals("value", cache.get("search", request("Kapps", ""), loader));
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+            assertEquals(2, loader.loads);
+            cache.get("search", request("Kapps", ""), loader);
+            assertEquals(2, loader.loads);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void test_requestsGetCopies() throws Exception {
+        KineticCoreResultCache cache = new KineticCoreResultCache(
+            KineticCoreResultCache.parseTtls("Kapps=300"), 0, KineticCoreResultCache.DEFAULT_MAXIMUM_SIZE, null);
+        KineticCoreResultCache.Loader<RecordList> loader = new KineticCoreResultCache.Loader<RecordList>() {
+            @Override
+            public RecordList load() {
+                Map<String,Object> values = new LinkedHashMap<String,Object>();
+                values.put("name", "IT");
+                values.put("attributes", JSONValue.parse("[{\"name\":\"Icon\",\"values\":[\"fa-gear\"]}]"));
+                List<Record> records = new ArrayList<Record>();
+                records.add(new Record(values));
+                Map<String,String> metadata = new LinkedHashMap<String,String>();
+                metadata.put("size", "1");
+                return new RecordList(Arrays.asList("name", "attributes"), records, metadata);
+            }
+        };
+
+        // Changing the loaded result, or a cached result, doesn't change the cached result
+        RecordList loaded = cache.get("search", request("Kapps", ""), loader);
+        loaded.getRecords().get(0).getRecord().put("name", "Changed");
+        RecordList cached = cache.get("search", request("Kapps", ""), loader);
+        cached.getMetadata().put("size", "2");
+        ((JSONArray)cached.getRecords().get(0).getValue("attributes")).clear();
+        cached.getRecords().clear();
+
+        RecordList result = cache.get("search", request("Kapps", ""), loader);
+        assertEquals("IT", result.getRecords().get(0).getValue("name"));
+        assertEquals("1", result.getMetadata().get("size"));
+        assertEquals(1, ((JSONArray)result.getRecords().get(0).getValue("attributes")).size());
+    }
+
+    @Test
+    public void test_resultLargerThanAQuarterIsKept() throws Exception {
+        KineticCoreResultCache cache = new KineticCoreResultCache(
+            KineticCoreResultCache.parseTtls("Kapps=300"), 0, 10000, null);
+        char[] large = new char[2000];
+        Arrays.fill(large, 'x');
+        CountingLoader loader = new CountingLoader(new String(large));
+
+        // About 4KB, which is admitted once it is requested again
+        for (int i = 0; i < 4; i++) cache.get("search", request("Kapps", ""), loader);
+        assertEquals(2, loader.loads);
+    }
+
+    @Test
+    public void test_frequencySketch() {
+        KineticCoreResultCache.FrequencySketch sketch = new KineticCoreResultCache.FrequencySketch(16);
+        assertEquals(1, sketch.increment("a"));
+        assertEquals(2, sketch.increment("a"));
+        // The counts are halved after 160 additions, so keys that aren't requested fade out
+        for (int i = 0; i < 158; i++) sketch.increment("b");
+        assertEquals(2, sketch.increment("a"));
+    }
+
+    private static BridgeRequest request(String structure, String query) {
+        BridgeRequest request = new BridgeRequest();
+        request.setStructure(structure);
+        request.setFields(Arrays.asList("name", "slug"));
+        request.setQuery(query);
+        Map<String,String> metadata = new LinkedHashMap<String,String>();
+        metadata.put("order", "<%=field[\"name\"]%>:ASC");
+        request.setMetadata(metadata);
+        return request;
+    }
+
+    private static class CountingLoader implements KineticCoreResultCache.Loader<String> {
+        private final String value;
+        private volatile int loads;
+
+        private CountingLoader(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public String load() {
+            loads++;
+            return value;
+        }
+    }
+}
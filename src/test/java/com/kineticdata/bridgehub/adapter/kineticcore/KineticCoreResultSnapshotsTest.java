@@ -0,0 +1,172 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import com.kineticdata.bridgehub.adapter.BridgeRequest;
+import com.kineticdata.bridgehub.adapter.Record;
+import com.kineticdata.bridgehub.adapter.RecordList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.codec.binary.Base64;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class KineticCoreResultSnapshotsTest {
+
+    @Test
+    public void test_pageTokenReusesResults() throws Exception {
+        CountingLoader loader = new CountingLoader(10);
+        KineticCoreResultSnapshots snapshots = new KineticCoreResultSnapshots();
+        BridgeRequest request = request("4");
+
+        List<Object> names = pageThrough(snapshots, request, loader);
+
+        // Every page is sliced out of the results of the first search
+        assertEquals(1, loader.loads);
+        assertEquals(10, names.size());
+        assertEquals("User 0", names.get(0));
+        assertEquals("User 9", names.get(9));
+
+        // Integer offset tokens search again
+        request.getMetadata().put("pageToken", Base64.encodeBase64String("8".getBytes()));
+        assertEquals(2, snapshots.search(request, loader).getRecords().size());
+        assertEquals(2, loader.loads);
+    }
+
+    @Test
+    public void test_singlePageIsNotKept() throws Exception {
+        CountingLoader loader = new CountingLoader(3);
+        KineticCoreResultSnapshots snapshots = new KineticCoreResultSnapshots();
+
+        RecordList page = snapshots.search(request("5"), loader);
+        assertEquals(3, page.getRecords().size());
+        assertNull(page.getMetadata().get("pageToken"));
+    }
+
+    @Test
+    public void test_tokenOfAnotherQuerySearchesAgain() throws Exception {
+        CountingLoader loader = new CountingLoader(10);
+        KineticCoreResultSnapshots snapshots = new KineticCoreResultSnapshots();
+        String pageToken = snapshots.search(request("4"), loader).getMetadata().get("pageToken");
+
+        // The snapshot was taken for a different query, so it isn't used
+        BridgeRequest other = request("4");
+        other.setQuery("name=User%");
+        other.getMetadata().put("pageToken", pageToken);
+        RecordList page = snapshots.search(other, loader);
+        assertEquals(2, loader.loads);
+        assertEquals("User 4", page.getRecords().get(0).getValue("name"));
+    }
+
+    @Test
+    public void test_evictedSnapshotSearchesAgain() throws Exception {
+        CountingLoader loader = new CountingLoader(10);
+        // The snapshots can't hold the results, so the following pages search again
+        KineticCoreResultSnapshots snapshots = new KineticCoreResultSnapshots(new KineticCoreExternalSorter(), 300, 5);
+
+        List<Object> names = pageThrough(snapshots, request("4"), loader);
+        assertEquals(3, loader.loads);
+        assertEquals(10, names.size());
+        assertEquals("User 4", names.get(4));
+    }
+
+    @Test
+    public void test_largeSnapshotsAreKept() throws Exception {
+        // Each snapshot holds more than a quarter of the default maximum, both fit within it
+        CountingLoader loader = new CountingLoader(40000);
+        CountingLoader otherLoader = new CountingLoader(40000);
+        KineticCoreResultSnapshots snapshots = new KineticCoreResultSnapshots();
+        BridgeRequest request = request("1000");
+        BridgeRequest otherRequest = request("1000");
+        otherRequest.setQuery("name=User%");
+
+        String pageToken = snapshots.search(request, loader).getMetadata().get("pageToken");
+        List<Object> otherNames = pageThrough(snapshots, otherRequest, otherLoader);
+        request.getMetadata().put("pageToken", pageToken);
+        List<Object> names = pageThrough(snapshots, request, loader);
+
+        assertEquals(1, loader.loads);
+        assertEquals(1, otherLoader.loads);
+        assertEquals(40000, new HashSet<Object>(otherNames).size());
+        for (int i = 1; i < otherNames.size(); i++) {
+            assertTrue(otherNames.get(i - 1).toString().compareTo(otherNames.get(i).toString()) < 0);
+        }
+        assertEquals(otherNames.subList(1000, 40000), names);
+    }
+
+    @Test
+    public void test_releasedSnapshotSearchesAgain() throws Exception {
+        CountingLoader loader = new CountingLoader(4000);
+        // The sorter spills the snapshot to temporary files when its second page is requested
+        KineticCoreResultSnapshots snapshots = new KineticCoreResultSnapshots(new KineticCoreExternalSorter(20000), 300, 100000);
+        BridgeRequest request = request("1000");
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < 4000; i++) names.add("User " + i);
+        Collections.sort(names);
+
+        request.getMetadata().put("pageToken", snapshots.search(request, loader).getMetadata().get("pageToken"));
+        RecordList second = snapshots.search(request, loader);
+        assertEquals(names.get(1000), second.getRecords().get(0).getValue("name"));
+
+        // Clearing the snapshots releases their temporary files, so the next page searches again
+        snapshots.clear();
+        request.getMetadata().put("pageToken", second.getMetadata().get("pageToken"));
+        RecordList third = snapshots.search(request, loader);
+        assertEquals(2, loader.loads);
+        assertEquals(names.get(2000), third.getRecords().get(0).getValue("name"));
+    }
+
+    private static List<Object> pageThrough(KineticCoreResultSnapshots snapshots, BridgeRequest request,
+        KineticCoreResultSnapshots.Loader loader) throws Exception {
+        List<Object> names = new ArrayList<Object>();
+        String pageToken = request.getMetadata().get("pageToken");
+        do {
+            request.getMetadata().put("pageToken", pageToken);
+            RecordList page = snapshots.search(request, loader);
+            for (Record record : page.getRecords()) names.add(record.getValue("name"));
+            pageToken = page.getMetadata().get("pageToken");
+        } while (pageToken != null);
+        return names;
+    }
+
+    private static BridgeRequest request(String limit) {
+        BridgeRequest request = new BridgeRequest();
+        request.setStructure("Users");
+        request.setFields(Arrays.asList("name"));
+        request.setQuery("");
+        Map<String,String> metadata = new LinkedHashMap<String,String>();
+        metadata.put("limit", limit);
+        metadata.put("order", "<%=field[\"name\"]%>:ASC");
+        request.setMetadata(metadata);
+        return request;
+    }
+
+    // Returns the users in reverse order and counts how often they were loaded
+    private static class CountingLoader implements KineticCoreResultSnapshots.Loader {
+        private final int size;
+        private int loads;
+
+        private CountingLoader(int size) {
+            this.size = size;
+        }
+
+        @Override
+        public KineticCoreResultSnapshots.Result load() {
+            loads++;
+            List<Record> records = new ArrayList<Record>();
+            for (int i = size - 1; i >= 0; i--) {
+                Map<String,Object> record = new LinkedHashMap<String,Object>();
+                record.put("name", "User " + i);
+                records.add(new Record(record));
+            }
+            Map<String,String> order = new LinkedHashMap<String,String>();
+            order.put("name", "ASC");
+            return new KineticCoreResultSnapshots.Result(records, new KineticCoreSortKeys(order, true));
+        }
+    }
+}
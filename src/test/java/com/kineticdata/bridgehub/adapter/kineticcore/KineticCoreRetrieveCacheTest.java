@@ -0,0 +1,142 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class KineticCoreRetrieveCacheTest {
+    private static final String URL = "http://localhost/kinetic/acme/app/api/v1/submissions/1";
+
+    @Test
+    public void test_notCachedByDefault() throws Exception {
+        FakeCore core = new FakeCore();
+        KineticCoreRetrieveCache cache = new KineticCoreRetrieveCache(new KineticCoreHttpFetcher(core, "user", "password"));
+
+        cache.get(URL, "submission", Arrays.asList("values"));
+        cache.get(URL, "submission", Arrays.asList("values"));
+        assertEquals(2, core.requests.size());
+        core.exists = false;
+        cache.get(URL + "0", "submission", Arrays.asList("values"));
+        cache.get(URL + "0", "submission", Arrays.asList("values"));
+        assertEquals(4, core.requests.size());
+    }
+
+    @Test
+    public void test_cachedWithoutRevalidating() throws Exception {
+        FakeCore core = new FakeCore();
+        KineticCoreRetrieveCache cache = new KineticCoreRetrieveCache(new KineticCoreHttpFetcher(core, "user", "password"),
+            60, 10, KineticCoreRetrieveCache.DEFAULT_MAXIMUM_SIZE, false);
+
+        KineticCoreHttpFetcher.Response response = cache.get(URL, "submission", Arrays.asList("values", "form"));
+        // The same includes in a different order are the same response
+        assertTrue(response == cache.get(URL, "submission", Arrays.asList("form", "values")));
+        assertEquals(Arrays.asList(URL + "?include=form,values"), core.getUris());
+
+        // Different includes are a different response
+        cache.get(URL, "submission", Arrays.asList("values"));
+        assertEquals(2, core.requests.size());
+    }
+
+    @Test
+    public void test_revalidatesUpdatedAt() throws Exception {
+        FakeCore core = new FakeCore();
+        KineticCoreRetrieveCache cache = new KineticCoreRetrieveCache(new KineticCoreHttpFetcher(core, "user", "password"),
+            60, 10, KineticCoreRetrieveCache.DEFAULT_MAXIMUM_SIZE, true);
+
+        KineticCoreHttpFetcher.Response response = cache.get(URL, "submission", Arrays.asList("values"));
+        assertTrue(response == cache.get(URL, "submission", Arrays.asList("values")));
+        assertEquals(Arrays.asList(URL + "?include=details,values", URL + "?include=details"), core.getUris());
+
+        // A changed updatedAt retrieves the submission again
+        core.updatedAt = "2017-01-02T00:00:00.000Z";
+        KineticCoreHttpFetcher.Response updated = cache.get(URL, "submission", Arrays.asList("values"));
+        assertTrue(updated != response);
+        assertTrue(updated.getBody().contains(core.updatedAt));
+        assertEquals(4, core.requests.size());
+    }
+
+    @Test
+    public void test_notFoundIsCached() throws Exception {
+        FakeCore core = new FakeCore();
+        core.exists = false;
+        KineticCoreRetrieveCache cache = new KineticCoreRetrieveCache(new KineticCoreHttpFetcher(core, "user", "password"),
+            60, 10, KineticCoreRetrieveCache.DEFAULT_MAXIMUM_SIZE, false);
+
+        assertEquals(404, cache.get(URL, "submission", Arrays.asList("values")).getStatusCode());
+        // The id wasn't found, whatever is included
+        assertEquals(404, cache.get(URL, "submission", Collections.<String>emptyList()).getStatusCode());
+        assertEquals(404, cache.get(URL, "submission", Arrays.asList("values", "details")).getStatusCode());
+        assertEquals(1, core.requests.size());
+
+        // Other ids are still retrieved
+        assertEquals(404, cache.get(URL + "0", "submission", Arrays.asList("values")).getStatusCode());
+        assertEquals(2, core.requests.size());
+    }
+
+    @Test
+    public void test_notFoundWhileRevalidating() throws Exception {
+        FakeCore core = new FakeCore();
+        KineticCoreRetrieveCache cache = new KineticCoreRetrieveCache(new KineticCoreHttpFetcher(core, "user", "password"),
+            60, 10, KineticCoreRetrieveCache.DEFAULT_MAXIMUM_SIZE, true);
+        cache.get(URL, "submission", Arrays.asList("values"));
+
+        // The submission was deleted, so the check replaces the cached submission
+        core.exists = false;
+        assertEquals(404, cache.get(URL, "submission", Arrays.asList("values")).getStatusCode());
+        assertEquals(404, cache.get(URL, "submission", Arrays.asList("values")).getStatusCode());
+        assertEquals(2, core.requests.size());
+    }
+
+    @Test
+    public void test_zeroTtlsDontCache() throws Exception {
+        FakeCore core = new FakeCore();
+        KineticCoreRetrieveCache cache = new KineticCoreRetrieveCache(new KineticCoreHttpFetcher(core, "user", "password"),
+            0, 0, KineticCoreRetrieveCache.DEFAULT_MAXIMUM_SIZE, false);
+
+        cache.get(URL, "submission", Arrays.asList("values"));
+        cache.get(URL, "submission", Arrays.asList("values"));
+        core.exists = false;
+        cache.get(URL, "submission", Arrays.asList("values"));
+        cache.get(URL, "submission", Arrays.asList("values"));
+        assertEquals(4, core.requests.size());
+    }
+
+    @Test
+    public void test_sizeBound() throws Exception {
+        FakeCore core = new FakeCore();
+        // A submission weighs about twice its body, 60KB of notes is more than a quarter of the
+        // bound but within it, 120KB of notes is more than the bound
+        KineticCoreRetrieveCache cache = new KineticCoreRetrieveCache(new KineticCoreHttpFetcher(core, "user", "password"),
+            60, 10, 200 * 1024, false);
+
+        core.notes = 60 * 1024;
+        cache.get(URL, "submission", Arrays.asList("values"));
+        cache.get(URL, "submission", Arrays.asList("values"));
+        assertEquals(1, core.requests.size());
+
+        core.notes = 120 * 1024;
+        cache.get(URL + "0", "submission", Arrays.asList("values"));
+        cache.get(URL + "0", "submission", Arrays.asList("values"));
+        assertEquals(3, core.requests.size());
+    }
+
+    // Answers with the submission (or a 404 when it doesn't exist)
+    private static class FakeCore extends FakeHttpClient {
+        private volatile boolean exists = true;
+        private volatile String updatedAt = "2017-01-01T00:00:00.000Z";
+        private volatile int notes = 0;
+
+        @Override
+        HttpResponse respond(HttpRequest request) {
+            if (!exists) return response(404, "{\"error\":\"Not Found\"}");
+            char[] chars = new char[notes];
+            Arrays.fill(chars, 'x');
+            return response(200, "{\"submission\":{\"id\":\"1\",\"updatedAt\":\"" + updatedAt + "\","
+                + "\"values\":{\"Notes\":\"" + new String(chars) + "\"}}}");
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import com.kineticdata.bridgehub.adapter.Record;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class KineticCoreSortKeysTest {
+
+    @Test
+    public void test_typeAware() {
+        List<Record> records = records("value", 10L, "2017-01-02T00:00:00.000Z", 9L, null, "2017-01-01T23:00:00.000-02:00");
+
+        records = new KineticCoreSortKeys(order("value", "ASC"), false).sort(records);
+        // Numbers are compared numerically and timestamps by their instant
+        assertNull(records.get(0).getValue("value"));
+        assertEquals(9L, records.get(1).getValue("value"));
+        assertEquals(10L, records.get(2).getValue("value"));
+        assertEquals("2017-01-02T00:00:00.000Z", records.get(3).getValue("value"));
+        assertEquals("2017-01-01T23:00:00.000-02:00", records.get(4).getValue("value"));
+    }
+
+    @Test
+    public void test_mixedTypesAndCase() {
+        List<Record> records = records("value", "banana", 2.5, "Apple", true, 3L, null);
+
+        records = new KineticCoreSortKeys(order("value", "ASC"), false).sort(records);
+        // Nulls, booleans, numbers and then strings (ignoring case)
+        assertEquals(Arrays.asList(null, true, 2.5, 3L, "Apple", "banana"), values(records, "value"));
+
+        records = new KineticCoreSortKeys(order("value", "DESC"), false).sort(records);
+        assertEquals(Arrays.asList("banana", "Apple", 3L, 2.5, true, null), values(records, "value"));
+    }
+
+    @Test
+    public void test_multipleFields() {
+        List<Record> records = new ArrayList<Record>();
+        for (Object[] values : new Object[][] { {"b", 1L}, {"a", 2L}, {"b", 3L}, {"a", 1L} }) {
+            Map<String,Object> record = new LinkedHashMap<String,Object>();
+            record.put("group", values[0]);
+            record.put("rank", values[1]);
+            records.add(new Record(record));
+        }
+        Map<String,String> order = order("group", "ASC");
+        order.put("rank", "DESC");
+
+        records = new KineticCoreSortKeys(order, false).sort(records);
+        assertEquals(Arrays.asList("a", "a", "b", "b"), values(records, "group"));
+        assertEquals(Arrays.asList(2L, 1L, 3L, 1L), values(records, "rank"));
+    }
+
+    @Test
+    public void test_skipLists() {
+        List<Record> records = records("value", Arrays.asList("z"), "b", Arrays.asList("a"), "a");
+
+        // Lists compare as equal to everything, so a stable sort leaves them in place
+        KineticCoreSortKeys keys = new KineticCoreSortKeys(order("value", "ASC"), true);
+        assertEquals(0, keys.comparator().compare(records.get(0), records.get(1)));
+        assertTrue(new KineticCoreSortKeys(order("value", "ASC"), false).comparator().compare(records.get(2), records.get(0)) < 0);
+    }
+
+    @Test
+    public void test_topMatchesFullSort() {
+        List<Record> records = new ArrayList<Record>();
+        for (int i = 0; i < 50; i++) {
+            Map<String,Object> record = new LinkedHashMap<String,Object>();
+            record.put("group", (long)(i * 7 % 5));
+            record.put("id", i);
+            records.add(new Record(record));
+        }
+        KineticCoreSortKeys keys = new KineticCoreSortKeys(order("group", "DESC"), false);
+
+        List<Record> top = keys.top(records, 12);
+        List<Record> sorted = keys.sort(new ArrayList<Record>(records));
+        // Records in the same group keep their order, like they do in the stable full sort
+        assertEquals(12, top.size());
+        for (int i = 0; i < top.size(); i++) {
+            assertEquals(sorted.get(i).getValue("id"), top.get(i).getValue("id"));
+        }
+    }
+
+    @Test
+    public void test_topBounds() {
+        List<Record> records = records("value", 3L, 1L, 2L);
+        KineticCoreSortKeys keys = new KineticCoreSortKeys(order("value", "ASC"), false);
+
+        assertTrue(keys.top(records, 0).isEmpty());
+        assertEquals(Arrays.asList(1L, 2L, 3L), values(keys.top(records, 10), "value"));
+        assertTrue(keys.top(Collections.<Record>emptyList(), 5).isEmpty());
+    }
+
+    private static List<Record> records(String field, Object... values) {
+        List<Record> records = new ArrayList<Record>();
+        for (Object value : values) {
+            Map<String,Object> record = new LinkedHashMap<String,Object>();
+            record.put(field, value);
+            records.add(new Record(record));
+        }
+        return records;
+    }
+
+    private static List<Object> values(List<Record> records, String field) {
+        List<Object> values = new ArrayList<Object>();
+        for (Record record : records) values.add(record.getValue(field));
+        return values;
+    }
+
+    private static Map<String,String> order(String field, String direction) {
+        Map<String,String> order = new LinkedHashMap<String,String>();
+        order.put(field, direction);
+        return order;
+    }
+}
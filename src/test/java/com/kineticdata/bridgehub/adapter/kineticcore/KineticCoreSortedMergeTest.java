@@ -0,0 +1,91 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class KineticCoreSortedMergeTest {
+
+    private static final Comparator<Integer> NATURAL = new Comparator<Integer>() {
+        @Override
+        public int compare(Integer i1, Integer i2) {
+            return i1.compareTo(i2);
+        }
+    };
+
+    @Test
+    public void test_page() {
+        List<List<Integer>> partitions = new ArrayList<List<Integer>>();
+        partitions.add(Arrays.asList(new Integer[] {1,4,7}));
+        partitions.add(Arrays.asList(new Integer[] {2,5,8}));
+        partitions.add(Arrays.asList(new Integer[] {3,6}));
+
+        assertEquals(Arrays.asList(new Integer[] {1,2,3,4}),KineticCoreSortedMerge.merge(partitions,NATURAL,0,4));
+        assertEquals(Arrays.asList(new Integer[] {5,6,7,8}),KineticCoreSortedMerge.merge(partitions,NATURAL,4,4));
+        assertEquals(0,KineticCoreSortedMerge.merge(partitions,NATURAL,8,4).size());
+    }
+
+    @Test
+    public void test_emptyLists() {
+        List<List<Integer>> partitions = new ArrayList<List<Integer>>();
+        assertTrue(KineticCoreSortedMerge.merge(partitions,NATURAL,0,10).isEmpty());
+
+        partitions.add(new ArrayList<Integer>());
+        partitions.add(Arrays.asList(new Integer[] {2}));
+        partitions.add(new ArrayList<Integer>());
+        assertEquals(Arrays.asList(new Integer[] {2}),KineticCoreSortedMerge.merge(partitions,NATURAL,0,10));
+    }
+
+    @Test
+    public void test_equalItemsKeepListOrder() {
+        // Compares only the tens, so the units show which list an item came from
+        Comparator<Integer> tens = new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                return NATURAL.compare(i1 / 10, i2 / 10);
+            }
+        };
+        List<List<Integer>> partitions = new ArrayList<List<Integer>>();
+        partitions.add(Arrays.asList(new Integer[] {10,20}));
+        partitions.add(Arrays.asList(new Integer[] {11,21}));
+        partitions.add(Arrays.asList(new Integer[] {12}));
+
+        assertEquals(Arrays.asList(new Integer[] {10,11,12,20,21}),KineticCoreSortedMerge.merge(partitions,tens,0,10));
+    }
+
+    @Test
+    public void test_matchesFullSort() {
+        Random random = new Random(42);
+        List<Integer> all = new ArrayList<Integer>();
+        List<List<Integer>> partitions = new ArrayList<List<Integer>>();
+        for (int i = 0; i < 7; i++) {
+            List<Integer> partition = new ArrayList<Integer>();
+            for (int j = random.nextInt(50); j > 0; j--) partition.add(random.nextInt(100));
+            Collections.sort(partition);
+            partitions.add(partition);
+            all.addAll(partition);
+        }
+        Collections.sort(all);
+
+        assertEquals(all,KineticCoreSortedMerge.merge(partitions,NATURAL,0,all.size()));
+        assertEquals(all.subList(25,35),KineticCoreSortedMerge.merge(partitions,NATURAL,25,10));
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void test_iteratorExhausted() {
+        List<Iterator<Integer>> iterators = new ArrayList<Iterator<Integer>>();
+        iterators.add(Arrays.asList(new Integer[] {1}).iterator());
+        Iterator<Integer> merged = KineticCoreSortedMerge.iterator(iterators,NATURAL);
+
+        assertEquals(Integer.valueOf(1),merged.next());
+        merged.next();
+    }
+}
@@ -0,0 +1,270 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import com.kineticdata.bridgehub.adapter.BridgeRequest;
+import com.kineticdata.bridgehub.adapter.Record;
+import com.kineticdata.bridgehub.adapter.RecordList;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class KineticCoreSubmissionHelperTest {
+    private static final String SPACE_URL = "http://localhost/kinetic/acme";
+
+    @Test
+    public void test_retrieveProbesForASecondMatch() throws Exception {
+        FakeHttpClient client = new FakeHttpClient() {
+            @Override
+            HttpResponse respond(HttpRequest request) {
+                return response(200, "{\"messages\":[],\"nextPageToken\":null,\"submissions\":"
+                    + "[{\"id\":\"1\",\"handle\":\"A1\"},{\"id\":\"2\",\"handle\":\"B2\"}]}");
+            }
+        };
+        KineticCoreSubmissionHelper helper = helper(client);
+
+        // Neither the pageSize metadata nor the limit of the query can hide the second match
+        BridgeRequest request = request("kappSlug=services&formSlug=ipad-request&q=values[Status]=\"Open\"&limit=1");
+        request.getMetadata().put("pageSize", "1");
+        try {
+            helper.retrieve(request);
+            throw new AssertionError("The retrieve should have matched two submissions");
+        } catch (BridgeError e) {
+            assertEquals("Multiple results matched an expected single match query", e.getMessage());
+        }
+        assertEquals(1, client.requests.size());
+        String uri = client.getUris().get(0);
+        assertTrue(uri, uri.contains("limit=2"));
+        assertTrue(uri, !uri.contains("limit=1"));
+    }
+
+    @Test
+    public void test_partitionedSearchPagesFromASnapshot() throws Exception {
+        // 2500 submissions that were created a second apart, with handles in a different order
+        final List<JSONObject> submissions = new ArrayList<JSONObject>();
+        List<String> handles = new ArrayList<String>();
+        for (int i = 0; i < 2500; i++) {
+            JSONObject submission = new JSONObject();
+            submission.put("handle", String.format("H%04d", (i * 7919) % 2500));
+            submission.put("createdAt", KineticCoreTimelinePartitioner.formatTimestamp(1500000000000L + i * 1000L));
+            submissions.add(submission);
+            handles.add((String)submission.get("handle"));
+        }
+        Collections.sort(handles);
+        final AtomicInteger retrieved = new AtomicInteger();
+        FakeHttpClient client = new FakeHttpClient() {
+            @Override
+            HttpResponse respond(HttpRequest request) {
+                return response(200, timelinePage(submissions, request.getRequestLine().getUri(), retrieved));
+            }
+        };
+        KineticCoreSubmissionHelper helper = helper(client);
+
+        BridgeRequest request = request("kappSlug=services&formSlug=ipad-request");
+        request.getMetadata().put("searchStrategy", "partitioned");
+        request.getMetadata().put("partitions", "1");
+        request.getMetadata().put("order", "<%=field[\"handle\"]%>:ASC");
+        request.getMetadata().put("pageSize", "1000");
+
+        List<String> names = new ArrayList<String>();
+        String pageToken = null;
+        int firstPageRequests = 0;
+        do {
+            request.getMetadata().put("pageToken", pageToken);
+            RecordList page = helper.search(request);
+            for (Record record : page.getRecords()) names.add((String)record.getValue("handle"));
+            pageToken = page.getMetadata().get("nextPageToken");
+            if (firstPageRequests == 0) firstPageRequests = client.requests.size();
+        } while (pageToken != null);
+
+        assertEquals(handles, names);
+        // The following pages are sliced out of the snapshot of the first page
+        assertEquals(firstPageRequests, client.requests.size());
+        // The first page of the overfull partition is kept when it is split, so besides the bounds
+        // only the oldest submission of that page (which can share its time) is retrieved again
+        assertEquals(2500 + 2 + 1, retrieved.get());
+    }
+
+    @Test
+    public void test_searchAtAnOffsetStartsAtTheCountedToken() throws Exception {
+        final List<JSONObject> submissions = new ArrayList<JSONObject>();
+        for (int i = 0; i < 2500; i++) {
+            JSONObject submission = new JSONObject();
+            submission.put("handle", "H" + i);
+            submission.put("createdAt", KineticCoreTimelinePartitioner.formatTimestamp(1500000000000L + i * 1000L));
+            submissions.add(submission);
+        }
+        FakeHttpClient client = new FakeHttpClient() {
+            @Override
+            HttpResponse respond(HttpRequest request) {
+                return response(200, timelinePage(submissions, request.getRequestLine().getUri(), new AtomicInteger()));
+            }
+        };
+        KineticCoreSubmissionHelper helper = helper(client);
+        String query = "kappSlug=services&formSlug=ipad-request&q=values[Status]=\"Open\" AND values[Type]=\"Laptop\"";
+
+        assertEquals(Integer.valueOf(2500), helper.count(request(query)).getValue());
+        assertEquals(3, client.requests.size());
+
+        // The count recorded the token of the third page of 1000, so the search starts there
+        BridgeRequest request = request(query);
+        request.getMetadata().put("pageSize", "1000");
+        request.getMetadata().put("offset", "2000");
+        RecordList page = helper.search(request);
+        assertEquals(500, page.getRecords().size());
+        assertEquals(4, client.requests.size());
+        String uri = client.getUris().get(3);
+        assertTrue(uri, uri.contains("pageToken=2000"));
+
+        // Past the counted total nothing has to be retrieved
+        request.getMetadata().put("offset", "3000");
+        assertEquals(0, helper.search(request).getRecords().size());
+        assertEquals(4, client.requests.size());
+
+        // Another page size walks (and records) the pages before the offset once
+        request.getMetadata().put("pageSize", "500");
+        request.getMetadata().put("offset", "1000");
+        assertEquals("H1499", helper.search(request).getRecords().get(0).getValue("handle"));
+        assertEquals(7, client.requests.size());
+        request.getMetadata().put("offset", "1500");
+        assertEquals("H999", helper.search(request).getRecords().get(0).getValue("handle"));
+        assertEquals(8, client.requests.size());
+    }
+
+    @Test
+    public void test_searchAtAnOffsetWithinAPage() throws Exception {
+        final List<JSONObject> submissions = new ArrayList<JSONObject>();
+        for (int i = 0; i < 2500; i++) {
+            JSONObject submission = new JSONObject();
+            submission.put("handle", "H" + i);
+            submission.put("createdAt", KineticCoreTimelinePartitioner.formatTimestamp(1500000000000L + i * 1000L));
+            submissions.add(submission);
+        }
+        FakeHttpClient client = new FakeHttpClient() {
+            @Override
+            HttpResponse respond(HttpRequest request) {
+                return response(200, timelinePage(submissions, request.getRequestLine().getUri(), new AtomicInteger()));
+            }
+        };
+        KineticCoreSubmissionHelper helper = helper(client);
+
+        // An offset that isn't the start of a page is searched as if there wasn't an offset
+        for (String offset : Arrays.asList("1500", "first")) {
+            BridgeRequest request = request("kappSlug=services&formSlug=ipad-request");
+            request.getMetadata().put("pageSize", "1000");
+            request.getMetadata().put("offset", offset);
+            RecordList page = helper.search(request);
+            assertEquals(1000, page.getRecords().size());
+            assertEquals("H2499", page.getRecords().get(0).getValue("handle"));
+        }
+        assertEquals(2, client.requests.size());
+        for (String uri : client.getUris()) assertTrue(uri, !uri.contains("pageToken"));
+    }
+
+    @Test
+    public void test_partitionedCountEqualsSerialCount() throws Exception {
+        // Submissions a second apart, with a burst of more than a page within the same second
+        // (which can't be split) and submissions that share their createdAt
+        final List<JSONObject> submissions = new ArrayList<JSONObject>();
+        for (int i = 0; i < 2500; i++) {
+            long createdAt = 1500000000000L + i * 1000L;
+            int copies = i == 1200 ? 1500 : i % 100 == 0 ? 3 : 1;
+            for (int j = 0; j < copies; j++) {
+                JSONObject submission = new JSONObject();
+                submission.put("handle", "H" + i + "-" + j);
+                submission.put("createdAt", KineticCoreTimelinePartitioner.formatTimestamp(createdAt + (i == 1200 ? j / 2 : 0)));
+                submissions.add(submission);
+            }
+        }
+        FakeHttpClient client = new FakeHttpClient() {
+            @Override
+            HttpResponse respond(HttpRequest request) {
+                return response(200, timelinePage(submissions, request.getRequestLine().getUri(), new AtomicInteger()));
+            }
+        };
+        String query = "kappSlug=services&formSlug=ipad-request";
+        Integer serial = helper(client).count(request(query)).getValue();
+        assertEquals(Integer.valueOf(submissions.size()), serial);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (ExecutorService partitionExecutor : Arrays.asList(null, executor)) {
+                KineticCoreSubmissionHelper helper = new KineticCoreSubmissionHelper("user", "password", SPACE_URL, client,
+                    null, partitionExecutor, new KineticCoreExternalSorter(), null, null, null);
+                BridgeRequest request = request(query);
+                request.getMetadata().put("countStrategy", "partitioned");
+                request.getMetadata().put("partitions", "2");
+                assertEquals(serial, helper.count(request).getValue());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Returns the page of the submissions on the timeline (createdAt) between the start and end
+    // parameters of the uri, in the direction of the uri, with the offset as the page token. The
+    // submissions that are returned are counted.
+    private static String timelinePage(List<JSONObject> submissions, String uri, AtomicInteger retrieved) {
+        Map<String,String> parameters = new HashMap<String,String>();
+        for (String parameter : uri.substring(uri.indexOf('?') + 1).split("&")) {
+            String[] pair = parameter.split("=", 2);
+            try {
+                parameters.put(pair[0], URLDecoder.decode(pair[1], "UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        try {
+            long start = parameters.containsKey("start") ? KineticCoreTimelinePartitioner.parseTimestamp(parameters.get("start")) : Long.MIN_VALUE;
+            long end = parameters.containsKey("end") ? KineticCoreTimelinePartitioner.parseTimestamp(parameters.get("end")) : Long.MAX_VALUE;
+            JSONArray matches = new JSONArray();
+            for (JSONObject submission : submissions) {
+                long createdAt = KineticCoreTimelinePartitioner.parseTimestamp((String)submission.get("createdAt"));
+                if (createdAt >= start && createdAt < end) matches.add(submission);
+            }
+            if (!"ASC".equals(parameters.get("direction"))) Collections.reverse(matches);
+
+            int offset = parameters.containsKey("pageToken") ? Integer.parseInt(parameters.get("pageToken")) : 0;
+            int limit = Integer.parseInt(parameters.get("limit"));
+            List<Object> pageSubmissions = matches.subList(Math.min(offset, matches.size()), Math.min(offset + limit, matches.size()));
+            retrieved.addAndGet(pageSubmissions.size());
+            JSONObject page = new JSONObject();
+            page.put("messages", new JSONArray());
+            page.put("submissions", new ArrayList<Object>(pageSubmissions));
+            page.put("nextPageToken", offset + limit < matches.size() ? String.valueOf(offset + limit) : null);
+            return page.toJSONString();
+        } catch (BridgeError e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static KineticCoreSubmissionHelper helper(FakeHttpClient client) {
+        return new KineticCoreSubmissionHelper("user", "password", SPACE_URL, client, null, null,
+            new KineticCoreExternalSorter(), null, null, null);
+    }
+
+    static BridgeRequest request(String query) {
+        BridgeRequest request = new BridgeRequest();
+        request.setStructure("Submissions");
+        request.setFields(Arrays.asList("handle"));
+        request.setQuery(query);
+        Map<String,String> metadata = new LinkedHashMap<String,String>();
+        request.setMetadata(metadata);
+        return request;
+    }
+}
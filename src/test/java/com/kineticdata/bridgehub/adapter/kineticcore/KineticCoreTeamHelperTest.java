@@ -0,0 +1,49 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONValue;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class KineticCoreTeamHelperTest {
+
+    @Test
+    public void test_exactName() {
+        assertEquals("Department::IT", KineticCoreTeamHelper.getExactName("name=Department::IT"));
+        assertEquals("Human Resources", KineticCoreTeamHelper.getExactName(" name = Human Resources "));
+    }
+
+    @Test
+    public void test_notAnExactName() {
+        assertNull(KineticCoreTeamHelper.getExactName(null));
+        assertNull(KineticCoreTeamHelper.getExactName("name=Department::%"));
+        assertNull(KineticCoreTeamHelper.getExactName("name=Department::IT&parent=Department"));
+        assertNull(KineticCoreTeamHelper.getExactName("slug=abc"));
+        assertNull(KineticCoreTeamHelper.getExactName("name="));
+        assertNull(KineticCoreTeamHelper.getExactName("name"));
+        assertNull(KineticCoreTeamHelper.getExactName("name=a=b"));
+        // These values match null and booleans, not the literal text
+        assertNull(KineticCoreTeamHelper.getExactName("name=null"));
+        assertNull(KineticCoreTeamHelper.getExactName("name=true"));
+    }
+
+    @Test
+    public void test_teamIndexOfEachList() {
+        KineticCoreTeamHelper helper = new KineticCoreTeamHelper("user", "password", "http://localhost/kinetic/acme");
+        String json = "[{\"name\":\"Department\"},{\"name\":\"Department::IT\"}]";
+        // Lists with the same teams (ie. retrieved with different includes) are different lists
+        JSONArray teams = (JSONArray)JSONValue.parse(json);
+        JSONArray otherTeams = (JSONArray)JSONValue.parse(json);
+
+        KineticCoreTeamIndex index = helper.getTeamIndex(teams);
+        KineticCoreTeamIndex otherIndex = helper.getTeamIndex(otherTeams);
+        assertTrue(index.isFor(teams));
+        assertTrue(otherIndex.isFor(otherTeams));
+        // Alternating between the lists doesn't rebuild their indexes
+        assertSame(index, helper.getTeamIndex(teams));
+        assertSame(otherIndex, helper.getTeamIndex(otherTeams));
+    }
+}
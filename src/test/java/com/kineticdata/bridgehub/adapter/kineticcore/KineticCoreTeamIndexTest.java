@@ -0,0 +1,50 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONValue;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class KineticCoreTeamIndexTest {
+
+    @Test
+    public void test_hierarchy() {
+        JSONArray teams = (JSONArray)JSONValue.parse("[{\"name\":\"IT\"},{\"name\":\"IT::Support\"},"
+            + "{\"name\":\"IT::Support::Tier 1\"},{\"name\":\"ITS\"},{\"name\":\"HR\"}]");
+        KineticCoreTeamIndex index = new KineticCoreTeamIndex(teams);
+
+        assertEquals("{0, 1, 2}", index.subtree("it").toString());
+        assertEquals("{1}", index.children("IT").toString());
+        assertEquals("{1, 2}", index.descendants("IT").toString());
+        assertTrue(index.subtree("Finance").isEmpty());
+        assertTrue(index.isFor(teams));
+        assertTrue(!index.isFor((JSONArray)JSONValue.parse("[]")));
+    }
+
+    @Test
+    public void test_missingParentTeam() {
+        // The parent team doesn't have to exist for its children to be found
+        JSONArray teams = (JSONArray)JSONValue.parse("[{\"name\":\"Departments::IT\"},{\"name\":\"Departments::HR\"},"
+            + "{\"slug\":\"no-name\"},{\"name\":\"Departments::IT::Network\"}]");
+        KineticCoreTeamIndex index = new KineticCoreTeamIndex(teams);
+
+        assertEquals("{0, 1, 3}", index.subtree("Departments").toString());
+        assertEquals("{0, 1}", index.children("departments").toString());
+        assertEquals("{3}", index.descendants("Departments::IT").toString());
+        assertTrue(index.children("Departments::IT::Network").isEmpty());
+    }
+
+    @Test
+    public void test_duplicateAndEmptySegments() {
+        JSONArray teams = (JSONArray)JSONValue.parse("[{\"name\":\"IT\"},{\"name\":\"it\"},{\"name\":\"IT::\"},"
+            + "{\"name\":\"IT::::Support\"}]");
+        KineticCoreTeamIndex index = new KineticCoreTeamIndex(teams);
+
+        // Names that only differ in case are the same team, and empty segments are levels of their own
+        assertEquals("{0, 1, 2, 3}", index.subtree("It").toString());
+        assertEquals("{2}", index.children("IT").toString());
+        assertEquals("{3}", index.children("IT::").toString());
+        assertTrue(index.subtree("IT::Support").isEmpty());
+    }
+}
@@ -0,0 +1,202 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class KineticCoreTimelinePartitionerTest {
+    // Holds more events than a page in every range that is longer than a couple of seconds
+    private static final int PAGE_SIZE = 5;
+
+    @Test
+    public void test_overfullRangesAreSplit() throws Exception {
+        List<Long> events = events();
+        for (ExecutorService executor : executors()) {
+            try {
+                List<Range> ranges = new ArrayList<Range>();
+                List<List<Long>> results = new KineticCoreTimelinePartitioner(executor)
+                    .execute(new PagedTask(events, ranges), new KineticCoreTimelinePartitioner.Range(0, 60000), 1);
+
+                // Every event is found once, in timeline order
+                assertEquals(events, flatten(results));
+                assertTrue(results.size() > 1);
+                // Only the burst that can't be split holds more than a page
+                for (Range range : ranges) {
+                    if (range.splittable) continue;
+                    assertTrue(range.end - range.start < 2000 || find(events, range.toRange()).size() <= PAGE_SIZE);
+                }
+            } finally {
+                if (executor != null) executor.shutdownNow();
+            }
+        }
+    }
+
+    @Test
+    public void test_maxPartitionsStopsSplitting() throws Exception {
+        List<Long> events = events();
+        for (ExecutorService executor : executors()) {
+            try {
+                List<Range> ranges = new ArrayList<Range>();
+                List<List<Long>> results = new KineticCoreTimelinePartitioner(executor, 4)
+                    .execute(new PagedTask(events, ranges), new KineticCoreTimelinePartitioner.Range(0, 60000), 1);
+
+                // The bounds are split once, after that the partitions have to be run whole
+                assertEquals(events, flatten(results));
+                assertEquals(4, results.size());
+                assertEquals(1 + 4, ranges.size());
+                for (Range range : ranges.subList(1, ranges.size())) assertTrue(!range.splittable);
+            } finally {
+                if (executor != null) executor.shutdownNow();
+            }
+        }
+    }
+
+    @Test
+    public void test_partialResultsOnlyRunTheRest() throws Exception {
+        final List<Long> events = events();
+        for (ExecutorService executor : executors()) {
+            try {
+                final List<Range> ranges = Collections.synchronizedList(new ArrayList<Range>());
+                // Returns the newest page of a range and has the older part of the range run again
+                KineticCoreTimelinePartitioner.RangeTask<List<Long>> task = new KineticCoreTimelinePartitioner.RangeTask<List<Long>>() {
+                    @Override
+                    public KineticCoreTimelinePartitioner.Result<List<Long>> run(KineticCoreTimelinePartitioner.Range range, boolean splittable) {
+                        ranges.add(new Range(range, splittable));
+                        List<Long> found = find(events, range);
+                        if (!splittable || found.size() <= PAGE_SIZE) return KineticCoreTimelinePartitioner.Result.complete(found);
+                        List<Long> newest = found.subList(found.size() - PAGE_SIZE, found.size());
+                        return KineticCoreTimelinePartitioner.Result.partial(newest, newest.get(0));
+                    }
+                };
+                List<List<Long>> results = new KineticCoreTimelinePartitioner(executor)
+                    .execute(task, new KineticCoreTimelinePartitioner.Range(0, 60000), 1);
+
+                assertEquals(events, flatten(results));
+                // Only the part of the bounds before the first partial result is run again
+                long coveredFrom = events.get(events.size() - PAGE_SIZE);
+                for (Range range : ranges.subList(1, ranges.size())) assertTrue(range.end <= coveredFrom);
+            } finally {
+                if (executor != null) executor.shutdownNow();
+            }
+        }
+    }
+
+    @Test
+    public void test_partialResultAtTheEdges() throws Exception {
+        final List<Long> events = events();
+        final List<Range> ranges = new ArrayList<Range>();
+        KineticCoreTimelinePartitioner.RangeTask<List<Long>> task = new KineticCoreTimelinePartitioner.RangeTask<List<Long>>() {
+            @Override
+            public KineticCoreTimelinePartitioner.Result<List<Long>> run(KineticCoreTimelinePartitioner.Range range, boolean splittable) {
+                ranges.add(new Range(range, splittable));
+                List<Long> found = find(events, range);
+                // The first range claims to cover nothing, the others claim to cover more than their range
+                if (ranges.size() == 1) return KineticCoreTimelinePartitioner.Result.<List<Long>>partial(new ArrayList<Long>(), range.getEnd());
+                return KineticCoreTimelinePartitioner.Result.partial(found, range.getStart() - 1000);
+            }
+        };
+        List<List<Long>> results = new KineticCoreTimelinePartitioner(null)
+            .execute(task, new KineticCoreTimelinePartitioner.Range(0, 60000), 1);
+
+        // A result from the end of the range is split like an overfull range, a result from before
+        // the start of the range completes it
+        assertEquals(events, flatten(results));
+        assertEquals(4, results.size());
+        assertEquals(1 + 4, ranges.size());
+    }
+
+    @Test
+    public void test_parseTimestamp() throws Exception {
+        long millis = KineticCoreTimelinePartitioner.parseTimestamp("2017-01-01T00:00:00.000Z");
+        assertEquals(millis, KineticCoreTimelinePartitioner.parseTimestamp("2017-01-01T00:00:00Z"));
+        assertEquals(millis, KineticCoreTimelinePartitioner.parseTimestamp("2017-01-01T00:00Z"));
+        assertEquals(millis, KineticCoreTimelinePartitioner.parseTimestamp(" 2017-01-01T02:00:00.000+02:00 "));
+        assertEquals(millis, KineticCoreTimelinePartitioner.parseTimestamp("2016-12-31T19:00:00-05:00"));
+        assertEquals(millis, KineticCoreTimelinePartitioner.parseTimestamp("2017-01-01T05:30:00+0530"));
+        assertEquals(millis + 5, KineticCoreTimelinePartitioner.parseTimestamp("2017-01-01T00:00:00.005Z"));
+        assertEquals("2017-01-01T00:00:00.005Z", KineticCoreTimelinePartitioner.formatTimestamp(millis + 5));
+        try {
+            KineticCoreTimelinePartitioner.parseTimestamp("2017-01-01");
+            throw new AssertionError("A date isn't a timestamp");
+        } catch (BridgeError e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("'2017-01-01'"));
+        }
+    }
+
+    // Events every 2 seconds with a burst within a second that can't be split, as millis
+    private static List<Long> events() {
+        List<Long> events = new ArrayList<Long>();
+        for (long millis = 0; millis < 60000; millis += 2000) {
+            events.add(millis);
+            if (millis == 30000) {
+                for (int i = 1; i <= 2 * PAGE_SIZE; i++) events.add(millis + i);
+            }
+        }
+        return events;
+    }
+
+    private static List<ExecutorService> executors() {
+        List<ExecutorService> executors = new ArrayList<ExecutorService>();
+        executors.add(null);
+        executors.add(Executors.newFixedThreadPool(4));
+        return executors;
+    }
+
+    private static List<Long> find(List<Long> events, KineticCoreTimelinePartitioner.Range range) {
+        List<Long> found = new ArrayList<Long>();
+        for (Long event : events) {
+            if (event >= range.getStart() && event < range.getEnd()) found.add(event);
+        }
+        return found;
+    }
+
+    private static List<Long> flatten(List<List<Long>> results) {
+        List<Long> events = new ArrayList<Long>();
+        for (List<Long> result : results) events.addAll(result);
+        return events;
+    }
+
+    // A range that a task was run for
+    private static class Range {
+        private final long start;
+        private final long end;
+        private final boolean splittable;
+
+        private Range(KineticCoreTimelinePartitioner.Range range, boolean splittable) {
+            this.start = range.getStart();
+            this.end = range.getEnd();
+            this.splittable = splittable;
+        }
+
+        private KineticCoreTimelinePartitioner.Range toRange() {
+            return new KineticCoreTimelinePartitioner.Range(start, end);
+        }
+    }
+
+    // Asks for the range to be split while it holds more than a page of events
+    private static class PagedTask implements KineticCoreTimelinePartitioner.RangeTask<List<Long>> {
+        private final List<Long> events;
+        private final List<Range> ranges;
+
+        private PagedTask(List<Long> events, List<Range> ranges) {
+            this.events = events;
+            this.ranges = ranges;
+        }
+
+        @Override
+        public KineticCoreTimelinePartitioner.Result<List<Long>> run(KineticCoreTimelinePartitioner.Range range, boolean splittable) {
+            synchronized (ranges) {
+                ranges.add(new Range(range, splittable));
+            }
+            List<Long> found = find(events, range);
+            if (found.size() > PAGE_SIZE && splittable) return null;
+            return KineticCoreTimelinePartitioner.Result.complete(found);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.kineticdata.bridgehub.adapter.kineticcore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class KineticCoreValueMatcherTest {
+
+    @Test
+    public void test_wildcards() {
+        KineticCoreValueMatcher prefix = KineticCoreValueMatcher.compile("act%");
+        assertEquals(KineticCoreValueMatcher.Kind.PREFIX, prefix.getKind());
+        assertTrue(prefix.matches("Active"));
+        assertTrue(!prefix.matches("Inactive"));
+        assertTrue(KineticCoreValueMatcher.compile("%ACT%").matches("Inactive"));
+        assertTrue(KineticCoreValueMatcher.compile("%ive").matches("Active"));
+        assertEquals(KineticCoreValueMatcher.Kind.PATTERN, KineticCoreValueMatcher.compile("a%b").getKind());
+        assertTrue(KineticCoreValueMatcher.compile("a%b").matches("A-to-B"));
+    }
+
+    @Test
+    public void test_kinds() {
+        assertEquals(KineticCoreValueMatcher.Kind.LITERAL, KineticCoreValueMatcher.compile("abc").getKind());
+        assertEquals(KineticCoreValueMatcher.Kind.SUFFIX, KineticCoreValueMatcher.compile("%abc").getKind());
+        assertEquals(KineticCoreValueMatcher.Kind.CONTAINS, KineticCoreValueMatcher.compile("%abc%").getKind());
+        // A lone wildcard matches everything, including the empty string
+        KineticCoreValueMatcher all = KineticCoreValueMatcher.compile("%");
+        assertEquals(KineticCoreValueMatcher.Kind.CONTAINS, all.getKind());
+        assertTrue(all.matches(""));
+        assertTrue(all.matches("anything"));
+    }
+
+    @Test
+    public void test_escapedWildcards() {
+        assertTrue(KineticCoreValueMatcher.compile("50\\%").matches("50%"));
+        assertTrue(!KineticCoreValueMatcher.compile("50\\%").matches("500"));
+        // A trailing escaped wildcard is a literal %, followed by a wildcard
+        KineticCoreValueMatcher escaped = KineticCoreValueMatcher.compile("50\\%%");
+        assertTrue(escaped.matches("50% off"));
+        assertTrue(!escaped.matches("500"));
+    }
+
+    @Test
+    public void test_literalIsExactIgnoringCase() {
+        KineticCoreValueMatcher literal = KineticCoreValueMatcher.compile("Active");
+        assertTrue(literal.matches("ACTIVE"));
+        assertTrue(!literal.matches("Active "));
+        assertTrue(!literal.matches("Activ"));
+        // Only ASCII letters are case folded, like the pattern does
+        assertTrue(!KineticCoreValueMatcher.compile("été").matches("ÉTÉ"));
+    }
+
+    @Test
+    public void test_regexCharactersAreLiteral() {
+        assertTrue(KineticCoreValueMatcher.compile("a.b%").matches("a.bc"));
+        assertTrue(!KineticCoreValueMatcher.compile("a.b%").matches("axbc"));
+        assertTrue(KineticCoreValueMatcher.compile("%(1)%[2]").matches("x(1)y[2]"));
+    }
+
+    @Test
+    public void test_lineTerminators() {
+        // The wildcard doesn't match line terminators
+        assertTrue(!KineticCoreValueMatcher.compile("%b%").matches("a\nb"));
+        assertTrue(!KineticCoreValueMatcher.compile("a%").matches("a\nb"));
+        assertTrue(KineticCoreValueMatcher.contains("b").matches("b"));
+        assertTrue(!KineticCoreValueMatcher.contains("b").matches("a\nb"));
+        // The pattern is compiled when it's first needed and reused afterwards
+        KineticCoreValueMatcher literal = KineticCoreValueMatcher.compile("Active");
+        assertTrue(!literal.matches("Active\n"));
+        assertTrue(!literal.matches("Active\r"));
+        assertTrue(literal.matches("active"));
+    }
+}